@@ -0,0 +1,64 @@
+package sunday.git.remote;
+
+import java.io.File;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Asynchronous variant of the {@link Storage} interface. The operations return immediately, and the futures complete
+ * when the storage has answered, so that many operations can be in flight without a waiting thread for each of them.
+ * Failed operations complete the futures exceptionally.
+ *
+ * Storages that only support blocking operations can be used with the {@link AsyncStorageAdapter}.
+ *
+ * @author Peter H&auml;nsgen
+ */
+public interface AsyncStorage
+{
+    /**
+     * Checks whether the file with the given path already exists in the repository.
+     */
+    CompletableFuture<Boolean> fileExists(Path path);
+
+    /**
+     * Uploads the given file to the storage. Existing content with the same path is overwritten.
+     */
+    CompletableFuture<Void> uploadFile(Path path, File file);
+
+    /**
+     * Uploads new contents to the storage. Existing content with the same path is overwritten.
+     */
+    CompletableFuture<Void> uploadFile(Path path, byte[] contents);
+
+    /**
+     * Downloads an existing file from the storage. If it was not found, the future fails.
+     */
+    CompletableFuture<byte[]> downloadFile(Path path);
+
+    /**
+     * Downloads an existing file from the storage. The future completes as soon as the content starts to arrive, so
+     * reading from the stream may still block.
+     */
+    CompletableFuture<InputStream> downloadStream(Path path);
+
+    /**
+     * Deletes the file with the given path from the storage.
+     */
+    CompletableFuture<Void> deleteFile(Path path);
+
+    /**
+     * Lists all files that are located within the given path and its subdirectories.
+     */
+    CompletableFuture<Collection<Path>> listFiles(Path dir);
+
+    /**
+     * Checks whether the failure of an operation means that the storage has rejected it because of too many requests.
+     * The failure may be wrapped into a completion exception.
+     */
+    default boolean isThrottled(Throwable ex)
+    {
+        return false;
+    }
+}
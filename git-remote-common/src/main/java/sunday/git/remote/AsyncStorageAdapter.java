@@ -0,0 +1,83 @@
+package sunday.git.remote;
+
+import java.io.File;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+
+/**
+ * Makes a storage that only supports blocking operations usable as an asynchronous storage, by running the operations
+ * on the threads of an executor. This needs a thread for each operation in flight, like before.
+ *
+ * @author Peter H&auml;nsgen
+ */
+public class AsyncStorageAdapter implements AsyncStorage
+{
+    private Storage storage;
+    private Executor executor;
+
+    /**
+     * The constructor.
+     */
+    public AsyncStorageAdapter(Storage storage, Executor executor)
+    {
+        this.storage = storage;
+        this.executor = executor;
+    }
+
+    @Override
+    public CompletableFuture<Boolean> fileExists(Path path)
+    {
+        return CompletableFuture.supplyAsync(() -> storage.fileExists(path), executor);
+    }
+
+    @Override
+    public CompletableFuture<Void> uploadFile(Path path, File file)
+    {
+        return CompletableFuture.runAsync(() -> storage.uploadFile(path, file), executor);
+    }
+
+    @Override
+    public CompletableFuture<Void> uploadFile(Path path, byte[] contents)
+    {
+        return CompletableFuture.runAsync(() -> storage.uploadFile(path, contents), executor);
+    }
+
+    @Override
+    public CompletableFuture<byte[]> downloadFile(Path path)
+    {
+        return CompletableFuture.supplyAsync(() -> storage.downloadFile(path), executor);
+    }
+
+    @Override
+    public CompletableFuture<InputStream> downloadStream(Path path)
+    {
+        return CompletableFuture.supplyAsync(() -> storage.downloadStream(path), executor);
+    }
+
+    @Override
+    public CompletableFuture<Void> deleteFile(Path path)
+    {
+        return CompletableFuture.runAsync(() -> storage.deleteFile(path), executor);
+    }
+
+    @Override
+    public CompletableFuture<Collection<Path>> listFiles(Path dir)
+    {
+        return CompletableFuture.supplyAsync(() -> storage.listFiles(dir), executor);
+    }
+
+    @Override
+    public boolean isThrottled(Throwable ex)
+    {
+        if (ex instanceof CompletionException)
+        {
+            ex = ex.getCause();
+        }
+
+        return (ex instanceof RuntimeException) && storage.isThrottled((RuntimeException) ex);
+    }
+}
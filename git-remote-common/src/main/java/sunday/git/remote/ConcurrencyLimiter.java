@@ -0,0 +1,242 @@
+package sunday.git.remote;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Limits the number of concurrent storage operations, and adapts the limit to what the storage can handle (additive
+ * increase, multiplicative decrease). While operations complete fast and the limit is used up, the limit grows by about
+ * one per round of operations. When the storage reports throttling, or when operations become much slower than the
+ * fastest observed, the limit is cut down. The limit always stays between the configured floor and ceiling.
+ *
+ * Latencies are smoothed before comparing them, so that single large uploads do not count as congestion. Waiting is
+ * done with a lock instead of a monitor, so that waiting virtual threads do not block their carrier threads.
+ * Asynchronous operations do not wait at all, they are queued and started by the release of another operation.
+ *
+ * @author Peter H&auml;nsgen
+ */
+public class ConcurrencyLimiter
+{
+    /**
+     * The factor for cutting down the limit on throttling.
+     */
+    private static final double BACKOFF = 0.5;
+
+    /**
+     * The factor for cutting down the limit when operations become slow.
+     */
+    private static final double SLOWDOWN = 0.9;
+
+    /**
+     * Operations that are slower than this factor times the fastest smoothed latency count as congestion.
+     */
+    private static final double LATENCY_TOLERANCE = 2.0;
+
+    /**
+     * The weight of a new latency sample in the smoothed latency.
+     */
+    private static final double SMOOTHING = 0.1;
+
+    private int floor;
+    private int ceiling;
+
+    private ReentrantLock lock;
+    private Condition available;
+
+    private double limit;
+    private int inFlight;
+
+    /**
+     * The asynchronous operations that wait for being started.
+     */
+    private Deque<Runnable> waiting;
+
+    private double smoothedLatency;
+    private double minLatency;
+
+    /**
+     * The time before which the limit is not cut down again, so that operations that were started with the old limit
+     * do not cut it down repeatedly.
+     */
+    private long holdUntil;
+
+    /**
+     * The constructor.
+     */
+    public ConcurrencyLimiter(int floor, int ceiling, int initial)
+    {
+        if ((floor < 1) || (ceiling < floor))
+        {
+            throw new IllegalArgumentException("Invalid concurrency limits: " + floor + " - " + ceiling);
+        }
+
+        this.floor = floor;
+        this.ceiling = ceiling;
+
+        limit = Math.max(floor, Math.min(ceiling, initial));
+        holdUntil = System.nanoTime();
+
+        lock = new ReentrantLock();
+        available = lock.newCondition();
+        waiting = new ArrayDeque<>();
+    }
+
+    public int getFloor()
+    {
+        return floor;
+    }
+
+    public int getCeiling()
+    {
+        return ceiling;
+    }
+
+    /**
+     * Returns the current limit.
+     */
+    public int getLimit()
+    {
+        lock.lock();
+        try
+        {
+            return (int) limit;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits until another operation may start.
+     */
+    public void acquire() throws InterruptedException
+    {
+        lock.lockInterruptibly();
+        try
+        {
+            while (inFlight >= (int) limit)
+            {
+                available.await();
+            }
+
+            inFlight++;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Starts the given operation as soon as another operation may start, without blocking the calling thread. This
+     * is either done right away, or later by the thread that releases another operation. The operation must call
+     * release when it is done.
+     */
+    public void acquire(Runnable operation)
+    {
+        lock.lock();
+        try
+        {
+            if (inFlight >= (int) limit)
+            {
+                waiting.add(operation);
+                return;
+            }
+
+            inFlight++;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+
+        operation.run();
+    }
+
+    /**
+     * Ends an operation that took the given time. If throttled is true, the storage has rejected the operation
+     * because of too many requests.
+     */
+    public void release(long nanos, boolean throttled)
+    {
+        release(nanos, throttled, true);
+    }
+
+    /**
+     * Ends an operation that consisted of many requests, like a batch, so that its time says nothing about the
+     * latency of the storage. Only throttling changes the limit then.
+     */
+    public void release(boolean throttled)
+    {
+        release(0, throttled, false);
+    }
+
+    private void release(long nanos, boolean throttled, boolean sampled)
+    {
+        List<Runnable> ready = new ArrayList<>();
+
+        lock.lock();
+        try
+        {
+            // the limit was used up, so this operation tells something about it
+            boolean saturated = inFlight >= (int) limit;
+            inFlight--;
+
+            long now = System.nanoTime();
+            if (throttled)
+            {
+                decrease(BACKOFF, now);
+            }
+            else if (sampled)
+            {
+                smoothedLatency = (smoothedLatency == 0) ? nanos
+                        : (1 - SMOOTHING) * smoothedLatency + SMOOTHING * nanos;
+                minLatency = (minLatency == 0) ? smoothedLatency : Math.min(minLatency, smoothedLatency);
+
+                if (smoothedLatency > LATENCY_TOLERANCE * minLatency)
+                {
+                    decrease(SLOWDOWN, now);
+                }
+                else if (saturated)
+                {
+                    limit = Math.min(ceiling, limit + 1 / limit);
+                }
+            }
+
+            // waiting asynchronous operations go first, they are started outside of the lock
+            while (!waiting.isEmpty() && (inFlight < (int) limit))
+            {
+                inFlight++;
+                ready.add(waiting.poll());
+            }
+
+            available.signalAll();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+
+        for (Runnable operation : ready)
+        {
+            operation.run();
+        }
+    }
+
+    private void decrease(double factor, long now)
+    {
+        if (now - holdUntil >= 0)
+        {
+            limit = Math.max(floor, limit * factor);
+            holdUntil = now + (long) smoothedLatency;
+
+            // the storage got slower in general, so start over with the current latency as reference
+            minLatency = smoothedLatency;
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package sunday.git.remote;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes the content of a file that is uploaded as a stream. The content may be written more than once, e.g. when
+ * the upload is repeated after throttling.
+ *
+ * @author Peter H&auml;nsgen
+ */
+@FunctionalInterface
+public interface ContentWriter
+{
+    /**
+     * Writes the whole content to the given output stream, without closing it.
+     */
+    void writeTo(OutputStream out) throws IOException;
+}
@@ -1,16 +1,25 @@
 package sunday.git.remote;
 
+import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Semaphore;
+import java.util.function.Consumer;
+import java.util.function.Function;
 
 import org.apache.commons.exec.CommandLine;
 import org.apache.commons.exec.DefaultExecutor;
@@ -24,9 +33,34 @@ import org.apache.commons.exec.PumpStreamHandler;
  */
 public class Git
 {
+    /**
+     * The default number of git subprocesses that may run at the same time.
+     */
+    private static final int DEFAULT_MAX_PROCESSES = 16;
+
     private File workingDir;
     private File gitDir;
 
+    /**
+     * The object directory, which is resolved on first use.
+     */
+    private volatile File objectDir;
+
+    /**
+     * Protects the machine from too many git subprocesses, no matter how many threads are calling.
+     */
+    private Semaphore processes;
+
+    /**
+     * Idle "cat-file --batch-check" sessions, shared by all threads.
+     */
+    private Deque<GitCatFile> infoSessions;
+
+    /**
+     * Idle "cat-file --batch" sessions, shared by all threads.
+     */
+    private Deque<GitCatFile> contentSessions;
+
     /**
      * The constructor.
      */
@@ -34,6 +68,77 @@ public class Git
     {
         this.workingDir = workingDir;
         this.gitDir = gitDir;
+
+        infoSessions = new ConcurrentLinkedDeque<>();
+        contentSessions = new ConcurrentLinkedDeque<>();
+
+        processes = new Semaphore(DEFAULT_MAX_PROCESSES, true);
+    }
+
+    /**
+     * Sets the number of git subprocesses that may run at the same time. Idle cat-file sessions do not count. At least
+     * two are needed, because a push lists objects with one process while reading them with others.
+     */
+    public void setMaxProcesses(int maxProcesses)
+    {
+        processes = new Semaphore(Math.max(2, maxProcesses), true);
+    }
+
+    /**
+     * Waits until another git subprocess may run, and returns the semaphore that must be released afterwards.
+     */
+    private Semaphore acquireProcess()
+    {
+        Semaphore semaphore = processes;
+        try
+        {
+            semaphore.acquire();
+        }
+        catch (InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+            throw new GitRemoteException(ex);
+        }
+
+        return semaphore;
+    }
+
+    /**
+     * Returns the git directory of the repository.
+     */
+    public File getGitDir()
+    {
+        return gitDir;
+    }
+
+    /**
+     * Returns the directory in which git stores the objects. It is not always below the git directory, e.g. linked
+     * worktrees share the objects of the main repository, and GIT_OBJECT_DIRECTORY may point elsewhere.
+     */
+    public File getObjectDir()
+    {
+        File dir = objectDir;
+        if (dir == null)
+        {
+            dir = new File(executeGitCommand("rev-parse", "--git-path", "objects").getFirstLine());
+            if (!dir.isAbsolute())
+            {
+                dir = new File(workingDir, dir.getPath());
+            }
+            objectDir = dir;
+        }
+
+        return dir;
+    }
+
+    /**
+     * Returns the file in which git stores the object as a loose object. The file does not exist if the object is
+     * stored in a pack, or if it does not exist at all.
+     */
+    public File getLooseObjectFile(SHA1 sha1)
+    {
+        String name = sha1.toString();
+        return new File(getObjectDir(), name.substring(0, 2) + "/" + name.substring(2));
     }
 
     /**
@@ -59,7 +164,16 @@ public class Git
      */
     public boolean objectExists(SHA1 sha1)
     {
-        return executeGitCommand("cat-file", "-e", sha1.toString()).isOK();
+        return getObjectInfo(sha1) != null;
+    }
+
+    /**
+     * Returns those of the given objects that exist in the git repository. All of them are checked over a single
+     * cat-file session, so this is the way to go for checking many objects at once.
+     */
+    public Set<SHA1> getExistingObjects(Collection<SHA1> sha1s)
+    {
+        return withSession(infoSessions, false, session -> session.getExistingObjects(sha1s));
     }
 
     /**
@@ -71,6 +185,23 @@ public class Git
         return executeGitCommand("rev-list", "--objects", sha1.toString()).isOK();
     }
 
+    /**
+     * Checks whether all of the given objects, along with their history, exist in the git repository. This is done
+     * in a single pass like the connectivity check of git itself, where objects reachable from the local refs are
+     * known to be complete and are not walked again.
+     */
+    public boolean historyExists(Collection<SHA1> sha1s)
+    {
+        StringBuilder revisions = new StringBuilder();
+        for (SHA1 sha1 : sha1s)
+        {
+            revisions.append(sha1).append('\n');
+        }
+
+        ByteArrayInputStream in = new ByteArrayInputStream(revisions.toString().getBytes(StandardCharsets.US_ASCII));
+        return executeGitCommand(in, "rev-list", "--objects", "--quiet", "--stdin", "--not", "--all").isOK();
+    }
+
     /**
      * Returns the hash value of the ref, e.g. the object the ref is pointing to.
      * Example: HEAD -> 46390aae1316b31427e1f480fcac1da0de7146f3
@@ -89,13 +220,20 @@ public class Git
         return executeGitCommand("symbolic-ref", name).getFirstLine();
     }
 
+    /**
+     * Returns type and size of the object, or null if the object does not exist.
+     */
+    public GitObjectInfo getObjectInfo(SHA1 sha1)
+    {
+        return withSession(infoSessions, false, session -> session.getObjectInfo(sha1));
+    }
+
     /**
      * Returns the type of the object, e.g. one of blob, commit, tag or tree.
      */
     public GitObjectType getObjectType(SHA1 sha1)
     {
-        String name = executeGitCommand("cat-file", "-t", sha1.toString()).getFirstLine();
-        return GitObjectType.valueOf(name.toUpperCase());
+        return getExistingObjectInfo(sha1).getType();
     }
 
     /**
@@ -103,38 +241,44 @@ public class Git
      */
     public String getObjectSize(SHA1 sha1)
     {
-        return executeGitCommand("cat-file", "-s", sha1.toString()).getFirstLine();
+        return String.valueOf(getExistingObjectInfo(sha1).getSize());
+    }
+
+    private GitObjectInfo getExistingObjectInfo(SHA1 sha1)
+    {
+        GitObjectInfo info = getObjectInfo(sha1);
+        if (info == null)
+        {
+            throw new GitRemoteException("Object not found: " + sha1);
+        }
+
+        return info;
     }
 
     /**
-     * Returns the contents of the object.
+     * Returns the raw contents of the object, which must have the given type.
      */
     public byte[] readObject(SHA1 sha1, GitObjectType type)
     {
-        if (type != null)
-        {
-            return executeGitCommand("cat-file", type.toLowerName(), sha1.toString()).getOutput();
-        }
-        else
-        {
-            // if type is unknown return a pretty-printed representation of the object.
-            return executeGitCommand("cat-file", "-p", sha1.toString()).getOutput();
-        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        copyObject(sha1, type, out);
+        return out.toByteArray();
     }
 
     /**
-     * Copies the contents of the object to the provided output stream.
+     * Copies the raw contents of the object, which must have the given type, to the provided output stream.
      */
     public void copyObject(SHA1 sha1, GitObjectType type, OutputStream out)
     {
-        if (type != null)
+        GitObjectInfo info = withSession(contentSessions, true, session -> session.copyObject(sha1, out));
+        if (info == null)
         {
-            executeGitCommand(out, "cat-file", type.toLowerName(), sha1.toString());
+            throw new GitRemoteException("Object not found: " + sha1);
         }
-        else
+
+        if (!type.equals(info.getType()))
         {
-            // if type is unknown return a pretty-printed representation of the object.
-            executeGitCommand(out, "cat-file", "-p", sha1.toString());
+            throw new GitRemoteException("Unexpected type of object " + sha1 + ": " + info.getType());
         }
     }
 
@@ -158,15 +302,50 @@ public class Git
     }
 
     /**
-     * Returns the objects that are reachable from ref, excluding the objects
+     * Returns the objects that are reachable from any of the refs, excluding the objects
      * reachable from excludes.
      */
-    public List<SHA1> listObjects(String ref, Collection<SHA1> excludes)
+    public List<SHA1> listObjects(Collection<String> refs, Collection<SHA1> excludes)
+    {
+        List<SHA1> objects = new ArrayList<>();
+        listObjects(refs, excludes, objects::add);
+
+        return objects;
+    }
+
+    /**
+     * Passes the objects that are reachable from any of the refs, excluding the objects reachable from excludes, to
+     * the consumer while "git rev-list" is still running. Objects shared by several refs are listed only once. If the
+     * consumer blocks, git is blocked as well, so the objects never pile up in memory. If the consumer fails, git is
+     * stopped.
+     */
+    public void listObjects(Collection<String> refs, Collection<SHA1> excludes, Consumer<SHA1> consumer)
+    {
+        listObjects(refs, excludes, consumer, null);
+    }
+
+    /**
+     * Passes the objects that are reachable from the commit, excluding the objects reachable from excludes, to the
+     * consumer while "git rev-list" is still running, like above. The excluded commits where the listed history ends
+     * are passed to boundary.
+     */
+    public void listObjects(SHA1 commit, Collection<SHA1> excludes, Consumer<SHA1> consumer, Consumer<SHA1> boundary)
+    {
+        listObjects(List.of(commit.toString()), excludes, consumer, boundary);
+    }
+
+    private void listObjects(Collection<String> refs, Collection<SHA1> excludes, Consumer<SHA1> consumer,
+            Consumer<SHA1> boundary)
     {
         List<String> cmd = new ArrayList<>();
+        cmd.add("git");
         cmd.add("rev-list");
         cmd.add("--objects");
-        cmd.add(ref);
+        if (boundary != null)
+        {
+            cmd.add("--boundary");
+        }
+        cmd.addAll(refs);
 
         for (SHA1 ex : excludes)
         {
@@ -176,18 +355,96 @@ public class Git
             }
         }
 
-        GitResult result = executeGitCommand(cmd.toArray(new String[cmd.size()]));
+        ProcessBuilder builder = new ProcessBuilder(cmd);
+        builder.directory(workingDir);
+        builder.redirectError(ProcessBuilder.Redirect.INHERIT);
+        builder.environment().put("GIT_DIR", gitDir.toString());
+        builder.environment().put("HOME", System.getProperty("user.home"));
 
-        List<SHA1> objects = new ArrayList<>();
-        for (String line : result.getLines())
+        Semaphore semaphore = acquireProcess();
+        Process process = null;
+        try
+        {
+            process = builder.start();
+            process.getOutputStream().close();
+
+            try (BufferedReader out = new BufferedReader(
+                    new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8)))
+            {
+                String line;
+                while ((line = out.readLine()) != null)
+                {
+                    // looks like:
+                    // 27aa3f976fd2c30b2c00732f839ddf523a6dccfa README.md
+                    // -46390aae1316b31427e1f480fcac1da0de7146f3 (boundary commit)
+                    if (line.startsWith("-"))
+                    {
+                        boundary.accept(new SHA1(line.substring(1, 41)));
+                    }
+                    else if (!line.isEmpty())
+                    {
+                        consumer.accept(new SHA1(line.substring(0, 40)));
+                    }
+                }
+            }
+
+            if (process.waitFor() != 0)
+            {
+                throw new GitRemoteException("Listing objects failed: " + refs);
+            }
+        }
+        catch (IOException io)
         {
-            // looks like:
-            // 27aa3f976fd2c30b2c00732f839ddf523a6dccfa README.md
-            String s = line.split(" ")[0];
-            objects.add(new SHA1(s));
+            throw new GitRemoteException(io);
+        }
+        catch (InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+            throw new GitRemoteException(ex);
         }
+        finally
+        {
+            if (process != null)
+            {
+                process.destroy();
+            }
+            semaphore.release();
+        }
+    }
 
-        return objects;
+    /**
+     * Writes the given objects into a new pack file in the given directory, along with its index file. Returns the
+     * name of the pack, e.g. the files are called pack-{name}.pack and pack-{name}.idx.
+     */
+    public String packObjects(Collection<SHA1> objects, File dir)
+    {
+        StringBuilder names = new StringBuilder();
+        for (SHA1 sha1 : objects)
+        {
+            names.append(sha1).append('\n');
+        }
+
+        ByteArrayInputStream in = new ByteArrayInputStream(names.toString().getBytes(StandardCharsets.US_ASCII));
+        GitResult result = executeGitCommand(in, "pack-objects", "-q", new File(dir, "pack").toString());
+        if (!result.isOK())
+        {
+            throw new GitRemoteException("Packing objects failed.");
+        }
+
+        return result.getFirstLine().trim();
+    }
+
+    /**
+     * Reads a pack file from the input stream and stores it in the git repository, along with a newly built index.
+     * All objects of the pack become available in the repository.
+     */
+    public void indexPack(InputStream in)
+    {
+        GitResult result = executeGitCommand(in, "index-pack", "--stdin");
+        if (!result.isOK())
+        {
+            throw new GitRemoteException("Indexing pack failed.");
+        }
     }
 
     /**
@@ -198,6 +455,58 @@ public class Git
         return executeGitCommand("remote", "get-url", name).getFirstLine();
     }
 
+    /**
+     * Runs the operation on an idle cat-file session from the given pool, starting a new one if all of them are in
+     * use. Sessions that failed are discarded, because their pipes may be in an undefined state.
+     */
+    private <T> T withSession(Deque<GitCatFile> sessions, boolean contents, Function<GitCatFile, T> operation)
+    {
+        // there are never more sessions than permits
+        Semaphore semaphore = acquireProcess();
+        try
+        {
+            GitCatFile session = sessions.poll();
+            if (session == null)
+            {
+                session = new GitCatFile(workingDir, gitDir, contents);
+            }
+
+            try
+            {
+                T result = operation.apply(session);
+                sessions.push(session);
+                return result;
+            }
+            catch (RuntimeException ex)
+            {
+                session.close();
+                throw ex;
+            }
+        }
+        finally
+        {
+            semaphore.release();
+        }
+    }
+
+    /**
+     * Terminates all cat-file sessions that have been started.
+     */
+    public void close()
+    {
+        closeSessions(infoSessions);
+        closeSessions(contentSessions);
+    }
+
+    private void closeSessions(Deque<GitCatFile> sessions)
+    {
+        GitCatFile session;
+        while ((session = sessions.poll()) != null)
+        {
+            session.close();
+        }
+    }
+
     /**
      * Executes a git command by spawning a subprocess with the given args.
      */
@@ -248,10 +557,18 @@ public class Git
         Map<String, String> environment = new HashMap<>();
         environment.put("GIT_DIR", gitDir.toString());
 
+        // the other subprocesses inherit it anyway
+        String objectDirectory = System.getenv("GIT_OBJECT_DIRECTORY");
+        if (objectDirectory != null)
+        {
+            environment.put("GIT_OBJECT_DIRECTORY", objectDirectory);
+        }
+
         // also set the user home directory because this may be needed to access the
         // global git configuration (like for git clone)
         environment.put("HOME", System.getProperty("user.home"));
 
+        Semaphore semaphore = acquireProcess();
         try
         {
             CommandLine commandLine = new CommandLine("git");
@@ -267,5 +584,9 @@ public class Git
         {
             throw new GitRemoteException(io);
         }
+        finally
+        {
+            semaphore.release();
+        }
     }
 }
@@ -0,0 +1,279 @@
+package sunday.git.remote;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A long-running "git cat-file --batch" or "git cat-file --batch-check" process. Object ids are written to its
+ * std in, the answers are read back from its std out, so any number of objects can be inspected without spawning a
+ * new git process for each of them.
+ *
+ * A session is not thread-safe, it must only be used by one thread at a time.
+ *
+ * @author Peter H&auml;nsgen
+ */
+class GitCatFile implements Closeable
+{
+    /**
+     * The number of object ids written at once when checking many objects. The answers for a chunk must fit into the
+     * pipe buffer of the operating system, which is usually 64 KB.
+     */
+    private static final int CHUNK_SIZE = 500;
+
+    private boolean contents;
+
+    private Process process;
+    private OutputStream in;
+    private InputStream out;
+
+    /**
+     * The constructor. If contents is true, the session is started with --batch and returns the object contents along
+     * with the object info, otherwise it is started with --batch-check and returns the object info only.
+     */
+    GitCatFile(File workingDir, File gitDir, boolean contents)
+    {
+        this.contents = contents;
+
+        ProcessBuilder builder = new ProcessBuilder("git", "cat-file", contents ? "--batch" : "--batch-check");
+        builder.directory(workingDir);
+        builder.redirectError(ProcessBuilder.Redirect.INHERIT);
+
+        Map<String, String> environment = builder.environment();
+        environment.put("GIT_DIR", gitDir.toString());
+        environment.put("HOME", System.getProperty("user.home"));
+
+        try
+        {
+            process = builder.start();
+        }
+        catch (IOException io)
+        {
+            throw new GitRemoteException(io);
+        }
+
+        in = new BufferedOutputStream(process.getOutputStream());
+        out = new BufferedInputStream(process.getInputStream());
+    }
+
+    /**
+     * Returns type and size of the object, or null if it does not exist. In a --batch session, the contents are
+     * skipped.
+     */
+    GitObjectInfo getObjectInfo(SHA1 sha1)
+    {
+        try
+        {
+            GitObjectInfo info = request(sha1);
+            if ((info != null) && contents)
+            {
+                skip(info.getSize() + 1);
+            }
+
+            return info;
+        }
+        catch (IOException io)
+        {
+            throw new GitRemoteException(io);
+        }
+    }
+
+    /**
+     * Returns those of the given objects that exist. The object ids are written in chunks, each followed by reading
+     * the answers, so that neither side blocks on a full pipe. Only available in --batch-check sessions.
+     */
+    Set<SHA1> getExistingObjects(Collection<SHA1> sha1s)
+    {
+        if (contents)
+        {
+            throw new IllegalStateException("Session has been started with --batch.");
+        }
+
+        Set<SHA1> existing = new ObjectIdSet();
+        List<SHA1> chunk = new ArrayList<>(CHUNK_SIZE);
+
+        try
+        {
+            Iterator<SHA1> it = sha1s.iterator();
+            while (it.hasNext())
+            {
+                chunk.clear();
+                while (it.hasNext() && (chunk.size() < CHUNK_SIZE))
+                {
+                    SHA1 sha1 = it.next();
+                    chunk.add(sha1);
+
+                    in.write(sha1.toString().getBytes(StandardCharsets.US_ASCII));
+                    in.write('\n');
+                }
+                in.flush();
+
+                for (SHA1 sha1 : chunk)
+                {
+                    if (!readLine().endsWith(" missing"))
+                    {
+                        existing.add(sha1);
+                    }
+                }
+            }
+
+            return existing;
+        }
+        catch (IOException io)
+        {
+            throw new GitRemoteException(io);
+        }
+    }
+
+    /**
+     * Copies the contents of the object to the provided output stream and returns its type and size, or null if it
+     * does not exist. Only available in --batch sessions.
+     */
+    GitObjectInfo copyObject(SHA1 sha1, OutputStream target)
+    {
+        if (!contents)
+        {
+            throw new IllegalStateException("Session has been started without --batch.");
+        }
+
+        try
+        {
+            GitObjectInfo info = request(sha1);
+            if (info != null)
+            {
+                copy(info.getSize(), target);
+
+                // each object is terminated by a line feed
+                if (out.read() != '\n')
+                {
+                    throw new GitRemoteException("Unexpected end of object: " + sha1);
+                }
+            }
+
+            return info;
+        }
+        catch (IOException io)
+        {
+            throw new GitRemoteException(io);
+        }
+    }
+
+    /**
+     * Writes the object id to git and parses the response header, which looks like:
+     *
+     * <pre>
+     * 27aa3f976fd2c30b2c00732f839ddf523a6dccfa blob 1234
+     * 27aa3f976fd2c30b2c00732f839ddf523a6dccfa missing
+     * </pre>
+     */
+    private GitObjectInfo request(SHA1 sha1) throws IOException
+    {
+        in.write(sha1.toString().getBytes(StandardCharsets.US_ASCII));
+        in.write('\n');
+        in.flush();
+
+        String line = readLine();
+        String[] words = line.split(" ");
+        if ((words.length == 2) && "missing".equals(words[1]))
+        {
+            return null;
+        }
+
+        if (words.length != 3)
+        {
+            throw new GitRemoteException("Unexpected cat-file response: " + line);
+        }
+
+        GitObjectType type = GitObjectType.valueOf(words[1].toUpperCase());
+        long size = Long.parseLong(words[2]);
+        return new GitObjectInfo(sha1, type, size);
+    }
+
+    private String readLine() throws IOException
+    {
+        ByteArrayOutputStream line = new ByteArrayOutputStream(64);
+        while (true)
+        {
+            int ch = out.read();
+            if (ch < 0)
+            {
+                throw new GitRemoteException("Unexpected end of cat-file output.");
+            }
+
+            if (ch == '\n')
+            {
+                break;
+            }
+
+            line.write(ch);
+        }
+
+        return new String(line.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private void copy(long size, OutputStream target) throws IOException
+    {
+        byte[] buffer = new byte[8192];
+        long remaining = size;
+        while (remaining > 0)
+        {
+            int n = out.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+            if (n < 0)
+            {
+                throw new GitRemoteException("Unexpected end of cat-file output.");
+            }
+
+            target.write(buffer, 0, n);
+            remaining -= n;
+        }
+    }
+
+    private void skip(long size) throws IOException
+    {
+        long remaining = size;
+        while (remaining > 0)
+        {
+            long n = out.skip(remaining);
+            if (n <= 0)
+            {
+                if (out.read() < 0)
+                {
+                    throw new GitRemoteException("Unexpected end of cat-file output.");
+                }
+                n = 1;
+            }
+
+            remaining -= n;
+        }
+    }
+
+    /**
+     * Ends the session by closing std in, which makes git terminate.
+     */
+    @Override
+    public void close()
+    {
+        try
+        {
+            in.close();
+        }
+        catch (IOException io)
+        {
+            // ignore, the process is going away anyway
+        }
+
+        process.destroy();
+    }
+}
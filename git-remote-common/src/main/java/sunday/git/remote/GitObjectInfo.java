@@ -0,0 +1,38 @@
+package sunday.git.remote;
+
+/**
+ * Describes an object in the git database by its hash, type and size, as reported by "git cat-file --batch-check".
+ *
+ * @author Peter H&auml;nsgen
+ */
+public class GitObjectInfo
+{
+    private SHA1 sha1;
+    private GitObjectType type;
+    private long size;
+
+    /**
+     * The constructor.
+     */
+    public GitObjectInfo(SHA1 sha1, GitObjectType type, long size)
+    {
+        this.sha1 = sha1;
+        this.type = type;
+        this.size = size;
+    }
+
+    public SHA1 getSha1()
+    {
+        return sha1;
+    }
+
+    public GitObjectType getType()
+    {
+        return type;
+    }
+
+    public long getSize()
+    {
+        return size;
+    }
+}
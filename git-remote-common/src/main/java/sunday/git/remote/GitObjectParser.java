@@ -0,0 +1,183 @@
+package sunday.git.remote;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Extracts the referenced objects from the raw contents of git objects, like they are stored in the object database.
+ * This works directly on the bytes, so objects do not need to be pretty-printed by git first:
+ *
+ * <pre>
+ * commit: "tree {hex}\n" ("parent {hex}\n")* ...
+ * tag:    "object {hex}\n" "type {type}\n" ...
+ * tree:   ({mode} " " {name} "\0" {20 bytes id})*
+ * </pre>
+ *
+ * @author Peter H&auml;nsgen
+ */
+public class GitObjectParser
+{
+    private static final byte[] TREE = "tree ".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] PARENT = "parent ".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] OBJECT = "object ".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] TYPE = "type ".getBytes(StandardCharsets.US_ASCII);
+
+    private GitObjectParser()
+    {
+    }
+
+    /**
+     * Returns the objects that are directly referenced by an object with the given type and contents, along with their
+     * types. Submodules are skipped, because their commits are not part of the repository.
+     */
+    public static Map<SHA1, GitObjectType> getReferences(GitObjectType type, byte[] content)
+    {
+        if (GitObjectType.COMMIT.equals(type))
+        {
+            return getCommitReferences(content);
+        }
+        else if (GitObjectType.TAG.equals(type))
+        {
+            return getTagReferences(content);
+        }
+        else if (GitObjectType.TREE.equals(type))
+        {
+            return getTreeReferences(content);
+        }
+        else
+        {
+            // blob objects do not reference any other objects
+            return Collections.emptyMap();
+        }
+    }
+
+    private static Map<SHA1, GitObjectType> getCommitReferences(byte[] content)
+    {
+        Map<SHA1, GitObjectType> refs = new LinkedHashMap<>();
+
+        // commit objects reference a tree and zero or more parents
+        int pos = expect(content, 0, TREE);
+        refs.put(hexId(content, pos), GitObjectType.TREE);
+        pos = endOfLine(content, pos + 40);
+
+        while (startsWith(content, pos, PARENT))
+        {
+            pos += PARENT.length;
+            refs.put(hexId(content, pos), GitObjectType.COMMIT);
+            pos = endOfLine(content, pos + 40);
+        }
+
+        return refs;
+    }
+
+    private static Map<SHA1, GitObjectType> getTagReferences(byte[] content)
+    {
+        // tag objects reference a single object, the type is in the next line
+        int pos = expect(content, 0, OBJECT);
+        SHA1 target = hexId(content, pos);
+        pos = expect(content, endOfLine(content, pos + 40), TYPE);
+
+        int end = pos;
+        while ((end < content.length) && (content[end] != '\n'))
+        {
+            end++;
+        }
+        String targetType = new String(content, pos, end - pos, StandardCharsets.US_ASCII);
+
+        return Collections.singletonMap(target, GitObjectType.valueOf(targetType.toUpperCase()));
+    }
+
+    private static Map<SHA1, GitObjectType> getTreeReferences(byte[] content)
+    {
+        Map<SHA1, GitObjectType> refs = new LinkedHashMap<>();
+
+        int pos = 0;
+        while (pos < content.length)
+        {
+            // the mode is octal without leading zeros, like "100644", "40000" for trees or "160000" for submodules
+            int mode = 0;
+            while (content[pos] != ' ')
+            {
+                mode = (mode << 3) + (content[pos++] - '0');
+            }
+
+            // skip the name
+            while (content[pos] != 0)
+            {
+                pos++;
+            }
+            pos++;
+
+            if ((pos + 20) > content.length)
+            {
+                throw new GitRemoteException("Invalid tree object.");
+            }
+
+            int kind = mode & 0170000;
+            if (kind == 0040000)
+            {
+                refs.put(SHA1.fromBytes(content, pos), GitObjectType.TREE);
+            }
+            else if (kind != 0160000)
+            {
+                refs.put(SHA1.fromBytes(content, pos), GitObjectType.BLOB);
+            }
+            pos += 20;
+        }
+
+        return refs;
+    }
+
+    private static boolean startsWith(byte[] content, int pos, byte[] prefix)
+    {
+        if ((pos + prefix.length) > content.length)
+        {
+            return false;
+        }
+
+        for (int i = 0; i < prefix.length; i++)
+        {
+            if (content[pos + i] != prefix[i])
+            {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private static int expect(byte[] content, int pos, byte[] prefix)
+    {
+        if (!startsWith(content, pos, prefix))
+        {
+            throw new GitRemoteException("Invalid object, expected: " + new String(prefix, StandardCharsets.US_ASCII));
+        }
+
+        return pos + prefix.length;
+    }
+
+    private static SHA1 hexId(byte[] content, int pos)
+    {
+        if ((pos + 40) > content.length)
+        {
+            throw new GitRemoteException("Invalid object, incomplete id.");
+        }
+
+        return new SHA1(new String(content, pos, 40, StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * Returns the position after the line feed that ends the line at pos.
+     */
+    private static int endOfLine(byte[] content, int pos)
+    {
+        while ((pos < content.length) && (content[pos] != '\n'))
+        {
+            pos++;
+        }
+
+        return pos + 1;
+    }
+}
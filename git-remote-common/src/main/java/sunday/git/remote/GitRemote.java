@@ -1,14 +1,15 @@
 package sunday.git.remote;
 
-import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
@@ -17,16 +18,28 @@ import java.util.Collections;
 import java.util.Deque;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionService;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.zip.Deflater;
 import java.util.zip.DeflaterOutputStream;
-import java.util.zip.InflaterInputStream;
 
 /**
  * This is the git remote helper implementation which does the communication with git and controls the actual storage
@@ -38,11 +51,80 @@ import java.util.zip.InflaterInputStream;
  */
 public class GitRemote
 {
+    /**
+     * The number of threads for encoding objects, and the initial limit for concurrent storage operations.
+     */
     private static final int MAX_THREADS = 8;
 
+    private static final int DEFAULT_MIN_CONCURRENCY = 1;
+    private static final int DEFAULT_MAX_CONCURRENCY = 32;
+
+    /**
+     * The default upper limit for concurrent storage operations with virtual threads, which cost almost nothing while
+     * they are waiting.
+     */
+    private static final int DEFAULT_MAX_CONCURRENCY_VIRTUAL = 256;
+
+    /**
+     * The capacity of the queues between the stages of a push.
+     */
+    private static final int QUEUE_SIZE = 2 * MAX_THREADS;
+
+    /**
+     * The number of objects whose existence at the remote repository is checked in one batch.
+     */
+    private static final int EXISTS_BATCH_SIZE = 1000;
+
+    /**
+     * Objects larger than this are encoded while they are uploaded, instead of being encoded in memory first.
+     */
+    private static final long STREAMING_THRESHOLD = 1024 * 1024;
+
+    /**
+     * The default number of MB of object contents that may be kept in memory at the same time.
+     */
+    private static final int DEFAULT_MEMORY_BUDGET = 256;
+
+    /**
+     * Marks the end of the queue of listed objects.
+     */
+    private static final SHA1 END_OF_OBJECTS = new SHA1("0000000000000000000000000000000000000000");
+
     private Git git;
     private GitLogger logger;
     private Storage storage;
+    private ConcurrencyLimiter limiter;
+
+    /**
+     * Limits the object contents that are encoded and decoded in memory, no matter how many objects are transferred at
+     * the same time.
+     */
+    private MemoryBudget memoryBudget;
+
+    /**
+     * The same storage for asynchronous operations, which do not need a thread while they wait for the storage.
+     */
+    private AsyncStorage asyncStorage;
+    private RemotePacks packs;
+    private RemoteBundles bundles;
+    private RemoteManifests manifests;
+    private ObjectInventory inventory;
+    private RemoteObjectCache cache;
+
+    /**
+     * If true, pushes upload a single pack file instead of one file per object.
+     */
+    private boolean packLayout;
+
+    /**
+     * If true, pushes upload small objects in bundles instead of one file per object.
+     */
+    private boolean bundleLayout;
+
+    /**
+     * If true, workers run in virtual threads instead of a fixed number of platform threads.
+     */
+    private boolean virtualThreads;
 
     private boolean firstPush;
     private String remoteHead;
@@ -62,24 +144,126 @@ public class GitRemote
 
     private ExecutorService threadPool;
 
+    /**
+     * Runs the tasks that block while waiting for the limiter. They must not occupy the threads of the thread pool,
+     * which complete the asynchronous storage operations that release the limiter.
+     */
+    private ExecutorService blockingPool;
+
+    private String url;
+
+    /**
+     * The journal of the running push, if objects are pushed one by one.
+     */
+    private PushJournal journal;
+
     /**
      * The constructor.
      */
-    public GitRemote(Git git, Storage storage)
+    public GitRemote(Git git, Storage storage, String url)
     {
         this.git = git;
-        this.storage = storage;
+        this.url = url;
+
+        // virtual threads need Java 21, otherwise the setting is ignored
+        virtualThreads = "true".equals(git.getConfig("remotex.virtualthreads")) && isVirtualThreadsSupported();
+
+        // storage operations run with as much concurrency as the storage can handle
+        int floor = getIntConfig("remotex.minconcurrency", DEFAULT_MIN_CONCURRENCY);
+        int ceiling = getIntConfig("remotex.maxconcurrency",
+                virtualThreads ? DEFAULT_MAX_CONCURRENCY_VIRTUAL : DEFAULT_MAX_CONCURRENCY);
+        limiter = new ConcurrencyLimiter(floor, Math.max(floor, ceiling), MAX_THREADS);
+        this.storage = new LimitedStorage(storage, limiter);
+        memoryBudget = new MemoryBudget(getIntConfig("remotex.memorybudget", DEFAULT_MEMORY_BUDGET) * 1024L * 1024);
 
         logger = new GitLogger();
+        packs = new RemotePacks(git, logger, this.storage);
+        bundles = new RemoteBundles(this.storage, logger);
+        manifests = new RemoteManifests(this.storage, logger);
+        inventory = new ObjectInventory(this.storage, logger);
+        cache = new RemoteObjectCache(git.getGitDir(), url, logger);
+
+        // "loose" (default), "pack" or "bundle", existing objects can be read in all cases
+        String layout = git.getConfig("remotex.layout");
+        packLayout = "pack".equals(layout);
+        bundleLayout = "bundle".equals(layout);
 
         remoteRefs = new HashMap<>();
         pushed = new HashMap<>();
 
-        fetchTodo = new HashSet<>();
-        fetchDone = new HashSet<>();
+        fetchTodo = new ObjectIdSet();
+        fetchDone = new ObjectIdSet();
+
+        // no matter how many threads are running, only a few git processes may run at the same time
+        String maxProcesses = git.getConfig("remotex.maxgitprocesses");
+        if ((maxProcesses != null) && !maxProcesses.isBlank())
+        {
+            git.setMaxProcesses(getIntConfig("remotex.maxgitprocesses", 0));
+        }
+
+        // threads that wait for the limiter are cheap, so there are enough for the highest limit
+        threadPool = newExecutor(limiter.getCeiling());
+        blockingPool = newExecutor(limiter.getCeiling());
+
+        asyncStorage = new LimitedAsyncStorage(storage.getAsyncStorage(threadPool), limiter);
+    }
+
+    /**
+     * Checks whether the Java runtime supports virtual threads. This is done by reflection, so that the helper still
+     * runs on older versions.
+     */
+    private static boolean isVirtualThreadsSupported()
+    {
+        try
+        {
+            Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return true;
+        }
+        catch (NoSuchMethodException ex)
+        {
+            return false;
+        }
+    }
+
+    /**
+     * Returns an executor for the given number of workers, which creates a virtual thread for each task if enabled.
+     */
+    private ExecutorService newExecutor(int threads)
+    {
+        if (virtualThreads)
+        {
+            try
+            {
+                return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            }
+            catch (ReflectiveOperationException ex)
+            {
+                throw new GitRemoteException(ex);
+            }
+        }
+
+        return Executors.newFixedThreadPool(threads);
+    }
+
+    /**
+     * Returns the git configuration value with the given name as a number, or the default value if it is not set.
+     */
+    private int getIntConfig(String name, int defaultValue)
+    {
+        String value = git.getConfig(name);
+        if ((value == null) || value.isBlank())
+        {
+            return defaultValue;
+        }
 
-        logger.debug("Using " + MAX_THREADS + " threads.");
-        threadPool = Executors.newFixedThreadPool(MAX_THREADS);
+        try
+        {
+            return Integer.parseInt(value.trim());
+        }
+        catch (NumberFormatException ex)
+        {
+            throw new GitRemoteException("Invalid number for " + name + ": " + value);
+        }
     }
 
     /**
@@ -91,6 +275,10 @@ public class GitRemote
         {
             boolean hasPushed = false;
 
+            // git sends all push and fetch commands of a batch before the terminating blank line
+            List<String> pushBatch = new ArrayList<>();
+            List<String> fetchBatch = new ArrayList<>();
+
             while (true)
             {
                 String line = in.readLine();
@@ -120,12 +308,12 @@ public class GitRemote
                     }
                     else if (line.startsWith("push "))
                     {
-                        push(line);
+                        pushBatch.add(line);
                         hasPushed = true;
                     }
                     else if (line.startsWith("fetch "))
                     {
-                        fetch(line);
+                        fetchBatch.add(line);
                     }
                     else if (line.startsWith("option"))
                     {
@@ -133,7 +321,24 @@ public class GitRemote
                     }
                     else if (line.isEmpty())
                     {
-                        System.out.println();
+                        try
+                        {
+                            if (!pushBatch.isEmpty())
+                            {
+                                push(pushBatch);
+                            }
+                            if (!fetchBatch.isEmpty())
+                            {
+                                fetch(fetchBatch);
+                            }
+                        }
+                        finally
+                        {
+                            // git waits for the blank line even if the batch failed
+                            pushBatch.clear();
+                            fetchBatch.clear();
+                            System.out.println();
+                        }
                     }
                     else
                     {
@@ -148,9 +353,21 @@ public class GitRemote
             }
         }
 
+        close();
         System.exit(0);
     }
 
+    /**
+     * Closes the local object cache, stops the git processes that are kept running, and shuts the thread pools down.
+     */
+    public void close()
+    {
+        threadPool.shutdown();
+        blockingPool.shutdown();
+        cache.close();
+        git.close();
+    }
+
     /**
      * Responds with the capabilities that this remote backend has.
      */
@@ -220,107 +437,348 @@ public class GitRemote
     }
 
     /**
-     * Handles the fetch command, which provides a name and a hash.
+     * Handles a batch of fetch commands, which provide a hash and a name each, like:
+     *
+     * <pre>
+     * fetch 0d4c51adb1af62cf63e2a7ef80dbad1bdf8c502e refs/heads/master
+     * fetch 6bdbbdcda0bbbdc57fd83bf144954c3a9f218744 refs/tags/v1
+     * </pre>
+     *
+     * All requested objects are fetched in one traversal, so that the downloads for different refs run concurrently.
+     * Git expects the objects to be there only after the whole batch.
      */
-    private void fetch(String line)
+    private void fetch(List<String> lines)
     {
-        String[] args = line.split(" ");
-        SHA1 sha1 = new SHA1(args[1]);
-        fetch(sha1);
+        Set<SHA1> tips = new LinkedHashSet<>();
+        for (String line : lines)
+        {
+            String[] args = line.split(" ");
+            SHA1 sha1 = new SHA1(args[1]);
+            if (!fetchDone.contains(sha1))
+            {
+                tips.add(sha1);
+            }
+        }
+
+        if (tips.isEmpty())
+        {
+            return;
+        }
+
+        fetchManifests(tips);
+        fetch(tips);
     }
 
     /**
-     * Recursively fetches the given object and its references from the remote
-     * repository.
+     * Downloads the objects listed in the manifests of the given commits and their bases all at once. The commits and
+     * trees do not need to be parsed for this, so the number of round trips does not depend on the length of the
+     * history. Afterwards, the regular fetch checks that the history is complete, and walks the parts of it that are
+     * not covered by manifests.
      */
-    private void fetch(SHA1 sha1)
+    private void fetchManifests(Collection<SHA1> tips)
     {
-        boolean changed = false;
+        Set<SHA1> objects = new ObjectIdSet();
+        Set<SHA1> seen = new ObjectIdSet();
+        Collection<SHA1> level = tips;
+
+        while (!level.isEmpty())
+        {
+            Set<SHA1> commits = new ObjectIdSet();
+            for (SHA1 sha1 : level)
+            {
+                if (seen.add(sha1))
+                {
+                    commits.add(sha1);
+                }
+            }
+
+            // the history of local commits is already there, or it is completed by the regular fetch
+            commits.removeAll(git.getExistingObjects(commits));
+
+            // the manifests of all commits of a level are read at once, one level per round trip
+            List<Future<RemoteManifests.Manifest>> reads = new ArrayList<>();
+            for (SHA1 sha1 : commits)
+            {
+                reads.add(threadPool.submit(() -> manifests.read(sha1)));
+            }
+
+            level = new ArrayList<>();
+            for (Future<RemoteManifests.Manifest> read : reads)
+            {
+                RemoteManifests.Manifest manifest = getManifest(read, reads);
+                if (manifest != null)
+                {
+                    objects.addAll(manifest.getObjects());
+                    level.addAll(manifest.getBases());
+                }
+            }
+        }
 
-        // the list of asynchronous fetch tasks that are currently scheduled
-        Map<SHA1, Future<Collection<SHA1>>> fetchTasks = new HashMap<>();
-        if (!fetchDone.contains(sha1))
+        if (objects.isEmpty())
         {
-            fetchTasks.put(sha1, threadPool.submit(new FetchTask(sha1)));
-            fetchTodo.add(sha1);
-            changed = true;
+            return;
         }
 
-        while (!fetchTasks.isEmpty())
+        objects.removeAll(git.getExistingObjects(objects));
+        logger.debug("Fetching " + objects.size() + " objects from manifests.");
+
+        // the regular fetch still has to walk the history, so the downloads here are not recorded as done
+        FetchScheduler scheduler = new FetchScheduler(false);
+        for (SHA1 sha1 : objects)
         {
-            // get some scheduled task
-            Entry<SHA1, Future<Collection<SHA1>>> entry = fetchTasks.entrySet().iterator().next();
+            scheduler.add(sha1, null);
+        }
+        scheduler.submit();
 
-            Future<Collection<SHA1>> fetchTask = entry.getValue();
-            SHA1 sha = entry.getKey();
+        int totalCount = objects.size();
+        int doneCount = 0;
+        while (!scheduler.isEmpty())
+        {
+            // the types are not listed in manifests, but downloaded trees tell which of the queued objects are blobs
+            scheduler.classify(scheduler.take());
+            scheduler.submit();
 
-            try
+            doneCount++;
+            int percent = doneCount * 100 / totalCount;
+            logger.progress("Fetching objects: " + percent + "% (" + doneCount + " / " + totalCount + ")");
+        }
+    }
+
+    private RemoteManifests.Manifest getManifest(Future<RemoteManifests.Manifest> read,
+            List<Future<RemoteManifests.Manifest>> reads)
+    {
+        try
+        {
+            return read.get();
+        }
+        catch (InterruptedException | ExecutionException e)
+        {
+            for (Future<RemoteManifests.Manifest> other : reads)
             {
-                // wait for its completion
-                Collection<SHA1> references = fetchTask.get();
+                other.cancel(true);
+            }
+            throw new GitRemoteException(e);
+        }
+    }
 
-                // submit new tasks for resulting fetches
-                for (SHA1 todo : references)
-                {
-                    if (!fetchDone.contains(todo) && !fetchTodo.contains(todo))
-                    {
-                        fetchTasks.put(todo, threadPool.submit(new FetchTask(todo)));
-                        fetchTodo.add(todo);
-                    }
-                }
+    /**
+     * Recursively fetches the given objects and their references from the remote repository. Downloads are taken in
+     * the order in which they complete, so the references of an object are scheduled as soon as it is there, no matter
+     * how long other downloads take. Commits and trees go first, see {@link FetchScheduler}.
+     */
+    private void fetch(Collection<SHA1> tips)
+    {
+        FetchScheduler scheduler = new FetchScheduler(true);
+
+        // objects that are present locally already, their history is checked at the end
+        Collection<SHA1> presentObjects = new ArrayList<>();
 
-                fetchTasks.remove(sha);
-                fetchDone.add(sha);
+        // the types of the requested objects are not known yet
+        Map<SHA1, GitObjectType> requested = new LinkedHashMap<>();
+        for (SHA1 sha1 : tips)
+        {
+            requested.put(sha1, null);
+        }
+        schedule(requested, scheduler, presentObjects);
+        scheduler.submit();
+
+        while (!scheduler.isEmpty() || !presentObjects.isEmpty())
+        {
+            while (!scheduler.isEmpty())
+            {
+                // wait for whichever task completes first, and submit new tasks for resulting fetches
+                Map<SHA1, GitObjectType> references = scheduler.take();
+                schedule(references, scheduler, presentObjects);
+                scheduler.submit();
 
                 int doneCount = fetchDone.size();
                 int totalCount = fetchTodo.size() + doneCount;
                 int percent = doneCount * 100 / totalCount;
                 logger.progress("Fetching objects: " + percent + "% (" + doneCount + " / " + totalCount + ")");
             }
-            catch (Exception ex)
+
+            // a single connectivity check for everything that was present already
+            if (presentObjects.isEmpty() || git.historyExists(presentObjects))
+            {
+                break;
+            }
+
+            // this can only happen in the case of aborted fetches that are resumed later,
+            // resolve the references of the incomplete objects too
+            Map<SHA1, GitObjectType> references = new LinkedHashMap<>();
+            for (SHA1 present : presentObjects)
+            {
+                if (!git.historyExists(present))
+                {
+                    references.putAll(getReferencedObjects(present));
+                }
+            }
+
+            presentObjects.clear();
+            schedule(references, scheduler, presentObjects);
+            scheduler.submit();
+        }
+
+        int doneCount = fetchDone.size();
+        int totalCount = fetchTodo.size() + doneCount;
+        logger.progress("Fetching objects: 100% (" + doneCount + " / " + totalCount + ")");
+    }
+
+    /**
+     * Checks which of the given objects exist locally in a single batch, and schedules fetch tasks for the missing
+     * ones. Objects that are present are collected for the connectivity check.
+     */
+    private void schedule(Map<SHA1, GitObjectType> objects, FetchScheduler scheduler,
+            Collection<SHA1> presentObjects)
+    {
+        Set<SHA1> candidates = new LinkedHashSet<>();
+        for (SHA1 sha1 : objects.keySet())
+        {
+            if (!fetchDone.contains(sha1) && !fetchTodo.contains(sha1))
             {
-                System.out.println("error " + ex.getMessage());
+                candidates.add(sha1);
             }
         }
 
-        if (changed)
+        if (candidates.isEmpty())
+        {
+            return;
+        }
+
+        Set<SHA1> existing = git.getExistingObjects(candidates);
+        for (SHA1 sha1 : candidates)
         {
-            int doneCount = fetchDone.size();
-            int totalCount = fetchTodo.size() + doneCount;
-            logger.progress("Fetching objects: 100% (" + doneCount + " / " + totalCount + ")");
+            if (existing.contains(sha1))
+            {
+                if (sha1.equals(SHA1.EMPTY_TREE_HASH))
+                {
+                    // git reports the empty tree hash as existing
+                    // even if it's not present in the object
+                    // store. Everything will work fine in this situation,
+                    // but "git fsck" will complain if it's not present, so
+                    // we explicitly add it to avoid that.
+                    git.writeObject(GitObjectType.TREE, new byte[0]);
+                }
+
+                presentObjects.add(sha1);
+                fetchDone.add(sha1);
+            }
+            else
+            {
+                scheduler.add(sha1, objects.get(sha1));
+                fetchTodo.add(sha1);
+            }
         }
     }
 
     /**
-     * Handles a push command, which may look like:
+     * Handles a batch of push commands, which may look like:
      * 
      * <pre>
      * push refs/heads/master:refs/heads/master
-     * push :refs/heads/master
+     * push +refs/heads/feature:refs/heads/feature
+     * push :refs/heads/old
      * </pre>
+     * 
+     * The objects of all refs are listed by a single "git rev-list" and uploaded together, so objects shared by
+     * several refs are only handled once. The refs are written afterwards, and the status of each ref is reported
+     * at the end.
      */
-    private void push(String line)
+    private void push(List<String> lines)
     {
-        String[] args = line.split("[ :]");
-        String src = args[1];
-        String dst = args[2];
+        Map<String, String> status = new LinkedHashMap<>();
+        Map<String, SHA1> updates = new LinkedHashMap<>();
+        Map<String, String> sources = new LinkedHashMap<>();
+        Set<String> forced = new HashSet<>();
+        List<String> deletes = new ArrayList<>();
 
-        if (src.isEmpty())
+        for (String line : lines)
         {
-            delete(dst);
+            String[] args = line.split("[ :]");
+            String src = args[1];
+            String dst = args[2];
+            status.put(dst, null);
+
+            if (src.isEmpty())
+            {
+                deletes.add(dst);
+                continue;
+            }
+
+            boolean force = false;
+            if (src.startsWith("+"))
+            {
+                src = src.substring(1);
+                force = true;
+            }
+
+            // refs that would be rejected anyway do not need their objects to be uploaded
+            try
+            {
+                SHA1 sha1 = git.getRefValue(src);
+                checkRemoteRef(dst, sha1, force);
+
+                updates.put(dst, sha1);
+                sources.put(dst, src);
+                if (force)
+                {
+                    forced.add(dst);
+                }
+            }
+            catch (GitRemoteException ex)
+            {
+                status.put(dst, "error " + dst + " " + ex.getMessage());
+            }
         }
-        else
+
+        if (!updates.isEmpty())
         {
-            push(src, dst);
+            try
+            {
+                pushObjects(updates);
+
+                for (Entry<String, SHA1> entry : updates.entrySet())
+                {
+                    String dst = entry.getKey();
+                    writeRemoteRef(dst, entry.getValue(), forced.contains(dst));
+                    pushed.put(dst, entry.getValue());
+                    status.put(dst, "ok " + dst);
+
+                    if (firstPush)
+                    {
+                        String src = sources.get(dst);
+                        if ((remoteHead == null) || src.equals(git.getSymbolicRef("HEAD")))
+                        {
+                            remoteHead = dst;
+                        }
+                    }
+                }
 
-            if (firstPush)
+                // the batch is complete, there is nothing left to resume
+                journal.delete();
+            }
+            catch (GitRemoteException ex)
             {
-                if ((remoteHead == null) || src.equals(git.getSymbolicRef("HEAD")))
+                logger.error(ex.getMessage());
+                for (String dst : updates.keySet())
                 {
-                    remoteHead = dst;
+                    if (status.get(dst) == null)
+                    {
+                        status.put(dst, "error " + dst + " " + ex.getMessage());
+                    }
                 }
             }
         }
+
+        if (!deletes.isEmpty())
+        {
+            delete(deletes, status);
+        }
+
+        for (String response : status.values())
+        {
+            System.out.println(response);
+        }
     }
 
     /**
@@ -336,90 +794,412 @@ public class GitRemote
     }
 
     /**
-     * Deletes the given ref from the remote.
+     * Deletes the given refs from the remote in a single batch, and puts the status lines for git.
      * 
-     * @param ref a ref like "refs/heads/mybranch"
+     * @param refs refs like "refs/heads/mybranch"
      */
-    private void delete(String ref)
+    private void delete(Collection<String> refs, Map<String, String> status)
     {
         GitSymbolicReference head = readSymbolicRef("HEAD");
-        if ((head != null) && head.getValue().equals(ref))
+
+        List<String> deletable = new ArrayList<>();
+        for (String ref : refs)
         {
-            System.out.println("error " + ref + " Cannot delete the current branch.");
-            return;
+            if ((head != null) && head.getValue().equals(ref))
+            {
+                status.put(ref, "error " + ref + " Cannot delete the current branch.");
+            }
+            else
+            {
+                logger.debug("Deleting ref: " + ref);
+                deletable.add(ref);
+            }
         }
 
-        logger.debug("Deleting ref: " + ref);
+        List<Path> paths = new ArrayList<>();
+        for (String ref : deletable)
+        {
+            paths.add(refPath(ref));
+        }
 
-        storage.deleteFile(refPath(ref));
-        remoteRefs.remove(ref);
-        pushed.remove(ref);
+        try
+        {
+            storage.deleteFiles(paths);
+        }
+        catch (GitRemoteException ex)
+        {
+            for (String ref : deletable)
+            {
+                status.put(ref, "error " + ref + " " + ex.getMessage());
+            }
+            return;
+        }
 
-        logger.progress("Deleting refs: 100% (1 / 1)");
+        for (String ref : deletable)
+        {
+            remoteRefs.remove(ref);
+            pushed.remove(ref);
+            status.put(ref, "ok " + ref);
+        }
 
-        System.out.println("ok " + ref);
+        logger.progress("Deleting refs: 100% (" + deletable.size() + " / " + deletable.size() + ")");
     }
 
     /**
-     * Pushes the given local src commit or branch to the remote branch described by dst.
+     * Uploads the objects reachable from the given local commits, which are going to be written to the remote refs
+     * given by the keys of updates.
      */
-    private void push(String src, String dst)
+    private void pushObjects(Map<String, SHA1> updates)
     {
-        logger.debug("Pushing from " + src + " to " + dst + "...");
-
-        boolean force = false;
-        if (src.startsWith("+"))
-        {
-            src = src.substring(1);
-            force = true;
-        }
+        logger.debug("Pushing " + updates + "...");
 
-        Collection<SHA1> excludes = new ArrayList<>();
+        Collection<SHA1> commits = new LinkedHashSet<>(updates.values());
+        Collection<SHA1> excludes = new LinkedHashSet<>();
         excludes.addAll(remoteRefs.values());
         excludes.addAll(pushed.values());
 
-        List<SHA1> objects = git.listObjects(src, excludes);
-
-        logger.debug("Found " + objects.size() + " objects, excluding " + excludes.size() + " remote refs.");
-
-        Deque<Future<?>> tasks = new ArrayDeque<>();
-
-        // before updating the ref, write all objects that are referenced
-        // schedule upload tasks
-        for (SHA1 sha1 : objects)
+        // a new remote repository has no objects, so the inventory knows all of them from the start
+        inventory.load();
+        journal = new PushJournal(git.getGitDir(), url, updates.keySet());
+        if (firstPush && !inventory.exists())
         {
-            tasks.add(threadPool.submit(new UploadObject(sha1)));
+            inventory.markComplete();
+            journal.delete();
         }
 
-        int doneCount = 0;
-        int totalCount = objects.size();
+        // objects that have been cached for a recreated or compacted remote repository may be gone
+        cache.load(inventory.getGeneration());
 
-        // wait until all of them have finished
-        while (!tasks.isEmpty())
+        try
         {
-            try
+            Map<SHA1, RemoteManifests.Manifest> pushManifests;
+            if (packLayout)
             {
-                Future<?> task = tasks.removeFirst();
-                task.get();
+                List<SHA1> objects = new ArrayList<>();
+                pushManifests = listObjects(commits, excludes, objects::add);
+                logger.debug("Found " + objects.size() + " objects, excluding " + excludes.size() + " remote refs.");
+
+                objects.removeIf(this::isKnownRemoteObject);
+                pushPack(objects);
             }
-            catch (InterruptedException | ExecutionException e)
+            else
             {
-                throw new GitRemoteException(e);
+                pushManifests = pushObjects(commits, excludes, PushJournal.getBatchId(updates));
             }
 
-            int percent = doneCount * 100 / totalCount;
-            logger.progress("Pushing objects: " + percent + "% (" + doneCount + " / " + totalCount + ")");
+            for (Entry<SHA1, RemoteManifests.Manifest> entry : pushManifests.entrySet())
+            {
+                manifests.write(entry.getKey(), entry.getValue().getBases(), entry.getValue().getObjects());
+            }
+        }
+        finally
+        {
+            // the inventory must not list objects before they have been uploaded completely
+            inventory.flush();
+            journal.close();
+        }
+    }
 
-            doneCount++;
+    /**
+     * Lists the objects of the commits one commit after the other, and passes them to the consumer. Each commit
+     * excludes the ones before, so that every object is listed only once, and the listing of each commit is exactly
+     * what its manifest needs. Returns the manifests by commit.
+     */
+    private Map<SHA1, RemoteManifests.Manifest> listObjects(Collection<SHA1> commits, Collection<SHA1> excludes,
+            Consumer<SHA1> consumer)
+    {
+        Map<SHA1, RemoteManifests.Manifest> result = new LinkedHashMap<>();
+        Collection<SHA1> listed = new LinkedHashSet<>(excludes);
+        for (SHA1 commit : commits)
+        {
+            // the bases are the excluded commits that the history of the commit actually reaches
+            List<SHA1> bases = new ArrayList<>();
+            List<SHA1> objects = new ArrayList<>();
+            git.listObjects(commit, listed, sha1 -> {
+                objects.add(sha1);
+                consumer.accept(sha1);
+            }, bases::add);
+
+            result.put(commit, new RemoteManifests.Manifest(bases, objects));
+            listed.add(commit);
         }
 
-        logger.progress("Pushing objects: 100% (" + doneCount + " / " + totalCount + ")");
+        return result;
+    }
+
+    /**
+     * Checks whether the object is listed in the inventory or in the local cache, e.g. it does not need to be
+     * uploaded.
+     */
+    private boolean isKnownRemoteObject(SHA1 sha1)
+    {
+        if (inventory.contains(sha1))
+        {
+            return true;
+        }
+
+        // objects uploaded by an interrupted push are known locally, even if they did not make it into the inventory
+        if (cache.contains(sha1))
+        {
+            inventory.add(sha1);
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Uploads the given objects as a single pack.
+     */
+    private void pushPack(List<SHA1> objects)
+    {
+        int totalCount = objects.size();
+        if (totalCount > 0)
+        {
+            logger.progress("Pushing objects: 0% (0 / " + totalCount + ")");
+            packs.uploadPack(objects);
+
+            for (SHA1 sha1 : objects)
+            {
+                inventory.add(sha1);
+                cache.add(sha1);
+            }
+        }
+
+        logger.progress("Pushing objects: 100% (" + totalCount + " / " + totalCount + ")");
+    }
+
+    /**
+     * Uploads the objects reachable from the commits one file per object, and returns the manifests of the commits.
+     * This is a pipeline of three stages: the objects listed by git are encoded by several threads, and the encoded
+     * objects are uploaded by several other threads. The stages are connected by bounded queues, so a slow stage blocks
+     * the previous ones, and only the ids of the objects are kept in memory for the manifests. The first error stops
+     * all stages.
+     *
+     * The objects listed by git are recorded in the journal first, which also records the finished uploads. If an
+     * earlier push of the same commits has been interrupted, only the objects that have not been uploaded yet are
+     * pushed, without checking whether they exist at the remote repository. The commits are then listed only for their
+     * manifests, while the uploads are running.
+     */
+    private Map<SHA1, RemoteManifests.Manifest> pushObjects(Collection<SHA1> commits, Collection<SHA1> excludes,
+            SHA1 batchId)
+    {
+        boolean resuming = journal.canResume(batchId);
+        if (resuming)
+        {
+            logger.info("Resuming interrupted push.");
+        }
+        else
+        {
+            journal.start(batchId);
+        }
+
+        PushProgress progress = new PushProgress();
+        BlockingQueue<SHA1> listed = new ArrayBlockingQueue<>(QUEUE_SIZE);
+        BlockingQueue<EncodedObject> encoded = new ArrayBlockingQueue<>(QUEUE_SIZE);
+        AtomicInteger runningEncoders = new AtomicInteger(MAX_THREADS);
+
+        // there are enough uploaders for the highest limit, the limiter decides how many of them are active
+        int uploaderCount = limiter.getCeiling();
+        int stageCount = 1 + MAX_THREADS + uploaderCount;
+        logger.debug("Pushing with up to " + uploaderCount + " uploads"
+                + (virtualThreads ? " in virtual threads." : "."));
+        ExecutorService stages = newExecutor(stageCount);
+        CompletionService<Void> completion = new ExecutorCompletionService<>(stages);
+
+        ListObjects listing = new ListObjects(commits, excludes, resuming, listed, progress);
+        completion.submit(listing);
+        for (int i = 0; i < MAX_THREADS; i++)
+        {
+            completion.submit(new EncodeObjects(listed, encoded, runningEncoders, uploaderCount));
+        }
+        for (int i = 0; i < uploaderCount; i++)
+        {
+            completion.submit(new UploadObjects(encoded, progress));
+        }
+
+        try
+        {
+            // wait until all of them have finished, or the first one has failed
+            for (int i = 0; i < stageCount; i++)
+            {
+                completion.take().get();
+            }
+
+            // the last bundle is not full
+            uploadBundle(bundles.takeCurrent(), progress);
+        }
+        catch (InterruptedException e)
+        {
+            throw new GitRemoteException(e);
+        }
+        catch (ExecutionException e)
+        {
+            if (e.getCause() instanceof GitRemoteException)
+            {
+                throw (GitRemoteException) e.getCause();
+            }
+            throw new GitRemoteException(e.getCause());
+        }
+        finally
+        {
+            stages.shutdownNow();
+
+            // objects that have been encoded, but not uploaded
+            for (EncodedObject object : encoded)
+            {
+                memoryBudget.release(object.reserved);
+            }
+
+            // the objects of a bundle that has not been uploaded will be pushed again next time
+            bundles.takeCurrent();
+        }
+
+        progress.finish();
+        logger.debug("Storage concurrency limit: " + limiter.getLimit());
+
+        return listing.manifests;
+    }
+
+    /**
+     * Uploads a bundle, if not null, and records its objects as pushed.
+     */
+    private void uploadBundle(RemoteBundles.Bundle bundle, PushProgress progress)
+    {
+        if (bundle == null)
+        {
+            return;
+        }
+
+        bundles.upload(bundle);
+
+        for (SHA1 sha1 : bundle.getObjects())
+        {
+            markPushed(sha1, progress);
+        }
+
+        // a resumed push skips what has been uploaded, even if this process is killed
+        journal.flush();
+    }
+
+    /**
+     * Records an object as existing at the remote repository.
+     */
+    private void markPushed(SHA1 sha1, PushProgress progress)
+    {
+        inventory.add(sha1);
+        cache.add(sha1);
+        journal.done(sha1);
+        progress.done();
+    }
+
+    /**
+     * Maintenance operation which merges the small packs, the bundles and the single object files of the remote
+     * repository into a larger pack and swaps in a new multi-pack index, so that lookups stay fast as the remote
+     * repository grows. The objects are collected in a temporary git repository, the local repository is not touched.
+     * Afterwards, the object inventory is rewritten to list exactly the objects of the new multi-pack index.
+     */
+    public void compact()
+    {
+        logger.setVerbosity(Math.max(1, logger.getVerbosity()));
+
+        Path tempDir = RemotePacks.createTempDir();
+        Git tempGit = new Git(tempDir.toFile(), tempDir.toFile());
+
+        try
+        {
+            if (!tempGit.executeGitCommand("init", "-q", "--bare").isOK())
+            {
+                throw new GitRemoteException("Cannot create temporary repository: " + tempDir);
+            }
+
+            // segments written after this point by concurrent pushes are kept
+            inventory.load();
+            List<SHA1> objects = getLooseObjects();
+
+            Deque<Future<?>> tasks = new ArrayDeque<>();
+            for (SHA1 sha1 : objects)
+            {
+                tasks.add(threadPool.submit(() -> downloadLooseObject(tempGit, sha1, null)));
+            }
+
+            int doneCount = 0;
+            int totalCount = objects.size();
+            while (!tasks.isEmpty())
+            {
+                try
+                {
+                    tasks.removeFirst().get();
+                }
+                catch (InterruptedException | ExecutionException e)
+                {
+                    throw new GitRemoteException(e);
+                }
+
+                doneCount++;
+                logger.progress("Downloading objects: " + (doneCount * 100 / totalCount) + "% (" + doneCount + " / "
+                        + totalCount + ")");
+            }
+
+            // bundled objects are merged as well
+            List<String> bundleNames = bundles.getBundleNames();
+            List<SHA1> mergedObjects = new ArrayList<>(objects);
+            for (String name : bundleNames)
+            {
+                logger.debug("Downloading bundle: " + name);
+                bundles.forEachObject(name, (sha1, encoded) -> {
+                    new LooseObjectWriter(tempGit, sha1, memoryBudget).write(new ByteArrayInputStream(encoded), null);
+                    mergedObjects.add(sha1);
+                });
+            }
+
+            MultiPackIndex index = packs.compact(tempGit, tempDir, mergedObjects);
 
-        SHA1 sha1 = git.getRefValue(src);
-        writeRemoteRef(dst, sha1, force);
-        pushed.put(dst, sha1);
+            // the objects are contained in the new pack now
+            List<Path> objectPaths = new ArrayList<>(objects.size());
+            for (SHA1 sha1 : objects)
+            {
+                objectPaths.add(objectPath(sha1));
+            }
+            storage.deleteFiles(objectPaths);
+            for (String name : bundleNames)
+            {
+                bundles.delete(name);
+            }
 
-        System.out.println("ok " + dst);
+            List<SHA1> allObjects = new ArrayList<>(index.size());
+            for (int i = 0; i < index.size(); i++)
+            {
+                allObjects.add(index.getSha1(i));
+            }
+            inventory.replace(allObjects);
+            logger.info("Inventory contains " + allObjects.size() + " objects.");
+        }
+        finally
+        {
+            tempGit.close();
+            RemotePacks.deleteTempDir(tempDir);
+            close();
+        }
+    }
+
+    /**
+     * Returns the objects that are stored as single files in the remote repository.
+     */
+    private List<SHA1> getLooseObjects()
+    {
+        List<SHA1> objects = new ArrayList<>();
+        for (Path path : storage.listFiles(Path.of("objects")))
+        {
+            // like objects/6b/dbbdcda0bbbdc57fd83bf144954c3a9f218744
+            if ((path.getNameCount() == 3) && (path.getName(1).toString().length() == 2)
+                    && (path.getName(2).toString().length() == 38))
+            {
+                objects.add(new SHA1(path.getName(1).toString() + path.getName(2)));
+            }
+        }
+
+        return objects;
     }
 
     /**
@@ -458,23 +1238,29 @@ public class GitRemote
     }
 
     /**
-     * Checks if the object already exists at the remote repository.
+     * Asks the storage in a single batch which of the given objects exist already at the remote repository, and marks
+     * them as pushed. This is only needed if the inventory is incomplete, e.g. for remote repositories that have been
+     * created before the inventory existed.
      */
-    private boolean objectExists(SHA1 sha1)
+    private void markExistingObjects(Collection<SHA1> objects, PushProgress progress)
     {
-        Path path = objectPath(sha1);
-        boolean exists = storage.fileExists(path);
-
-        if (exists)
+        if (objects.isEmpty())
         {
-            logger.debug("Object already exists: " + sha1);
+            return;
         }
-        else
+
+        Map<Path, SHA1> paths = new LinkedHashMap<>();
+        for (SHA1 sha1 : objects)
         {
-            logger.debug("Object does not exist yet: " + sha1);
+            paths.put(objectPath(sha1), sha1);
         }
 
-        return exists;
+        for (Path path : storage.filesExist(paths.keySet()))
+        {
+            SHA1 sha1 = paths.get(path);
+            logger.debug("Object already exists: " + sha1);
+            markPushed(sha1, progress);
+        }
     }
 
     /**
@@ -482,46 +1268,207 @@ public class GitRemote
      */
     public void uploadObject(SHA1 sha1)
     {
-        logger.debug("Uploading object: " + sha1);
+        EncodedObject object = encodeObject(sha1);
+        uploadObject(object);
+    }
 
-        Path path = objectPath(sha1);
+    /**
+     * Uploads an encoded object to the remote repository.
+     */
+    private void uploadObject(EncodedObject object)
+    {
+        logger.debug("Uploading object: " + object.sha1);
 
-        GitObjectType type = git.getObjectType(sha1);
-        String size = git.getObjectSize(sha1);
+        Path path = objectPath(object.sha1);
+        try
+        {
+            if (object.file != null)
+            {
+                try
+                {
+                    storage.uploadFile(path, object.file);
+                    return;
+                }
+                catch (GitRemoteException ex)
+                {
+                    // git may have packed the object in the meantime
+                    if (object.file.exists())
+                    {
+                        throw ex;
+                    }
+                    logger.debug("Loose object has been packed meanwhile: " + object.sha1);
+                }
+            }
 
-        // large files that don't fit into memory need special handling
-        long length = Long.parseLong(size);
-        if (length > 100 * 1024 * 1024)
+            if (object.content != null)
+            {
+                storage.uploadFile(path, object.content);
+            }
+            else
+            {
+                // large objects are read from git and encoded while uploading
+                storage.uploadStream(path, out -> encodeObject(object.sha1, object.type, object.size, out));
+            }
+        }
+        finally
         {
-            logger.debug("Using large file handling: " + sha1 + " (" + length + " bytes)");
+            memoryBudget.release(object.reserved);
+        }
+    }
+
+    /**
+     * Returns the encoded contents of the object in the local repository. Loose objects are already stored in the
+     * encoding of the remote repository, so their files are uploaded as they are. Large packed objects are only
+     * described here, they are encoded while they are uploaded, so that they never need to fit into memory.
+     */
+    private EncodedObject encodeObject(SHA1 sha1)
+    {
+        // type and size come from the shared cat-file session, no need to spawn git
+        GitObjectInfo info = git.getObjectInfo(sha1);
+        if (info == null)
+        {
+            throw new GitRemoteException("Object not found: " + sha1);
+        }
 
-            File temp = encodeLargeObject(sha1, type, size);
+        GitObjectType type = info.getType();
+        long size = info.getSize();
 
-            storage.uploadFile(path, temp);
-            temp.delete();
+        // bundles need the content in memory, all other loose objects are uploaded from their files
+        File looseFile = git.getLooseObjectFile(sha1);
+        boolean bundled = bundleLayout && (size <= RemoteBundles.MAX_OBJECT_SIZE);
+        if (!bundled && looseFile.isFile())
+        {
+            return new EncodedObject(sha1, type, size, looseFile);
         }
-        else
+
+        if (size > STREAMING_THRESHOLD)
+        {
+            logger.debug("Using large file handling: " + sha1 + " (" + size + " bytes)");
+            return new EncodedObject(sha1, type, size);
+        }
+
+        // the encoded object is kept in memory until it has been uploaded
+        long reserved = reserveMemory(size);
+        try
         {
-            byte[] content = encodeObject(sha1, type, size);
-            storage.uploadFile(path, content);
+            byte[] content = bundled ? readLooseObject(looseFile) : null;
+            if (content == null)
+            {
+                ByteArrayOutputStream data = new ByteArrayOutputStream();
+                encodeObject(sha1, type, size, data);
+                content = data.toByteArray();
+            }
+
+            return new EncodedObject(sha1, content, reserved);
+        }
+        catch (IOException | RuntimeException ex)
+        {
+            memoryBudget.release(reserved);
+
+            if (ex instanceof IOException)
+            {
+                throw new GitRemoteException(ex);
+            }
+            throw (RuntimeException) ex;
         }
     }
 
     /**
-     * Downloads an object from the remote repository and writes it into the local repository.
+     * Returns the contents of the loose object file, which are already encoded, or null if it does not exist.
      */
-    private void downloadObject(SHA1 sha1)
+    private byte[] readLooseObject(File looseFile) throws IOException
     {
-        logger.debug("Downloading object: " + sha1);
+        try
+        {
+            return Files.readAllBytes(looseFile.toPath());
+        }
+        catch (NoSuchFileException ex)
+        {
+            return null;
+        }
+    }
 
-        Path path = objectPath(sha1);
-        InputStream in = storage.downloadStream(path);
+    /**
+     * Reserves memory for object contents of the given size, and waits while the memory budget is used up by other
+     * objects. Returns the reserved bytes, which must be released again.
+     */
+    private long reserveMemory(long size)
+    {
+        try
+        {
+            return memoryBudget.acquire(size);
+        }
+        catch (InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+            throw new GitRemoteException(ex);
+        }
+    }
+
+    /**
+     * Downloads an object from the remote repository and writes it into the local repository. Returns the objects
+     * that are directly referenced by it, along with their types.
+     */
+    private Map<SHA1, GitObjectType> downloadObject(SHA1 sha1)
+    {
+        // objects that are stored in a pack come with the whole pack
+        if (packs.fetchPackContaining(sha1))
+        {
+            if (!git.objectExists(sha1))
+            {
+                throw new GitRemoteException("Object not found in pack: " + sha1);
+            }
+
+            return getReferencedObjects(sha1);
+        }
+
+        Map<SHA1, GitObjectType> references = new LinkedHashMap<>();
 
-        SHA1 computedSha1 = decodeObject(in);
-        if (!computedSha1.equals(sha1))
+        // small objects may be stored in a bundle
+        byte[] encoded = bundles.readObject(sha1);
+        if (encoded != null)
         {
-            throw new GitRemoteException("Provided and computed hashes do not match: " + sha1 + " != " + computedSha1);
+            logger.debug("Decoding bundled object: " + sha1);
+
+            new LooseObjectWriter(git, sha1, memoryBudget).write(new ByteArrayInputStream(encoded), references);
+            return references;
         }
+
+        downloadLooseObject(git, sha1, references);
+        return references;
+    }
+
+    /**
+     * Like {@link #downloadObject(SHA1)}, but objects that are stored as single files do not occupy a thread while
+     * waiting for the storage. Only decoding them runs in the thread pool. Objects in packs and bundles are rare and
+     * are downloaded as before, in threads of their own.
+     */
+    private CompletableFuture<Map<SHA1, GitObjectType>> downloadObjectAsync(SHA1 sha1)
+    {
+        if (packs.contains(sha1) || bundles.contains(sha1))
+        {
+            return CompletableFuture.supplyAsync(() -> downloadObject(sha1), blockingPool);
+        }
+
+        logger.debug("Downloading object: " + sha1);
+
+        return asyncStorage.downloadStream(objectPath(sha1)).thenApplyAsync(in -> {
+            Map<SHA1, GitObjectType> references = new LinkedHashMap<>();
+            new LooseObjectWriter(git, sha1, memoryBudget).write(in, references);
+            return references;
+        }, threadPool);
+    }
+
+    /**
+     * Downloads an object that is stored as a single file from the remote repository and writes it into the given
+     * git repository. The references of the object are added to the given map, if not null.
+     */
+    private void downloadLooseObject(Git target, SHA1 sha1, Map<SHA1, GitObjectType> references)
+    {
+        logger.debug("Downloading object: " + sha1);
+
+        Path path = objectPath(sha1);
+        new LooseObjectWriter(target, sha1, memoryBudget).write(storage.downloadStream(path), references);
     }
 
     /**
@@ -533,6 +1480,15 @@ public class GitRemote
 
         logger.debug("Uploading ref: " + path);
 
+        checkRemoteRef(dst, newSha1, force);
+        storage.uploadFile(path, newSha1.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Checks whether the remote ref may be set to the new commit, e.g. that it is a fast-forward unless forced.
+     */
+    private void checkRemoteRef(String dst, SHA1 newSha1, boolean force)
+    {
         if (!force)
         {
             SHA1 sha1 = remoteRefs.get(dst);
@@ -550,8 +1506,6 @@ public class GitRemote
                 }
             }
         }
-
-        storage.uploadFile(path, newSha1.toString().getBytes(StandardCharsets.UTF_8));
     }
 
     /**
@@ -576,9 +1530,10 @@ public class GitRemote
         }
 
         List<GitSHA1Reference> refs = new ArrayList<>();
-        for (Path path : files)
+        for (Entry<Path, byte[]> file : storage.downloadFiles(files).entrySet())
         {
-            byte[] data = storage.downloadFile(path);
+            Path path = file.getKey();
+            byte[] data = file.getValue();
             String name = pathToName(path);
             SHA1 sha1 = new SHA1(new String(data, StandardCharsets.UTF_8).trim());
             GitSHA1Reference ref = new GitSHA1Reference(sha1, name);
@@ -620,254 +1575,501 @@ public class GitRemote
     }
 
     /**
-     * Returns the encoded contents of the object in the local repository.
-     * The encoding is the same as the encoding that git uses for loose objects.
+     * Writes the encoded contents of the object in the local repository to the given stream, which is not closed.
+     * The encoding is the same as the encoding that git uses for loose objects. The contents are copied from git
+     * through the compression, so they are never kept in memory as a whole.
      */
-    private byte[] encodeObject(SHA1 sha1, GitObjectType type, String size)
+    private void encodeObject(SHA1 sha1, GitObjectType type, long size, OutputStream target) throws IOException
     {
-        ByteArrayOutputStream data = new ByteArrayOutputStream();
-
         // git uses zlib compression
-        try (DeflaterOutputStream out = new DeflaterOutputStream(data))
+        Deflater deflater = new Deflater();
+        DeflaterOutputStream out = new DeflaterOutputStream(target, deflater, 8192);
+        try
         {
             String header = type.toLowerName() + ' ' + size;
             out.write(header.getBytes(StandardCharsets.UTF_8));
             out.write(0);
 
-            // read small files directly into memory
-            byte[] contents = git.readObject(sha1, type);
-            out.write(contents);
+            git.copyObject(sha1, type, out);
+            out.finish();
         }
-        catch (IOException ex)
+        finally
         {
-            throw new GitRemoteException(ex);
+            deflater.end();
         }
+    }
 
-        return data.toByteArray();
+    /**
+     * Returns the objects that are directly referenced by the given object, along with their types.
+     */
+    private Map<SHA1, GitObjectType> getReferencedObjects(SHA1 sha1)
+    {
+        GitObjectType type = git.getObjectType(sha1);
+        if (GitObjectType.BLOB.equals(type))
+        {
+            // blob objects do not reference any other objects
+            return Collections.emptyMap();
+        }
+
+        return GitObjectParser.getReferences(type, git.readObject(sha1, type));
     }
 
     /**
-     * Returns a temporary file with the encoded contents of the object in the local repository.
-     * The encoding is the same as the encoding that git uses for loose objects.
+     * An object in the encoding of the remote repository. Loose objects are uploaded from the file of git, small
+     * packed objects are kept in memory, large ones are encoded while they are uploaded.
+     *
+     * @author Peter H&auml;nsgen
      */
-    private File encodeLargeObject(SHA1 sha1, GitObjectType type, String size)
+    static class EncodedObject
     {
-        try
+        /**
+         * Marks the end of the queue.
+         */
+        static final EncodedObject END = new EncodedObject(null, (byte[]) null, 0);
+
+        private SHA1 sha1;
+        private byte[] content;
+        private GitObjectType type;
+        private long size;
+
+        /**
+         * The loose object file of git, which contains the encoded object already.
+         */
+        private File file;
+
+        /**
+         * The bytes of the memory budget that are reserved for the content.
+         */
+        private long reserved;
+
+        /**
+         * The constructor for an encoded object in memory.
+         */
+        EncodedObject(SHA1 sha1, byte[] content, long reserved)
         {
-            // prepare large uploads in a temporary file
-            File temp = File.createTempFile("gitremotex", ".obj");
+            this.sha1 = sha1;
+            this.content = content;
+            this.reserved = reserved;
+        }
 
-            // git uses zlib compression
-            try (DeflaterOutputStream out = new DeflaterOutputStream(
-                    new BufferedOutputStream(new FileOutputStream(temp))))
-            {
-                String header = type.toLowerName() + ' ' + size;
-                out.write(header.getBytes(StandardCharsets.UTF_8));
-                out.write(0);
+        /**
+         * The constructor for a large object, which will be encoded while uploading.
+         */
+        EncodedObject(SHA1 sha1, GitObjectType type, long size)
+        {
+            this.sha1 = sha1;
+            this.type = type;
+            this.size = size;
+        }
 
-                // append contents from git object
-                git.copyObject(sha1, type, out);
-            }
+        /**
+         * The constructor for a loose object, which can still be encoded like a large object if git packs it before
+         * it is uploaded.
+         */
+        EncodedObject(SHA1 sha1, GitObjectType type, long size, File file)
+        {
+            this(sha1, type, size);
+            this.file = file;
+        }
+    }
+
+    /**
+     * Counts the listed and the finished objects of a push for progress output.
+     *
+     * @author Peter H&auml;nsgen
+     */
+    class PushProgress
+    {
+        private int listedCount;
+        private int doneCount;
+        private boolean listingDone;
+
+        synchronized void listed()
+        {
+            listedCount++;
+        }
 
-            return temp;
+        synchronized void listingDone()
+        {
+            listingDone = true;
+            logger.debug("Found " + listedCount + " objects to push.");
         }
-        catch (IOException ex)
+
+        synchronized void done()
         {
-            throw new GitRemoteException(ex);
+            doneCount++;
+
+            // while git is still listing, the total is not known yet
+            if (listingDone)
+            {
+                int percent = doneCount * 100 / listedCount;
+                logger.progress("Pushing objects: " + percent + "% (" + doneCount + " / " + listedCount + ")");
+            }
+            else
+            {
+                logger.progress("Pushing objects: " + doneCount);
+            }
+        }
+
+        synchronized void finish()
+        {
+            logger.progress("Pushing objects: 100% (" + doneCount + " / " + listedCount + ")");
         }
     }
 
     /**
-     * Decodes the encoded object from the input stream and writes it to the local repository.
-     * Returns the computed hash for the contents which represents the object id.
+     * The first stage of a push, which lists the objects that need to be pushed in the journal, and passes the ones
+     * that are not known to exist at the remote repository from there to the encoders.
+     *
+     * @author Peter H&auml;nsgen
      */
-    private SHA1 decodeObject(InputStream in)
+    class ListObjects implements Callable<Void>
     {
-        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        private Collection<SHA1> commits;
+        private Collection<SHA1> excludes;
+        private boolean resuming;
+        private BlockingQueue<SHA1> listed;
+        private PushProgress progress;
 
-        // git uses zlib compression
-        try (InflaterInputStream inf = new InflaterInputStream(in))
+        /**
+         * The manifests of the commits, available when the stage has finished.
+         */
+        private Map<SHA1, RemoteManifests.Manifest> manifests;
+
+        /**
+         * The constructor.
+         */
+        ListObjects(Collection<SHA1> commits, Collection<SHA1> excludes, boolean resuming, BlockingQueue<SHA1> listed,
+                PushProgress progress)
         {
-            // collect header
-            while (true)
+            this.commits = commits;
+            this.excludes = excludes;
+            this.resuming = resuming;
+            this.listed = listed;
+            this.progress = progress;
+        }
+
+        @Override
+        public Void call() throws InterruptedException
+        {
+            if (!resuming)
             {
-                int ch = inf.read();
+                // objects that are neither known locally nor in the inventory may still exist in old repositories
+                List<SHA1> unknown = new ArrayList<>();
+
+                // the plan is written completely before uploading, so that an interrupted push can always resume
+                manifests = listObjects(commits, excludes, sha1 -> {
+                    progress.listed();
+                    journal.planned(sha1);
+                    if (isKnownRemoteObject(sha1))
+                    {
+                        journal.done(sha1);
+                        progress.done();
+                    }
+                    else if (!inventory.isComplete())
+                    {
+                        unknown.add(sha1);
+                        if (unknown.size() >= EXISTS_BATCH_SIZE)
+                        {
+                            markExistingObjects(unknown, progress);
+                            unknown.clear();
+                        }
+                    }
+                });
+                markExistingObjects(unknown, progress);
+                journal.planComplete();
+            }
 
-                // 0 is the separator between header and content
-                if (ch <= 0)
+            // the objects that have been uploaded already are not even read
+            journal.forEachRemaining(sha1 -> {
+                if (resuming)
                 {
-                    break;
+                    progress.listed();
                 }
+                put(sha1);
+            });
+            progress.listingDone();
 
-                header.write(ch);
+            // one end marker for each encoder
+            for (int i = 0; i < MAX_THREADS; i++)
+            {
+                listed.put(END_OF_OBJECTS);
             }
 
-            String headerString = new String(header.toByteArray(), StandardCharsets.UTF_8);
-            String[] h = headerString.split(" ");
-            GitObjectType type = GitObjectType.valueOf(h[0].toUpperCase());
+            if (resuming)
+            {
+                manifests = listObjects(commits, excludes, sha1 -> {
+                    // only the manifests are needed
+                });
+            }
 
-            return git.writeObject(type, inf);
+            return null;
         }
-        catch (IOException ex)
+
+        private void put(SHA1 sha1)
         {
-            throw new GitRemoteException(ex);
+            try
+            {
+                listed.put(sha1);
+            }
+            catch (InterruptedException ex)
+            {
+                // another stage has failed, this stops git, too
+                Thread.currentThread().interrupt();
+                throw new GitRemoteException(ex);
+            }
         }
     }
 
     /**
-     * Returns the objects that are directly referenced by the given object.
+     * The second stage of a push, which encodes the objects that do not exist yet at the remote repository. Existing
+     * ones have been sorted out by the first stage already.
+     *
+     * @author Peter H&auml;nsgen
      */
-    private Collection<SHA1> getReferencedObjects(SHA1 sha1)
+    class EncodeObjects implements Callable<Void>
     {
-        GitObjectType type = git.getObjectType(sha1);
-        if (GitObjectType.BLOB.equals(type))
-        {
-            // blob objects do not reference any other objects
-            return Collections.emptyList();
-        }
+        private BlockingQueue<SHA1> listed;
+        private BlockingQueue<EncodedObject> encoded;
+        private AtomicInteger runningEncoders;
+        private int uploaderCount;
 
-        byte[] content = git.readObject(sha1, null);
-        String data = new String(content, StandardCharsets.UTF_8).trim();
-
-        List<SHA1> objs = new ArrayList<>();
-        if (GitObjectType.TAG.equals(type))
+        /**
+         * The constructor.
+         */
+        EncodeObjects(BlockingQueue<SHA1> listed, BlockingQueue<EncodedObject> encoded,
+                AtomicInteger runningEncoders, int uploaderCount)
         {
-            // tag objects reference a single object
-            String[] lines = data.split("\n");
-            String[] words = lines[0].split(" ");
-            objs.add(new SHA1(words[1]));
+            this.listed = listed;
+            this.encoded = encoded;
+            this.runningEncoders = runningEncoders;
+            this.uploaderCount = uploaderCount;
         }
-        else if (GitObjectType.COMMIT.equals(type))
-        {
-            // commit objects reference a tree and zero or more parents
-            String[] lines = data.split("\n");
-            String[] words = lines[0].split(" ");
-            String tree = words[1];
 
-            objs.add(new SHA1(tree));
-
-            for (int i = 1; i < lines.length; i++)
+        @Override
+        public Void call() throws InterruptedException
+        {
+            while (true)
             {
-                String line = lines[i];
-                if (line.startsWith("parent "))
-                {
-                    String[] w = line.split(" ");
-                    objs.add(new SHA1(w[1]));
-                }
-                else
+                SHA1 sha1 = listed.take();
+                if (sha1 == END_OF_OBJECTS)
                 {
                     break;
                 }
+
+                encoded.put(encodeObject(sha1));
             }
-        }
-        else if (GitObjectType.TREE.equals(type))
-        {
-            // tree objects reference zero or more trees and blobs, or submodules
-            if (data == null)
-            {
-                // empty tree
-                return Collections.emptyList();
-            }
-            String[] lines = data.split("\n");
-            // submodules have the mode "160000" and the type "commit", we filter them out
-            // because there is nothing to download
-            for (String line : lines)
+
+            // the last encoder tells the uploaders that there is nothing more to come
+            if (runningEncoders.decrementAndGet() == 0)
             {
-                if (!line.startsWith("160000 commit "))
+                for (int i = 0; i < uploaderCount; i++)
                 {
-                    String[] w = line.split("\\s");
-                    objs.add(new SHA1(w[2]));
+                    encoded.put(EncodedObject.END);
                 }
             }
-        }
-        else
-        {
-            throw new GitRemoteException("Unexpected type: " + type);
-        }
 
-        return objs;
+            return null;
+        }
     }
 
     /**
-     * A task for doing an upload in a concurrent thread.
-     * 
+     * The last stage of a push, which uploads the encoded objects.
+     *
      * @author Peter H&auml;nsgen
      */
-    class UploadObject implements Runnable
+    class UploadObjects implements Callable<Void>
     {
-        private SHA1 sha1;
+        private BlockingQueue<EncodedObject> encoded;
+        private PushProgress progress;
 
         /**
          * The constructor.
          */
-        public UploadObject(SHA1 sha1)
+        UploadObjects(BlockingQueue<EncodedObject> encoded, PushProgress progress)
         {
-            this.sha1 = sha1;
+            this.encoded = encoded;
+            this.progress = progress;
         }
 
         @Override
-        public void run()
+        public Void call() throws InterruptedException
         {
-            // skip objects that may have been uploaded earlier in failed push
-            if (!objectExists(sha1))
+            while (true)
             {
-                uploadObject(sha1);
+                EncodedObject object = encoded.take();
+                if (object == EncodedObject.END)
+                {
+                    break;
+                }
+
+                // small objects are collected in bundles, which are uploaded when they are full
+                if (bundleLayout && (object.content != null)
+                        && (object.content.length <= RemoteBundles.MAX_OBJECT_SIZE))
+                {
+                    // bundles are limited by their own size
+                    memoryBudget.release(object.reserved);
+
+                    uploadBundle(bundles.add(object.sha1, object.content), progress);
+                    continue;
+                }
+
+                uploadObject(object);
+                markPushed(object.sha1, progress);
+                journal.flush();
             }
+
+            return null;
         }
     }
 
     /**
-     * Performs a fetch for a single object in an asynchronous operation.
-     * Returns the references of the object for subsequent retrieval.
-     * 
+     * Decides in which order the objects of a fetch are downloaded. The graph can only be discovered through commits,
+     * tags and trees, so they are always submitted before blobs. Blobs run in a lane of their own, which never takes
+     * more than half of the storage concurrency, so that large blobs cannot hold up the discovery of the graph.
+     *
+     * Only about as many downloads as the storage concurrency allows are started at the same time, the others wait in
+     * the queues here, where they can still be overtaken. Running downloads only occupy a thread while decoding.
+     *
      * @author Peter H&auml;nsgen
      */
-    class FetchTask implements Callable<Collection<SHA1>>
+    class FetchScheduler
     {
-        private SHA1 sha1;
+        /**
+         * Whether completed downloads are recorded in fetchTodo and fetchDone.
+         */
+        private boolean tracked;
+
+        private BlockingQueue<CompletableFuture<Map<SHA1, GitObjectType>>> completed;
+        private Map<CompletableFuture<Map<SHA1, GitObjectType>>, SHA1> running;
+        private Set<CompletableFuture<Map<SHA1, GitObjectType>>> runningBlobs;
+
+        /**
+         * Objects of unknown type can still turn out to be blobs, so they must be removable.
+         */
+        private Set<SHA1> graphQueue;
+        private Deque<SHA1> blobQueue;
 
         /**
          * The constructor.
          */
-        private FetchTask(SHA1 sha1)
+        FetchScheduler(boolean tracked)
         {
-            this.sha1 = sha1;
+            this.tracked = tracked;
+
+            completed = new LinkedBlockingQueue<>();
+            running = new HashMap<>();
+            runningBlobs = new HashSet<>();
+
+            graphQueue = new LinkedHashSet<>();
+            blobQueue = new ArrayDeque<>();
         }
 
-        @Override
-        public Collection<SHA1> call()
+        /**
+         * Queues an object for downloading, the type is null if it is not known.
+         */
+        void add(SHA1 sha1, GitObjectType type)
         {
-            Collection<SHA1> references = null;
+            if (GitObjectType.BLOB.equals(type))
+            {
+                blobQueue.add(sha1);
+            }
+            else
+            {
+                graphQueue.add(sha1);
+            }
+        }
 
-            if (git.objectExists(sha1))
+        /**
+         * Moves queued objects of unknown type to the blob lane, if the given types say they are blobs.
+         */
+        void classify(Map<SHA1, GitObjectType> types)
+        {
+            for (Entry<SHA1, GitObjectType> entry : types.entrySet())
             {
-                if (sha1.equals(SHA1.EMPTY_TREE_HASH))
+                if (GitObjectType.BLOB.equals(entry.getValue()) && graphQueue.remove(entry.getKey()))
                 {
-                    // git.objectExists() returns true for the empty
-                    // tree hash even if it's not present in the object
-                    // store. Everything will work fine in this situation,
-                    // but "git fsck" will complain if it's not present, so
-                    // we explicitly add it to avoid that.
-                    git.writeObject(GitObjectType.TREE, new byte[0]);
+                    blobQueue.add(entry.getKey());
                 }
+            }
+        }
+
+        /**
+         * Submits queued objects as long as the storage concurrency allows.
+         */
+        void submit()
+        {
+            // tasks also spend time in git, and a few waiting ones keep the limiter saturated so that it can grow
+            int limit = limiter.getLimit();
+            int blobLimit = Math.max(1, limit / 2);
 
-                if (!git.historyExists(sha1))
+            while (running.size() < 2 * limit)
+            {
+                if (!graphQueue.isEmpty())
+                {
+                    Iterator<SHA1> next = graphQueue.iterator();
+                    SHA1 sha1 = next.next();
+                    next.remove();
+                    start(sha1);
+                }
+                else if (!blobQueue.isEmpty() && (runningBlobs.size() < blobLimit))
+                {
+                    runningBlobs.add(start(blobQueue.poll()));
+                }
+                else
                 {
-                    // this can only happen in the case of aborted fetches
-                    // that are resumed later
-                    // resolve them too
-                    references = getReferencedObjects(sha1);
+                    break;
                 }
             }
-            else
+        }
+
+        private CompletableFuture<Map<SHA1, GitObjectType>> start(SHA1 sha1)
+        {
+            // new object, get it and resolve all its references on the way
+            CompletableFuture<Map<SHA1, GitObjectType>> task = downloadObjectAsync(sha1);
+            running.put(task, sha1);
+            task.whenComplete((references, ex) -> completed.add(task));
+
+            return task;
+        }
+
+        /**
+         * Returns true if there is nothing running or queued.
+         */
+        boolean isEmpty()
+        {
+            return running.isEmpty() && graphQueue.isEmpty() && blobQueue.isEmpty();
+        }
+
+        /**
+         * Waits for the next task to complete and returns the references of its object. If the task has failed, all
+         * other tasks are cancelled.
+         */
+        Map<SHA1, GitObjectType> take()
+        {
+            try
             {
-                // new object, get it and resolve all its references
-                downloadObject(sha1);
+                CompletableFuture<Map<SHA1, GitObjectType>> task = completed.take();
+                runningBlobs.remove(task);
 
-                references = getReferencedObjects(sha1);
-            }
+                SHA1 sha1 = running.remove(task);
+                if (tracked)
+                {
+                    fetchTodo.remove(sha1);
+                    fetchDone.add(sha1);
+                }
 
-            return references != null ? references : Collections.emptyList();
+                return task.get();
+            }
+            catch (InterruptedException | ExecutionException e)
+            {
+                // the fetch fails anyway, so there is no need to wait for the other downloads
+                for (CompletableFuture<Map<SHA1, GitObjectType>> task : running.keySet())
+                {
+                    task.cancel(true);
+                }
+                throw new GitRemoteException(e);
+            }
         }
     }
 }
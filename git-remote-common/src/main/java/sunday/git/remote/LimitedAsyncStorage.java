@@ -0,0 +1,128 @@
+package sunday.git.remote;
+
+import java.io.File;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * The asynchronous counterpart of the {@link LimitedStorage}. Operations that may not start yet wait in the limiter
+ * instead of blocking a thread, and throttled operations are repeated after a delay.
+ *
+ * Note that for downloaded streams only opening the stream is limited, reading the content is not.
+ *
+ * @author Peter H&auml;nsgen
+ */
+public class LimitedAsyncStorage implements AsyncStorage
+{
+    private static final int MAX_RETRIES = 5;
+    private static final long RETRY_DELAY_MILLIS = 100;
+
+    private AsyncStorage storage;
+    private ConcurrencyLimiter limiter;
+
+    /**
+     * The constructor.
+     */
+    public LimitedAsyncStorage(AsyncStorage storage, ConcurrencyLimiter limiter)
+    {
+        this.storage = storage;
+        this.limiter = limiter;
+    }
+
+    @Override
+    public CompletableFuture<Boolean> fileExists(Path path)
+    {
+        return execute(() -> storage.fileExists(path));
+    }
+
+    @Override
+    public CompletableFuture<Void> uploadFile(Path path, File file)
+    {
+        return execute(() -> storage.uploadFile(path, file));
+    }
+
+    @Override
+    public CompletableFuture<Void> uploadFile(Path path, byte[] contents)
+    {
+        return execute(() -> storage.uploadFile(path, contents));
+    }
+
+    @Override
+    public CompletableFuture<byte[]> downloadFile(Path path)
+    {
+        return execute(() -> storage.downloadFile(path));
+    }
+
+    @Override
+    public CompletableFuture<InputStream> downloadStream(Path path)
+    {
+        return execute(() -> storage.downloadStream(path));
+    }
+
+    @Override
+    public CompletableFuture<Void> deleteFile(Path path)
+    {
+        return execute(() -> storage.deleteFile(path));
+    }
+
+    @Override
+    public CompletableFuture<Collection<Path>> listFiles(Path dir)
+    {
+        return execute(() -> storage.listFiles(dir));
+    }
+
+    @Override
+    public boolean isThrottled(Throwable ex)
+    {
+        return storage.isThrottled(ex);
+    }
+
+    private <T> CompletableFuture<T> execute(Supplier<CompletableFuture<T>> operation)
+    {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        execute(operation, result, 0);
+        return result;
+    }
+
+    private <T> void execute(Supplier<CompletableFuture<T>> operation, CompletableFuture<T> result, int retry)
+    {
+        limiter.acquire(() -> {
+            long start = System.nanoTime();
+
+            CompletableFuture<T> future;
+            try
+            {
+                future = operation.get();
+            }
+            catch (RuntimeException ex)
+            {
+                future = CompletableFuture.failedFuture(ex);
+            }
+
+            future.whenComplete((value, ex) -> {
+                boolean throttled = (ex != null) && storage.isThrottled(ex);
+                limiter.release(System.nanoTime() - start, throttled);
+
+                if (ex == null)
+                {
+                    result.complete(value);
+                }
+                else if (throttled && (retry < MAX_RETRIES))
+                {
+                    Executor delayed = CompletableFuture.delayedExecutor(RETRY_DELAY_MILLIS << retry,
+                            TimeUnit.MILLISECONDS);
+                    delayed.execute(() -> execute(operation, result, retry + 1));
+                }
+                else
+                {
+                    result.completeExceptionally(ex);
+                }
+            });
+        });
+    }
+}
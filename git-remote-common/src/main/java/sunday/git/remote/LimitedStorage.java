@@ -0,0 +1,194 @@
+package sunday.git.remote;
+
+import java.io.File;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Supplier;
+
+/**
+ * A storage that passes all operations to another storage, but only as many at the same time as the concurrency
+ * limiter allows. Operations that have been rejected by the storage because of throttling are repeated a few times
+ * after waiting, while the limiter reduces the concurrency.
+ *
+ * Note that for downloaded streams only opening the stream is limited, reading the content is not.
+ *
+ * @author Peter H&auml;nsgen
+ */
+public class LimitedStorage implements Storage
+{
+    private static final int MAX_RETRIES = 5;
+    private static final long RETRY_DELAY_MILLIS = 100;
+
+    private Storage storage;
+    private ConcurrencyLimiter limiter;
+
+    /**
+     * The constructor.
+     */
+    public LimitedStorage(Storage storage, ConcurrencyLimiter limiter)
+    {
+        this.storage = storage;
+        this.limiter = limiter;
+    }
+
+    @Override
+    public boolean fileExists(Path path)
+    {
+        return execute(() -> storage.fileExists(path));
+    }
+
+    @Override
+    public void uploadFile(Path path, File file)
+    {
+        execute(() -> {
+            storage.uploadFile(path, file);
+            return null;
+        });
+    }
+
+    @Override
+    public void uploadFile(Path path, byte[] contents)
+    {
+        execute(() -> {
+            storage.uploadFile(path, contents);
+            return null;
+        });
+    }
+
+    @Override
+    public byte[] downloadFile(Path path)
+    {
+        return execute(() -> storage.downloadFile(path));
+    }
+
+    @Override
+    public InputStream downloadStream(Path path)
+    {
+        return execute(() -> storage.downloadStream(path));
+    }
+
+    @Override
+    public void deleteFile(Path path)
+    {
+        execute(() -> {
+            storage.deleteFile(path);
+            return null;
+        });
+    }
+
+    @Override
+    public Collection<Path> listFiles(Path dir)
+    {
+        return execute(() -> storage.listFiles(dir));
+    }
+
+    @Override
+    public void uploadStream(Path path, ContentWriter writer)
+    {
+        // the time depends on the size and on the writer, so it is no latency sample
+        executeBatch(() -> {
+            storage.uploadStream(path, writer);
+            return null;
+        });
+    }
+
+    @Override
+    public Set<Path> filesExist(Collection<Path> paths)
+    {
+        return executeBatch(() -> storage.filesExist(paths));
+    }
+
+    @Override
+    public Map<Path, byte[]> downloadFiles(Collection<Path> paths)
+    {
+        return executeBatch(() -> storage.downloadFiles(paths));
+    }
+
+    @Override
+    public void deleteFiles(Collection<Path> paths)
+    {
+        executeBatch(() -> {
+            storage.deleteFiles(paths);
+            return null;
+        });
+    }
+
+    @Override
+    public boolean isThrottled(RuntimeException ex)
+    {
+        return storage.isThrottled(ex);
+    }
+
+    private <T> T execute(Supplier<T> operation)
+    {
+        return execute(operation, true);
+    }
+
+    /**
+     * Executes a batch or a streaming upload as a single operation, but its time is not taken as a latency sample.
+     */
+    private <T> T executeBatch(Supplier<T> operation)
+    {
+        return execute(operation, false);
+    }
+
+    private <T> T execute(Supplier<T> operation, boolean sampled)
+    {
+        for (int retry = 0;; retry++)
+        {
+            try
+            {
+                limiter.acquire();
+            }
+            catch (InterruptedException ex)
+            {
+                Thread.currentThread().interrupt();
+                throw new GitRemoteException(ex);
+            }
+
+            long start = System.nanoTime();
+            boolean throttled = false;
+            try
+            {
+                return operation.get();
+            }
+            catch (RuntimeException ex)
+            {
+                throttled = storage.isThrottled(ex);
+                if (!throttled || (retry >= MAX_RETRIES))
+                {
+                    throw ex;
+                }
+            }
+            finally
+            {
+                if (sampled)
+                {
+                    limiter.release(System.nanoTime() - start, throttled);
+                }
+                else
+                {
+                    limiter.release(throttled);
+                }
+            }
+
+            sleep(RETRY_DELAY_MILLIS << retry);
+        }
+    }
+
+    private void sleep(long millis)
+    {
+        try
+        {
+            Thread.sleep(millis);
+        }
+        catch (InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+            throw new GitRemoteException(ex);
+        }
+    }
+}
@@ -0,0 +1,284 @@
+package sunday.git.remote;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Writes an object that comes in the encoding of loose objects directly into the object directory of a git
+ * repository, without starting git. The compressed bytes are written to a temporary file as they are. On the way they
+ * are inflated, but only for computing the object id and for parsing the references. When the id matches, the file
+ * is renamed to its final name in a single step, like git does it, so that git never sees incomplete objects.
+ *
+ * @author Peter H&auml;nsgen
+ */
+public class LooseObjectWriter
+{
+    private static final int BUFFER_SIZE = 65536;
+
+    /**
+     * Object headers like "commit 1234" are short, anything longer is broken.
+     */
+    private static final int MAX_HEADER_SIZE = 64;
+
+    private Git target;
+    private SHA1 sha1;
+    private MemoryBudget memoryBudget;
+
+    private MessageDigest digest;
+
+    private ByteArrayOutputStream header;
+    private GitObjectType type;
+    private long size;
+    private long received;
+
+    /**
+     * The content of commits, trees and tags, if their references are needed.
+     */
+    private byte[] content;
+    private long reserved;
+
+    /**
+     * The constructor.
+     */
+    public LooseObjectWriter(Git target, SHA1 sha1, MemoryBudget memoryBudget)
+    {
+        this.target = target;
+        this.sha1 = sha1;
+        this.memoryBudget = memoryBudget;
+    }
+
+    /**
+     * Writes the encoded object from the input stream, which is closed afterwards. If references is not null, the
+     * objects that are directly referenced by the object are added to it.
+     */
+    public void write(InputStream in, Map<SHA1, GitObjectType> references)
+    {
+        File file = target.getLooseObjectFile(sha1);
+        Path temp = null;
+
+        try (InputStream source = in)
+        {
+            digest = MessageDigest.getInstance("SHA-1");
+            header = new ByteArrayOutputStream();
+
+            Path dir = file.getParentFile().toPath();
+            Files.createDirectories(dir);
+
+            // git removes such files if they are left over
+            temp = Files.createTempFile(dir, "tmp_obj_", "");
+            try (OutputStream out = Files.newOutputStream(temp))
+            {
+                copy(source, out, references != null);
+            }
+
+            SHA1 computedSha1 = SHA1.fromBytes(digest.digest(), 0);
+            if (!computedSha1.equals(sha1))
+            {
+                throw new GitRemoteException(
+                        "Provided and computed hashes do not match: " + sha1 + " != " + computedSha1);
+            }
+
+            if ((references != null) && (content != null))
+            {
+                references.putAll(GitObjectParser.getReferences(type, content));
+            }
+
+            moveIntoPlace(temp, file.toPath());
+            temp = null;
+        }
+        catch (IOException | NoSuchAlgorithmException ex)
+        {
+            throw new GitRemoteException(ex);
+        }
+        catch (InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+            throw new GitRemoteException(ex);
+        }
+        finally
+        {
+            memoryBudget.release(reserved);
+            reserved = 0;
+            content = null;
+
+            if (temp != null)
+            {
+                try
+                {
+                    Files.deleteIfExists(temp);
+                }
+                catch (IOException ex)
+                {
+                    // git cleans up temporary objects, too
+                }
+            }
+        }
+    }
+
+    /**
+     * Copies the compressed bytes to the output stream, and inflates them on the way.
+     */
+    private void copy(InputStream in, OutputStream out, boolean parseReferences)
+            throws IOException, InterruptedException
+    {
+        byte[] compressed = new byte[BUFFER_SIZE];
+        byte[] inflated = new byte[BUFFER_SIZE];
+
+        Inflater inflater = new Inflater();
+        try
+        {
+            while (!inflater.finished())
+            {
+                if (inflater.needsInput())
+                {
+                    int n = in.read(compressed);
+                    if (n < 0)
+                    {
+                        throw new GitRemoteException("Unexpected end of object: " + sha1);
+                    }
+
+                    out.write(compressed, 0, n);
+                    inflater.setInput(compressed, 0, n);
+                }
+
+                int n = inflater.inflate(inflated);
+                if ((n == 0) && inflater.needsDictionary())
+                {
+                    throw new GitRemoteException("Invalid compression of object: " + sha1);
+                }
+
+                inflated(inflated, n, parseReferences);
+            }
+
+            // git rejects loose objects with garbage at the end
+            if ((inflater.getRemaining() > 0) || (in.read() >= 0))
+            {
+                throw new GitRemoteException("Unexpected data after object: " + sha1);
+            }
+        }
+        catch (DataFormatException ex)
+        {
+            throw new GitRemoteException("Invalid compression of object: " + sha1, ex);
+        }
+        finally
+        {
+            inflater.end();
+        }
+
+        if ((type == null) || (received != size))
+        {
+            throw new GitRemoteException("Unexpected size of object: " + sha1);
+        }
+    }
+
+    /**
+     * Processes the next inflated bytes, which start with the header.
+     */
+    private void inflated(byte[] bytes, int length, boolean parseReferences) throws InterruptedException
+    {
+        digest.update(bytes, 0, length);
+
+        int offset = 0;
+        if (type == null)
+        {
+            // 0 is the separator between header and content
+            while ((offset < length) && (bytes[offset] != 0))
+            {
+                header.write(bytes[offset++]);
+            }
+
+            if (header.size() > MAX_HEADER_SIZE)
+            {
+                throw new GitRemoteException("Invalid header of object: " + sha1);
+            }
+
+            if (offset == length)
+            {
+                return;
+            }
+
+            parseHeader(parseReferences);
+            offset++;
+        }
+
+        int n = length - offset;
+        if (received + n > size)
+        {
+            throw new GitRemoteException("Unexpected size of object: " + sha1);
+        }
+
+        if (content != null)
+        {
+            System.arraycopy(bytes, offset, content, (int) received, n);
+        }
+        received += n;
+    }
+
+    /**
+     * Parses a header like "tree 1234", and prepares the content if the references are needed.
+     */
+    private void parseHeader(boolean parseReferences) throws InterruptedException
+    {
+        String[] h = new String(header.toByteArray(), StandardCharsets.UTF_8).split(" ");
+        try
+        {
+            type = GitObjectType.valueOf(h[0].toUpperCase());
+            size = Long.parseLong(h[1]);
+        }
+        catch (IllegalArgumentException | ArrayIndexOutOfBoundsException ex)
+        {
+            throw new GitRemoteException("Invalid header of object: " + sha1);
+        }
+
+        // blobs do not reference other objects, and only they can be large
+        if (parseReferences && !GitObjectType.BLOB.equals(type))
+        {
+            if (size > Integer.MAX_VALUE)
+            {
+                throw new GitRemoteException("Object too large: " + sha1);
+            }
+
+            reserved = memoryBudget.acquire(size);
+            content = new byte[(int) size];
+        }
+    }
+
+    /**
+     * Moves the complete object to its final name. Existing objects are never replaced, they have the same content.
+     */
+    private void moveIntoPlace(Path temp, Path path) throws IOException
+    {
+        // git stores objects read-only
+        try
+        {
+            Files.setPosixFilePermissions(temp, PosixFilePermissions.fromString("r--r--r--"));
+        }
+        catch (UnsupportedOperationException ex)
+        {
+            // not on this file system
+        }
+
+        try
+        {
+            Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (FileAlreadyExistsException ex)
+        {
+            Files.deleteIfExists(temp);
+        }
+    }
+}
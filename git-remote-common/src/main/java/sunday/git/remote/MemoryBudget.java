@@ -0,0 +1,114 @@
+package sunday.git.remote;
+
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Limits the number of bytes of object contents that are kept in memory at the same time. Tasks reserve the size of
+ * their object before they read it into memory, and wait while the budget is used up by other tasks.
+ *
+ * Only the contents of single objects that are encoded, decoded or parsed in memory are counted. Transfer buffers of
+ * the storages, like the parts of large S3 files or the cached bundle containers, have fixed limits of their own.
+ *
+ * An object that is larger than the whole budget reserves all of it, so it waits until nothing else is in memory and
+ * then runs alone. Like the {@link ConcurrencyLimiter}, waiting is done with a lock instead of a monitor, so that
+ * waiting virtual threads do not block their carrier threads.
+ *
+ * @author Peter H&auml;nsgen
+ */
+public class MemoryBudget
+{
+    private long capacity;
+    private long used;
+
+    private ReentrantLock lock;
+    private Condition available;
+
+    /**
+     * The constructor.
+     */
+    public MemoryBudget(long capacity)
+    {
+        if (capacity < 1)
+        {
+            throw new IllegalArgumentException("Invalid memory budget: " + capacity);
+        }
+
+        this.capacity = capacity;
+
+        lock = new ReentrantLock();
+        available = lock.newCondition();
+    }
+
+    public long getCapacity()
+    {
+        return capacity;
+    }
+
+    /**
+     * Returns the number of bytes that are reserved at the moment.
+     */
+    public long getUsed()
+    {
+        lock.lock();
+        try
+        {
+            return used;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits until the given number of bytes fits into the budget and reserves them. Returns the number of bytes that
+     * have actually been reserved, which must be passed to release later.
+     */
+    public long acquire(long bytes) throws InterruptedException
+    {
+        long reserved = Math.max(0, Math.min(bytes, capacity));
+        if (reserved == 0)
+        {
+            return 0;
+        }
+
+        lock.lockInterruptibly();
+        try
+        {
+            while (used + reserved > capacity)
+            {
+                available.await();
+            }
+
+            used += reserved;
+            return reserved;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns bytes that have been reserved before.
+     */
+    public void release(long reserved)
+    {
+        if (reserved == 0)
+        {
+            return;
+        }
+
+        lock.lock();
+        try
+        {
+            used -= reserved;
+            available.signalAll();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+}
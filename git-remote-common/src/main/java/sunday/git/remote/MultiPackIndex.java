@@ -0,0 +1,247 @@
+package sunday.git.remote;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.PriorityQueue;
+
+/**
+ * An index over several packs in the remote repository. It is a single table of all object ids of the packs, sorted
+ * by object id, which maps each object to the pack that contains it and to its offset within that pack. Readers only
+ * need to download this one file instead of the indexes of all packs, and need a single lookup per object. The binary
+ * format looks like:
+ *
+ * <pre>
+ * "RXMI" version(int) packCount(int) packName(UTF)... objectCount(int)
+ * objectIds(20 bytes each) packNumbers(int each) offsets(long each)
+ * </pre>
+ *
+ * @author Peter H&auml;nsgen
+ */
+public class MultiPackIndex
+{
+    private static final int MAGIC = 0x52584d49;
+    private static final int VERSION = 1;
+
+    private List<String> packNames;
+    private int count;
+    private byte[] ids;
+    private int[] packNumbers;
+    private long[] offsets;
+
+    /**
+     * The constructor, merges the indexes of the given packs. If an object is contained in more than one pack, the
+     * first pack wins.
+     */
+    public MultiPackIndex(Map<String, PackIndex> packs)
+    {
+        packNames = new ArrayList<>(packs.keySet());
+
+        int total = 0;
+        List<PackIndex> indexes = new ArrayList<>();
+        for (Entry<String, PackIndex> entry : packs.entrySet())
+        {
+            indexes.add(entry.getValue());
+            total += entry.getValue().size();
+        }
+
+        ids = new byte[total * 20];
+        packNumbers = new int[total];
+        offsets = new long[total];
+
+        // the pack indexes are sorted already, so a k-way merge does the job
+        int[] positions = new int[indexes.size()];
+        PriorityQueue<Integer> queue = new PriorityQueue<>((a, b) -> {
+            int cmp = PackIndex.compare(indexes.get(a), positions[a], indexes.get(b), positions[b]);
+            return (cmp != 0) ? cmp : Integer.compare(a, b);
+        });
+
+        for (int i = 0; i < indexes.size(); i++)
+        {
+            if (indexes.get(i).size() > 0)
+            {
+                queue.add(i);
+            }
+        }
+
+        while (!queue.isEmpty())
+        {
+            int pack = queue.poll();
+            PackIndex index = indexes.get(pack);
+            int position = positions[pack];
+
+            index.copySha1(position, ids, count * 20);
+            boolean duplicate = (count > 0)
+                    && Arrays.equals(ids, (count - 1) * 20, count * 20, ids, count * 20, count * 20 + 20);
+            if (!duplicate)
+            {
+                packNumbers[count] = pack;
+                offsets[count] = index.getOffset(position);
+                count++;
+            }
+
+            positions[pack]++;
+            if (positions[pack] < index.size())
+            {
+                queue.add(pack);
+            }
+        }
+    }
+
+    /**
+     * The constructor, parses a multi-pack index that has been written by toBytes().
+     */
+    public MultiPackIndex(byte[] content)
+    {
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(content)))
+        {
+            if ((in.readInt() != MAGIC) || (in.readInt() != VERSION))
+            {
+                throw new GitRemoteException("Unsupported multi-pack index version.");
+            }
+
+            int packCount = in.readInt();
+            packNames = new ArrayList<>(packCount);
+            for (int i = 0; i < packCount; i++)
+            {
+                packNames.add(in.readUTF());
+            }
+
+            count = in.readInt();
+            ids = new byte[count * 20];
+            in.readFully(ids);
+
+            packNumbers = new int[count];
+            for (int i = 0; i < count; i++)
+            {
+                packNumbers[i] = in.readInt();
+            }
+
+            offsets = new long[count];
+            for (int i = 0; i < count; i++)
+            {
+                offsets[i] = in.readLong();
+            }
+        }
+        catch (IOException io)
+        {
+            throw new GitRemoteException(io);
+        }
+    }
+
+    /**
+     * Returns the binary representation for storing the index.
+     */
+    public byte[] toBytes()
+    {
+        ByteArrayOutputStream data = new ByteArrayOutputStream(count * 32 + 1024);
+
+        try (DataOutputStream out = new DataOutputStream(data))
+        {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+
+            out.writeInt(packNames.size());
+            for (String name : packNames)
+            {
+                out.writeUTF(name);
+            }
+
+            out.writeInt(count);
+            out.write(ids, 0, count * 20);
+
+            for (int i = 0; i < count; i++)
+            {
+                out.writeInt(packNumbers[i]);
+            }
+
+            for (int i = 0; i < count; i++)
+            {
+                out.writeLong(offsets[i]);
+            }
+        }
+        catch (IOException io)
+        {
+            throw new GitRemoteException(io);
+        }
+
+        return data.toByteArray();
+    }
+
+    /**
+     * Returns the names of the packs covered by this index.
+     */
+    public List<String> getPackNames()
+    {
+        return Collections.unmodifiableList(packNames);
+    }
+
+    /**
+     * Returns the number of distinct objects in all packs.
+     */
+    public int size()
+    {
+        return count;
+    }
+
+    /**
+     * Returns the object id at the given position. Object ids are sorted.
+     */
+    public SHA1 getSha1(int i)
+    {
+        return SHA1.fromBytes(ids, i * 20);
+    }
+
+    /**
+     * Returns the name of the pack that contains the given object, or null if none of the packs contains it.
+     */
+    public String findPack(SHA1 sha1)
+    {
+        int i = indexOf(sha1);
+        return (i >= 0) ? packNames.get(packNumbers[i]) : null;
+    }
+
+    /**
+     * Returns the offset of the given object in the pack that contains it, or -1 if none of the packs contains it.
+     */
+    public long findOffset(SHA1 sha1)
+    {
+        int i = indexOf(sha1);
+        return (i >= 0) ? offsets[i] : -1;
+    }
+
+    private int indexOf(SHA1 sha1)
+    {
+        byte[] key = sha1.toBytes();
+
+        int low = 0;
+        int high = count - 1;
+        while (low <= high)
+        {
+            int mid = (low + high) >>> 1;
+            int cmp = Arrays.compareUnsigned(ids, mid * 20, mid * 20 + 20, key, 0, 20);
+            if (cmp < 0)
+            {
+                low = mid + 1;
+            }
+            else if (cmp > 0)
+            {
+                high = mid - 1;
+            }
+            else
+            {
+                return mid;
+            }
+        }
+
+        return -1;
+    }
+}
@@ -0,0 +1,309 @@
+package sunday.git.remote;
+
+import java.util.AbstractSet;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * A set of object ids with open addressing, which keeps the ids in primitive arrays instead of one object per entry.
+ * This takes 30 to 60 bytes per id, compared to more than 100 bytes in a HashSet, so that sets of millions of objects
+ * fit into the heap. The ids are created again when iterating.
+ *
+ * Removing ids is supported, but not while iterating. The set is not thread-safe.
+ *
+ * @author Peter H&auml;nsgen
+ */
+public class ObjectIdSet extends AbstractSet<SHA1>
+{
+    private static final int MIN_CAPACITY = 16;
+
+    /**
+     * The all-zero id marks free slots, so it is kept separately.
+     */
+    private boolean containsZero;
+
+    private long[] w0;
+    private long[] w1;
+    private int[] w2;
+
+    private int size;
+    private int mask;
+
+    /**
+     * The constructor.
+     */
+    public ObjectIdSet()
+    {
+        this(MIN_CAPACITY);
+    }
+
+    /**
+     * The constructor, for the expected number of ids.
+     */
+    public ObjectIdSet(int expectedSize)
+    {
+        allocate(capacityFor(expectedSize));
+    }
+
+    /**
+     * The constructor, which adds all the given ids.
+     */
+    public ObjectIdSet(Collection<SHA1> ids)
+    {
+        this(ids.size());
+        addAll(ids);
+    }
+
+    private static int capacityFor(int expectedSize)
+    {
+        // keep the load factor below 2/3
+        int capacity = MIN_CAPACITY;
+        while (capacity < expectedSize + expectedSize / 2 + 1)
+        {
+            capacity <<= 1;
+        }
+
+        return capacity;
+    }
+
+    private void allocate(int capacity)
+    {
+        w0 = new long[capacity];
+        w1 = new long[capacity];
+        w2 = new int[capacity];
+        mask = capacity - 1;
+    }
+
+    private static boolean isZero(SHA1 sha1)
+    {
+        return (sha1.w0 == 0) && (sha1.w1 == 0) && (sha1.w2 == 0);
+    }
+
+    private boolean isFree(int slot)
+    {
+        return (w0[slot] == 0) && (w1[slot] == 0) && (w2[slot] == 0);
+    }
+
+    private int slotOf(long hi)
+    {
+        // the bits of a hash are evenly distributed already
+        return (int) (hi ^ (hi >>> 32)) & mask;
+    }
+
+    /**
+     * Returns the slot of the id, or the free slot where it would be stored.
+     */
+    private int find(SHA1 sha1)
+    {
+        int slot = slotOf(sha1.w0);
+        while (!isFree(slot))
+        {
+            if ((w0[slot] == sha1.w0) && (w1[slot] == sha1.w1) && (w2[slot] == sha1.w2))
+            {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        return slot;
+    }
+
+    @Override
+    public boolean contains(Object object)
+    {
+        if (!(object instanceof SHA1))
+        {
+            return false;
+        }
+
+        SHA1 sha1 = (SHA1) object;
+        if (isZero(sha1))
+        {
+            return containsZero;
+        }
+
+        return !isFree(find(sha1));
+    }
+
+    @Override
+    public boolean add(SHA1 sha1)
+    {
+        if (isZero(sha1))
+        {
+            if (containsZero)
+            {
+                return false;
+            }
+
+            containsZero = true;
+            size++;
+            return true;
+        }
+
+        int slot = find(sha1);
+        if (!isFree(slot))
+        {
+            return false;
+        }
+
+        w0[slot] = sha1.w0;
+        w1[slot] = sha1.w1;
+        w2[slot] = sha1.w2;
+        size++;
+
+        if (3 * size > 2 * (mask + 1))
+        {
+            grow();
+        }
+
+        return true;
+    }
+
+    private void grow()
+    {
+        long[] oldW0 = w0;
+        long[] oldW1 = w1;
+        int[] oldW2 = w2;
+        allocate(oldW0.length * 2);
+
+        for (int i = 0; i < oldW0.length; i++)
+        {
+            if ((oldW0[i] != 0) || (oldW1[i] != 0) || (oldW2[i] != 0))
+            {
+                int slot = slotOf(oldW0[i]);
+                while (!isFree(slot))
+                {
+                    slot = (slot + 1) & mask;
+                }
+
+                w0[slot] = oldW0[i];
+                w1[slot] = oldW1[i];
+                w2[slot] = oldW2[i];
+            }
+        }
+    }
+
+    @Override
+    public boolean remove(Object object)
+    {
+        if (!(object instanceof SHA1))
+        {
+            return false;
+        }
+
+        SHA1 sha1 = (SHA1) object;
+        if (isZero(sha1))
+        {
+            if (!containsZero)
+            {
+                return false;
+            }
+
+            containsZero = false;
+            size--;
+            return true;
+        }
+
+        int slot = find(sha1);
+        if (isFree(slot))
+        {
+            return false;
+        }
+
+        // move the following entries of the same probe sequence back, so that no gaps remain
+        int gap = slot;
+        int next = (gap + 1) & mask;
+        while (!isFree(next))
+        {
+            int home = slotOf(w0[next]);
+            if (((next - home) & mask) >= ((next - gap) & mask))
+            {
+                w0[gap] = w0[next];
+                w1[gap] = w1[next];
+                w2[gap] = w2[next];
+                gap = next;
+            }
+            next = (next + 1) & mask;
+        }
+
+        w0[gap] = 0;
+        w1[gap] = 0;
+        w2[gap] = 0;
+        size--;
+
+        return true;
+    }
+
+    @Override
+    public boolean removeAll(Collection<?> objects)
+    {
+        boolean changed = false;
+        for (Object object : objects)
+        {
+            changed |= remove(object);
+        }
+
+        return changed;
+    }
+
+    @Override
+    public void clear()
+    {
+        allocate(MIN_CAPACITY);
+        containsZero = false;
+        size = 0;
+    }
+
+    @Override
+    public int size()
+    {
+        return size;
+    }
+
+    @Override
+    public Iterator<SHA1> iterator()
+    {
+        return new Iterator<SHA1>()
+        {
+            private boolean zeroPending = containsZero;
+            private int slot = nextSlot(0);
+
+            private int nextSlot(int start)
+            {
+                int i = start;
+                while ((i < w0.length) && isFree(i))
+                {
+                    i++;
+                }
+
+                return i;
+            }
+
+            @Override
+            public boolean hasNext()
+            {
+                return zeroPending || (slot < w0.length);
+            }
+
+            @Override
+            public SHA1 next()
+            {
+                if (zeroPending)
+                {
+                    zeroPending = false;
+                    return new SHA1(0, 0, 0);
+                }
+
+                if (slot >= w0.length)
+                {
+                    throw new NoSuchElementException();
+                }
+
+                SHA1 sha1 = new SHA1(w0[slot], w1[slot], w2[slot]);
+                slot = nextSlot(slot + 1);
+                return sha1;
+            }
+        };
+    }
+}
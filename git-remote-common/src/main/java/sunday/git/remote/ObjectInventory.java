@@ -0,0 +1,407 @@
+package sunday.git.remote;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * The inventory of the objects that are stored in the remote repository. It allows a push to find out which objects
+ * need to be uploaded without asking the storage for each object separately. The inventory consists of segments:
+ *
+ * <pre>
+ * inventory/{hash}
+ * </pre>
+ *
+ * Each segment contains the sorted ids of objects that have been uploaded, and is written after the uploads have
+ * finished. Segments are never modified, so concurrent pushes simply add new ones. Since every push adds a segment, a
+ * push merges the small segments into a single one when there are too many of them, so that the number of segments
+ * that readers have to download does not grow with the number of pushes. A segment can be marked as full,
+ * which means that it lists all objects that existed when it was written. Only then, the inventory is complete, and
+ * objects that are not contained can be considered missing without asking the storage. Compaction replaces all
+ * segments by a single full segment. Full segments get unique names, which identify the generation of the remote
+ * repository, see {@link #getGeneration()}.
+ *
+ * The binary format of a segment looks like:
+ *
+ * <pre>
+ * "RXIV" version(int) flags(int) objectCount(int) objectIds(20 bytes each)
+ * </pre>
+ *
+ * @author Peter H&auml;nsgen
+ */
+public class ObjectInventory
+{
+    static final Path INVENTORY_DIR = Path.of("inventory");
+
+    private static final int MAGIC = 0x52584956;
+    private static final int VERSION = 1;
+    private static final int FLAG_FULL = 1;
+
+    /**
+     * The number of uploaded objects after which a segment is written, so that not too much work is lost if a push is
+     * interrupted.
+     */
+    private static final int SEGMENT_SIZE = 10000;
+
+    /**
+     * The number of segments with fewer objects than a regular segment, after which they are merged.
+     */
+    static final int MAX_SMALL_SEGMENTS = 8;
+
+    /**
+     * The number of attempts to load the inventory, which fails if segments are merged by others meanwhile.
+     */
+    private static final int LOAD_ATTEMPTS = 3;
+
+    private Storage storage;
+    private GitLogger logger;
+
+    private Set<SHA1> objects;
+    private boolean complete;
+    private List<Path> segments;
+    private SHA1 generation;
+
+    /**
+     * The segments that are not full and have fewer objects than a regular segment, along with their objects.
+     */
+    private List<Path> smallSegments;
+    private Set<SHA1> smallObjects;
+
+    /**
+     * Objects that have been added, but not yet written to a segment.
+     */
+    private Set<SHA1> pending;
+
+    /**
+     * The constructor.
+     */
+    public ObjectInventory(Storage storage, GitLogger logger)
+    {
+        this.storage = storage;
+        this.logger = logger;
+
+        pending = new ObjectIdSet();
+    }
+
+    /**
+     * Downloads all segments of the inventory, unless this has been done already.
+     */
+    public synchronized void load()
+    {
+        if (objects != null)
+        {
+            return;
+        }
+
+        for (int attempt = 1;; attempt++)
+        {
+            try
+            {
+                loadSegments();
+                break;
+            }
+            catch (GitRemoteException ex)
+            {
+                // a segment that has been merged by another push is gone, but the merged one is listed next time
+                if (attempt == LOAD_ATTEMPTS)
+                {
+                    throw ex;
+                }
+                logger.debug("Loading inventory again: " + ex.getMessage());
+            }
+        }
+
+        logger.debug("Inventory contains " + objects.size() + " objects in " + segments.size() + " segments"
+                + (complete ? "." : ", incomplete."));
+    }
+
+    private void loadSegments()
+    {
+        objects = new ObjectIdSet();
+        complete = false;
+        segments = new ArrayList<>(storage.listFiles(INVENTORY_DIR));
+        smallSegments = new ArrayList<>();
+        smallObjects = new ObjectIdSet();
+
+        List<Path> fullSegments = new ArrayList<>();
+        for (Entry<Path, byte[]> segment : storage.downloadFiles(segments).entrySet())
+        {
+            if (readSegment(segment.getKey(), segment.getValue()))
+            {
+                fullSegments.add(segment.getKey());
+            }
+        }
+        generation = getGeneration(fullSegments);
+    }
+
+    /**
+     * Returns true if there is at least one segment.
+     */
+    public synchronized boolean exists()
+    {
+        return !segments.isEmpty();
+    }
+
+    /**
+     * Returns true if the inventory lists all objects of the remote repository, e.g. objects that are not contained do
+     * not exist.
+     */
+    public synchronized boolean isComplete()
+    {
+        return complete;
+    }
+
+    /**
+     * Returns an id of the full segments, or null if there is none. It changes when the remote repository is created
+     * again or compacted, so it tells whether object ids that have been seen before may still exist.
+     */
+    public synchronized SHA1 getGeneration()
+    {
+        return generation;
+    }
+
+    private static SHA1 getGeneration(List<Path> fullSegments)
+    {
+        if (fullSegments.isEmpty())
+        {
+            return null;
+        }
+
+        Collections.sort(fullSegments);
+
+        StringBuilder names = new StringBuilder();
+        for (Path segment : fullSegments)
+        {
+            names.append(segment.getFileName()).append('\n');
+        }
+
+        return SHA1.digest(names.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Checks whether the object is known to exist in the remote repository.
+     */
+    public synchronized boolean contains(SHA1 sha1)
+    {
+        return objects.contains(sha1) || pending.contains(sha1);
+    }
+
+    /**
+     * Marks the inventory as complete, which is valid for a remote repository that does not contain any objects yet.
+     * Objects that exist nevertheless, for example from an aborted push, will simply be uploaded again.
+     */
+    public synchronized void markComplete()
+    {
+        Path segment = writeSegment(Collections.emptyList(), true);
+        complete = true;
+        generation = getGeneration(new ArrayList<>(Collections.singletonList(segment)));
+    }
+
+    /**
+     * Adds an object that has been uploaded to the remote repository. Segments are written in regular intervals.
+     */
+    public void add(SHA1 sha1)
+    {
+        Set<SHA1> segment = null;
+        synchronized (this)
+        {
+            pending.add(sha1);
+            if (pending.size() >= SEGMENT_SIZE)
+            {
+                segment = takePending();
+            }
+        }
+
+        // upload outside of the lock, so that other threads can go on meanwhile
+        if (segment != null)
+        {
+            writeSegment(segment, false);
+        }
+    }
+
+    /**
+     * Writes the pending objects to a new segment. If there are too many small segments, they are merged with the
+     * pending objects into a single segment instead, and deleted afterwards.
+     */
+    public void flush()
+    {
+        Set<SHA1> segment;
+        List<Path> merged = Collections.emptyList();
+        synchronized (this)
+        {
+            segment = takePending();
+            if (segment.isEmpty())
+            {
+                return;
+            }
+
+            if (smallSegments.size() >= MAX_SMALL_SEGMENTS)
+            {
+                merged = new ArrayList<>(smallSegments);
+                segment.addAll(smallObjects);
+            }
+        }
+
+        // the merged segment must have been uploaded before the small ones can be deleted
+        Path path = writeSegment(segment, false);
+        for (Path smallSegment : merged)
+        {
+            try
+            {
+                storage.deleteFile(smallSegment);
+            }
+            catch (GitRemoteException ex)
+            {
+                // another push has merged it at the same time, its objects are listed twice then
+                logger.debug("Could not delete inventory segment: " + smallSegment);
+            }
+        }
+
+        synchronized (this)
+        {
+            segments.removeAll(merged);
+            smallSegments.removeAll(merged);
+            if (!merged.isEmpty())
+            {
+                smallObjects = new ObjectIdSet();
+            }
+
+            segments.add(path);
+            if (segment.size() < SEGMENT_SIZE)
+            {
+                smallSegments.add(path);
+                smallObjects.addAll(segment);
+            }
+        }
+    }
+
+    private Set<SHA1> takePending()
+    {
+        Set<SHA1> segment = pending;
+        objects.addAll(segment);
+        pending = new ObjectIdSet();
+
+        return segment;
+    }
+
+    /**
+     * Replaces all segments that have been loaded before by a single full segment containing all the given objects.
+     * Segments that have been written by others in the meantime are kept.
+     */
+    public synchronized void replace(Collection<SHA1> allObjects)
+    {
+        load();
+
+        Path segment = writeSegment(allObjects, true);
+        for (Path oldSegment : segments)
+        {
+            if (!oldSegment.equals(segment))
+            {
+                storage.deleteFile(oldSegment);
+            }
+        }
+
+        objects = new ObjectIdSet(allObjects);
+        segments = new ArrayList<>(Collections.singletonList(segment));
+        smallSegments = new ArrayList<>();
+        smallObjects = new ObjectIdSet();
+        complete = true;
+        generation = getGeneration(new ArrayList<>(segments));
+    }
+
+    /**
+     * Reads the objects of a segment, and returns true if it is a full segment.
+     */
+    private boolean readSegment(Path path, byte[] content)
+    {
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(content)))
+        {
+            if ((in.readInt() != MAGIC) || (in.readInt() != VERSION))
+            {
+                throw new GitRemoteException("Unsupported inventory version.");
+            }
+
+            int flags = in.readInt();
+            boolean full = (flags & FLAG_FULL) != 0;
+            if (full)
+            {
+                complete = true;
+            }
+
+            int count = in.readInt();
+            boolean small = !full && (count < SEGMENT_SIZE);
+            if (small)
+            {
+                smallSegments.add(path);
+            }
+
+            byte[] id = new byte[20];
+            for (int i = 0; i < count; i++)
+            {
+                in.readFully(id);
+                SHA1 sha1 = SHA1.fromBytes(id, 0);
+                objects.add(sha1);
+                if (small)
+                {
+                    smallObjects.add(sha1);
+                }
+            }
+
+            return full;
+        }
+        catch (IOException io)
+        {
+            throw new GitRemoteException(io);
+        }
+    }
+
+    private Path writeSegment(Collection<SHA1> ids, boolean full)
+    {
+        List<SHA1> sorted = new ArrayList<>(ids);
+        Collections.sort(sorted);
+
+        ByteArrayOutputStream data = new ByteArrayOutputStream(sorted.size() * 20 + 16);
+        try (DataOutputStream out = new DataOutputStream(data))
+        {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(full ? FLAG_FULL : 0);
+            out.writeInt(sorted.size());
+
+            for (SHA1 sha1 : sorted)
+            {
+                out.write(sha1.toBytes());
+            }
+        }
+        catch (IOException io)
+        {
+            throw new GitRemoteException(io);
+        }
+
+        byte[] content = data.toByteArray();
+        SHA1 name = SHA1.digest(content);
+        if (full)
+        {
+            // a recreated remote repository starts with the same empty segment, but must be told apart
+            name = SHA1.digest((name + UUID.randomUUID().toString()).getBytes(StandardCharsets.US_ASCII));
+        }
+
+        Path segment = INVENTORY_DIR.resolve(name.toString());
+
+        logger.debug("Uploading inventory segment: " + segment + " (" + sorted.size() + " objects)");
+        storage.uploadFile(segment, content);
+
+        return segment;
+    }
+}
@@ -0,0 +1,141 @@
+package sunday.git.remote;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * A parsed git pack index file (version 2), as written by "git pack-objects" next to the pack file. It contains the
+ * sorted object ids of all objects in the pack, along with their offsets in the pack file.
+ *
+ * @author Peter H&auml;nsgen
+ */
+public class PackIndex
+{
+    private static final int MAGIC = 0xff744f63;
+
+    private int count;
+    private byte[] ids;
+    private long[] offsets;
+
+    /**
+     * The constructor, parses the content of an index file.
+     */
+    public PackIndex(byte[] content)
+    {
+        ByteBuffer buffer = ByteBuffer.wrap(content);
+        if ((buffer.getInt() != MAGIC) || (buffer.getInt() != 2))
+        {
+            throw new GitRemoteException("Unsupported pack index version.");
+        }
+
+        // the last entry of the fan-out table is the total number of objects
+        buffer.position(8 + 255 * 4);
+        count = buffer.getInt();
+
+        ids = new byte[count * 20];
+        buffer.get(ids);
+
+        // skip the CRC32 values
+        buffer.position(buffer.position() + count * 4);
+
+        int[] smallOffsets = new int[count];
+        for (int i = 0; i < count; i++)
+        {
+            smallOffsets[i] = buffer.getInt();
+        }
+
+        // offsets with the most significant bit set refer to the table of large offsets
+        int largeOffsetsStart = buffer.position();
+        offsets = new long[count];
+        for (int i = 0; i < count; i++)
+        {
+            int offset = smallOffsets[i];
+            if (offset < 0)
+            {
+                offsets[i] = buffer.getLong(largeOffsetsStart + (offset & 0x7fffffff) * 8);
+            }
+            else
+            {
+                offsets[i] = offset;
+            }
+        }
+    }
+
+    /**
+     * Returns the number of objects in the pack.
+     */
+    public int size()
+    {
+        return count;
+    }
+
+    /**
+     * Returns the object id at the given position. Object ids are sorted.
+     */
+    public SHA1 getSha1(int i)
+    {
+        return SHA1.fromBytes(ids, i * 20);
+    }
+
+    /**
+     * Copies the binary object id at the given position into the target array.
+     */
+    void copySha1(int i, byte[] target, int offset)
+    {
+        System.arraycopy(ids, i * 20, target, offset, 20);
+    }
+
+    /**
+     * Compares the object id at position i of index a with the object id at position j of index b.
+     */
+    static int compare(PackIndex a, int i, PackIndex b, int j)
+    {
+        return Arrays.compareUnsigned(a.ids, i * 20, i * 20 + 20, b.ids, j * 20, j * 20 + 20);
+    }
+
+    /**
+     * Returns the offset of the object at the given position in the pack file.
+     */
+    public long getOffset(int i)
+    {
+        return offsets[i];
+    }
+
+    /**
+     * Checks whether the object is contained in the pack.
+     */
+    public boolean contains(SHA1 sha1)
+    {
+        return indexOf(sha1) >= 0;
+    }
+
+    /**
+     * Returns the position of the object in the index, or a negative value if it is not contained.
+     */
+    public int indexOf(SHA1 sha1)
+    {
+        byte[] key = sha1.toBytes();
+
+        int low = 0;
+        int high = count - 1;
+        while (low <= high)
+        {
+            int mid = (low + high) >>> 1;
+            int cmp = Arrays.compareUnsigned(ids, mid * 20, mid * 20 + 20, key, 0, 20);
+            if (cmp < 0)
+            {
+                low = mid + 1;
+            }
+            else if (cmp > 0)
+            {
+                high = mid - 1;
+            }
+            else
+            {
+                return mid;
+            }
+        }
+
+        return -(low + 1);
+    }
+}
@@ -0,0 +1,326 @@
+package sunday.git.remote;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.function.Consumer;
+
+/**
+ * Records the progress of a push to remote refs in the local git directory, so that an interrupted push can be
+ * resumed without listing the objects again and without asking the storage which of them exist. There are two files
+ * for each remote url and set of pushed refs:
+ *
+ * <pre>
+ * $GIT_DIR/remotex/{hash of url}/push-{hash of refs}.plan
+ * $GIT_DIR/remotex/{hash of url}/push-{hash of refs}.done
+ * </pre>
+ *
+ * The plan contains the id of the pushed batch and all objects of the push. It is written while the objects are
+ * listed, and is only renamed to its final name when the list is complete, before any object is uploaded. The done
+ * file contains the objects that have been uploaded or were known to exist, it is appended while uploading and
+ * flushed after each upload. Both files are deleted when the remote ref has been written. The binary format of the
+ * plan looks like:
+ *
+ * <pre>
+ * "RXPJ" version(int) batchId(20 bytes) objectIds(20 bytes each)
+ * </pre>
+ *
+ * The done file simply contains object ids of 20 bytes each, an incomplete last record is ignored.
+ *
+ * @author Peter H&auml;nsgen
+ */
+public class PushJournal
+{
+    private static final int MAGIC = 0x52585050;
+    private static final int VERSION = 1;
+
+    private File planFile;
+    private File tempPlanFile;
+    private File doneFile;
+
+    private DataOutputStream plan;
+    private OutputStream done;
+
+    /**
+     * The constructor.
+     */
+    public PushJournal(File gitDir, String url, Collection<String> refs)
+    {
+        String urlKey = SHA1.digest(url.getBytes(StandardCharsets.UTF_8)).toString();
+        String sortedRefs = String.join("\n", new TreeSet<>(refs));
+        String refKey = SHA1.digest(sortedRefs.getBytes(StandardCharsets.UTF_8)).toString();
+
+        File dir = new File(new File(gitDir, "remotex"), urlKey);
+        planFile = new File(dir, "push-" + refKey + ".plan");
+        tempPlanFile = new File(dir, "push-" + refKey + ".plan.tmp");
+        doneFile = new File(dir, "push-" + refKey + ".done");
+    }
+
+    /**
+     * Returns the id of a batch of pushed commits by remote ref, which only depends on the refs and the commits.
+     */
+    public static SHA1 getBatchId(Map<String, SHA1> commits)
+    {
+        StringBuilder batch = new StringBuilder();
+        for (Entry<String, SHA1> entry : new TreeMap<>(commits).entrySet())
+        {
+            batch.append(entry.getValue()).append(' ').append(entry.getKey()).append('\n');
+        }
+
+        return SHA1.digest(batch.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Checks whether there is a complete plan for pushing the given batch, e.g. an earlier push of the same commits
+     * has been interrupted after listing the objects.
+     */
+    public boolean canResume(SHA1 batchId)
+    {
+        if (!planFile.exists())
+        {
+            return false;
+        }
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(planFile))))
+        {
+            if ((in.readInt() != MAGIC) || (in.readInt() != VERSION))
+            {
+                return false;
+            }
+
+            byte[] id = new byte[20];
+            in.readFully(id);
+            return SHA1.fromBytes(id, 0).equals(batchId);
+        }
+        catch (IOException io)
+        {
+            return false;
+        }
+    }
+
+    /**
+     * Starts a new plan for pushing the given batch, replacing the journal of an earlier push to the same refs.
+     */
+    public synchronized void start(SHA1 batchId)
+    {
+        planFile.delete();
+        doneFile.delete();
+        tempPlanFile.getParentFile().mkdirs();
+
+        try
+        {
+            plan = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempPlanFile)));
+            plan.writeInt(MAGIC);
+            plan.writeInt(VERSION);
+            plan.write(batchId.toBytes());
+        }
+        catch (IOException io)
+        {
+            throw new GitRemoteException(io);
+        }
+    }
+
+    /**
+     * Adds an object of the push to the plan.
+     */
+    public synchronized void planned(SHA1 sha1)
+    {
+        try
+        {
+            plan.write(sha1.toBytes());
+        }
+        catch (IOException io)
+        {
+            throw new GitRemoteException(io);
+        }
+    }
+
+    /**
+     * Marks the plan as complete, after all objects have been listed.
+     */
+    public synchronized void planComplete()
+    {
+        try
+        {
+            plan.close();
+            plan = null;
+
+            Files.move(tempPlanFile.toPath(), planFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        catch (IOException io)
+        {
+            throw new GitRemoteException(io);
+        }
+    }
+
+    /**
+     * Passes the planned objects that have not been uploaded yet to the consumer.
+     */
+    public void forEachRemaining(Consumer<SHA1> consumer)
+    {
+        Set<SHA1> uploaded = getDone();
+        forEachPlanned(sha1 -> {
+            if (!uploaded.contains(sha1))
+            {
+                consumer.accept(sha1);
+            }
+        });
+    }
+
+    /**
+     * Passes all planned objects to the consumer.
+     */
+    public void forEachPlanned(Consumer<SHA1> consumer)
+    {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(planFile))))
+        {
+            // skip the header with the batch id
+            in.skipNBytes(8 + 20);
+
+            byte[] id = new byte[20];
+            long count = (planFile.length() - 8 - 20) / 20;
+            for (long i = 0; i < count; i++)
+            {
+                in.readFully(id);
+                consumer.accept(SHA1.fromBytes(id, 0));
+            }
+        }
+        catch (IOException io)
+        {
+            throw new GitRemoteException(io);
+        }
+    }
+
+    /**
+     * Returns the objects that have been uploaded according to the journal.
+     */
+    public Set<SHA1> getDone()
+    {
+        // objects that are known to exist are recorded while listing, right before the remaining ones are read
+        flush();
+
+        Set<SHA1> uploaded = new ObjectIdSet();
+        if (!doneFile.exists())
+        {
+            return uploaded;
+        }
+
+        try
+        {
+            byte[] content = Files.readAllBytes(doneFile.toPath());
+            for (int i = 0; i + 20 <= content.length; i += 20)
+            {
+                uploaded.add(SHA1.fromBytes(content, i));
+            }
+        }
+        catch (IOException io)
+        {
+            throw new GitRemoteException(io);
+        }
+
+        return uploaded;
+    }
+
+    /**
+     * Records that the object has been uploaded, or does not need to be uploaded.
+     */
+    public synchronized void done(SHA1 sha1)
+    {
+        try
+        {
+            if (done == null)
+            {
+                doneFile.getParentFile().mkdirs();
+
+                // an incomplete last record would shift all following ones
+                long length = doneFile.length();
+                if (length % 20 != 0)
+                {
+                    try (RandomAccessFile raf = new RandomAccessFile(doneFile, "rw"))
+                    {
+                        raf.setLength(length - length % 20);
+                    }
+                }
+
+                done = new BufferedOutputStream(new FileOutputStream(doneFile, true));
+            }
+
+            done.write(sha1.toBytes());
+        }
+        catch (IOException io)
+        {
+            throw new GitRemoteException(io);
+        }
+    }
+
+    /**
+     * Writes the buffered done records to the file, so that they are not lost if the process is killed.
+     */
+    public synchronized void flush()
+    {
+        if (done != null)
+        {
+            try
+            {
+                done.flush();
+            }
+            catch (IOException io)
+            {
+                throw new GitRemoteException(io);
+            }
+        }
+    }
+
+    /**
+     * Writes the buffered records and closes the files.
+     */
+    public synchronized void close()
+    {
+        try
+        {
+            if (plan != null)
+            {
+                plan.close();
+                plan = null;
+            }
+
+            if (done != null)
+            {
+                done.close();
+                done = null;
+            }
+        }
+        catch (IOException io)
+        {
+            throw new GitRemoteException(io);
+        }
+    }
+
+    /**
+     * Deletes the journal after the push has been completed.
+     */
+    public synchronized void delete()
+    {
+        close();
+
+        planFile.delete();
+        tempPlanFile.delete();
+        doneFile.delete();
+    }
+}
@@ -0,0 +1,519 @@
+package sunday.git.remote;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+
+/**
+ * Manages the bundles in the remote repository. A bundle is a container of many small objects, each one encoded the
+ * same way as a single object file, which are uploaded together instead of one by one. Next to the container, there is
+ * an index with the offset table:
+ *
+ * <pre>
+ * objects/bundle/bundle-{hash}.data
+ * objects/bundle/bundle-{hash}.idx
+ * </pre>
+ *
+ * The index file is uploaded after the container, so a bundle is only visible to readers when it is complete. The
+ * binary format of the index looks like:
+ *
+ * <pre>
+ * "RXBI" version(int) objectCount(int) objectIds(20 bytes each) offsets(int each) lengths(int each)
+ * </pre>
+ *
+ * Object ids are sorted, offsets and lengths refer to the encoded objects in the container.
+ *
+ * @author Peter H&auml;nsgen
+ */
+public class RemoteBundles
+{
+    static final Path BUNDLE_DIR = Path.of("objects", "bundle");
+
+    /**
+     * Encoded objects up to this size are put into bundles, larger ones are uploaded as single files.
+     */
+    static final int MAX_OBJECT_SIZE = 64 * 1024;
+
+    /**
+     * A bundle is uploaded as soon as it has reached this size.
+     */
+    private static final int BUNDLE_SIZE = 4 * 1024 * 1024;
+
+    /**
+     * The number of downloaded containers that are kept in memory while fetching.
+     */
+    private static final int CACHED_BUNDLES = 8;
+
+    private static final int MAGIC = 0x52584249;
+    private static final int VERSION = 1;
+
+    private Storage storage;
+    private GitLogger logger;
+
+    /**
+     * The bundle that is being filled by a push.
+     */
+    private Bundle current;
+
+    /**
+     * The indexes of the remote bundles by name, loaded on first use.
+     */
+    private Map<String, BundleIndex> indexes;
+
+    /**
+     * Recently downloaded containers by name. Readers of a container that is still being downloaded wait for the same
+     * download.
+     */
+    private Map<String, CompletableFuture<byte[]>> containers;
+
+    /**
+     * Protects the indexes and the containers. It is held for looking them up, but not while downloading containers.
+     * This is a lock instead of a monitor, so that waiting virtual threads do not block their carrier threads.
+     */
+    private ReentrantLock fetchLock;
+
+    /**
+     * The constructor.
+     */
+    public RemoteBundles(Storage storage, GitLogger logger)
+    {
+        this.storage = storage;
+        this.logger = logger;
+
+        current = new Bundle();
+        fetchLock = new ReentrantLock();
+        containers = new LinkedHashMap<>(CACHED_BUNDLES, 0.75f, true)
+        {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Entry<String, CompletableFuture<byte[]>> eldest)
+            {
+                return size() > CACHED_BUNDLES;
+            }
+        };
+    }
+
+    /**
+     * Adds an encoded object to the current bundle. If the bundle is full, it is returned for uploading, and a new one
+     * is started.
+     */
+    public synchronized Bundle add(SHA1 sha1, byte[] encoded)
+    {
+        current.add(sha1, encoded);
+        if (current.size() < BUNDLE_SIZE)
+        {
+            return null;
+        }
+
+        return takeCurrent();
+    }
+
+    /**
+     * Returns the current bundle for uploading and starts a new one, or returns null if it is empty.
+     */
+    public synchronized Bundle takeCurrent()
+    {
+        if (current.ids.isEmpty())
+        {
+            return null;
+        }
+
+        Bundle bundle = current;
+        current = new Bundle();
+        return bundle;
+    }
+
+    /**
+     * Uploads the container and the index of a bundle.
+     */
+    public void upload(Bundle bundle)
+    {
+        byte[] data = bundle.data.toByteArray();
+        String name = SHA1.digest(data).toString();
+
+        logger.debug("Uploading bundle: " + name + " (" + bundle.ids.size() + " objects)");
+
+        // the index makes the bundle visible, so it must come last
+        storage.uploadFile(dataPath(name), data);
+        storage.uploadFile(indexPath(name), bundle.toIndex());
+    }
+
+    /**
+     * Returns the encoded object from a remote bundle, or null if it is not contained in any bundle.
+     */
+    public byte[] readObject(SHA1 sha1)
+    {
+        String name = null;
+        BundleIndex index = null;
+        int i = -1;
+
+        fetchLock.lock();
+        try
+        {
+            loadIndexes();
+
+            for (Entry<String, BundleIndex> entry : indexes.entrySet())
+            {
+                i = entry.getValue().indexOf(sha1);
+                if (i >= 0)
+                {
+                    name = entry.getKey();
+                    index = entry.getValue();
+                    break;
+                }
+            }
+        }
+        finally
+        {
+            fetchLock.unlock();
+        }
+
+        if (name == null)
+        {
+            return null;
+        }
+
+        byte[] data = readContainer(name);
+        return Arrays.copyOfRange(data, index.offsets[i], index.offsets[i] + index.lengths[i]);
+    }
+
+    /**
+     * Checks whether the given object is contained in any remote bundle, without downloading the bundle.
+     */
+    public boolean contains(SHA1 sha1)
+    {
+        fetchLock.lock();
+        try
+        {
+            loadIndexes();
+
+            for (BundleIndex index : indexes.values())
+            {
+                if (index.indexOf(sha1) >= 0)
+                {
+                    return true;
+                }
+            }
+
+            return false;
+        }
+        finally
+        {
+            fetchLock.unlock();
+        }
+    }
+
+    /**
+     * Returns the container with the given name. Only the first reader downloads it, the others wait for the download.
+     */
+    private byte[] readContainer(String name)
+    {
+        CompletableFuture<byte[]> container;
+        boolean download = false;
+
+        fetchLock.lock();
+        try
+        {
+            container = containers.get(name);
+            if (container == null)
+            {
+                container = new CompletableFuture<>();
+                containers.put(name, container);
+                download = true;
+            }
+        }
+        finally
+        {
+            fetchLock.unlock();
+        }
+
+        if (download)
+        {
+            logger.debug("Downloading bundle: " + name);
+
+            try
+            {
+                container.complete(storage.downloadFile(dataPath(name)));
+            }
+            catch (RuntimeException ex)
+            {
+                // the next reader tries again
+                fetchLock.lock();
+                try
+                {
+                    containers.remove(name, container);
+                }
+                finally
+                {
+                    fetchLock.unlock();
+                }
+
+                container.completeExceptionally(ex);
+                throw ex;
+            }
+        }
+
+        try
+        {
+            return container.join();
+        }
+        catch (CompletionException ex)
+        {
+            if (ex.getCause() instanceof GitRemoteException)
+            {
+                throw (GitRemoteException) ex.getCause();
+            }
+            throw new GitRemoteException(ex.getCause());
+        }
+    }
+
+    /**
+     * Returns the names of the complete bundles in the remote repository.
+     */
+    public List<String> getBundleNames()
+    {
+        List<String> names = new ArrayList<>();
+        for (Path path : storage.listFiles(BUNDLE_DIR))
+        {
+            String fileName = path.getFileName().toString();
+            if (fileName.startsWith("bundle-") && fileName.endsWith(".idx"))
+            {
+                names.add(fileName.substring("bundle-".length(), fileName.length() - ".idx".length()));
+            }
+        }
+
+        return names;
+    }
+
+    /**
+     * Downloads a bundle and passes each of its encoded objects to the consumer.
+     */
+    public void forEachObject(String name, BiConsumer<SHA1, byte[]> consumer)
+    {
+        BundleIndex index = new BundleIndex(storage.downloadFile(indexPath(name)));
+        byte[] data = storage.downloadFile(dataPath(name));
+
+        for (int i = 0; i < index.count; i++)
+        {
+            consumer.accept(index.getSha1(i),
+                    Arrays.copyOfRange(data, index.offsets[i], index.offsets[i] + index.lengths[i]));
+        }
+    }
+
+    /**
+     * Deletes a bundle from the remote repository, the index goes first so that nobody sees an incomplete bundle.
+     */
+    public void delete(String name)
+    {
+        storage.deleteFile(indexPath(name));
+        storage.deleteFile(dataPath(name));
+    }
+
+    /**
+     * Loads the indexes of all complete bundles.
+     */
+    private void loadIndexes()
+    {
+        if (indexes != null)
+        {
+            return;
+        }
+
+        Map<Path, String> indexPaths = new LinkedHashMap<>();
+        for (String name : getBundleNames())
+        {
+            indexPaths.put(indexPath(name), name);
+        }
+
+        indexes = new LinkedHashMap<>();
+        for (Entry<Path, byte[]> index : storage.downloadFiles(indexPaths.keySet()).entrySet())
+        {
+            indexes.put(indexPaths.get(index.getKey()), new BundleIndex(index.getValue()));
+        }
+
+        logger.debug(indexes.size() + " remote bundles found.");
+    }
+
+    static Path dataPath(String name)
+    {
+        return BUNDLE_DIR.resolve("bundle-" + name + ".data");
+    }
+
+    static Path indexPath(String name)
+    {
+        return BUNDLE_DIR.resolve("bundle-" + name + ".idx");
+    }
+
+    /**
+     * A bundle that is being filled with encoded objects.
+     *
+     * @author Peter H&auml;nsgen
+     */
+    public static class Bundle
+    {
+        private List<SHA1> ids;
+        private List<int[]> ranges;
+        private ByteArrayOutputStream data;
+
+        /**
+         * The constructor.
+         */
+        Bundle()
+        {
+            ids = new ArrayList<>();
+            ranges = new ArrayList<>();
+            data = new ByteArrayOutputStream();
+        }
+
+        void add(SHA1 sha1, byte[] encoded)
+        {
+            ids.add(sha1);
+            ranges.add(new int[] { data.size(), encoded.length });
+            data.write(encoded, 0, encoded.length);
+        }
+
+        int size()
+        {
+            return data.size();
+        }
+
+        /**
+         * Returns the ids of the objects in the bundle.
+         */
+        public List<SHA1> getObjects()
+        {
+            return ids;
+        }
+
+        byte[] toIndex()
+        {
+            Integer[] order = new Integer[ids.size()];
+            for (int i = 0; i < order.length; i++)
+            {
+                order[i] = i;
+            }
+            Arrays.sort(order, Comparator.comparing(ids::get));
+
+            ByteArrayOutputStream index = new ByteArrayOutputStream(order.length * 28 + 12);
+            try (DataOutputStream out = new DataOutputStream(index))
+            {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(order.length);
+
+                for (int i : order)
+                {
+                    out.write(ids.get(i).toBytes());
+                }
+                for (int i : order)
+                {
+                    out.writeInt(ranges.get(i)[0]);
+                }
+                for (int i : order)
+                {
+                    out.writeInt(ranges.get(i)[1]);
+                }
+            }
+            catch (IOException io)
+            {
+                throw new GitRemoteException(io);
+            }
+
+            return index.toByteArray();
+        }
+    }
+
+    /**
+     * A parsed bundle index.
+     *
+     * @author Peter H&auml;nsgen
+     */
+    static class BundleIndex
+    {
+        private int count;
+        private byte[] ids;
+        private int[] offsets;
+        private int[] lengths;
+
+        /**
+         * The constructor, parses the content of an index file.
+         */
+        BundleIndex(byte[] content)
+        {
+            try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(content)))
+            {
+                if ((in.readInt() != MAGIC) || (in.readInt() != VERSION))
+                {
+                    throw new GitRemoteException("Unsupported bundle index version.");
+                }
+
+                count = in.readInt();
+                ids = new byte[count * 20];
+                in.readFully(ids);
+
+                offsets = new int[count];
+                for (int i = 0; i < count; i++)
+                {
+                    offsets[i] = in.readInt();
+                }
+
+                lengths = new int[count];
+                for (int i = 0; i < count; i++)
+                {
+                    lengths[i] = in.readInt();
+                }
+            }
+            catch (IOException io)
+            {
+                throw new GitRemoteException(io);
+            }
+        }
+
+        SHA1 getSha1(int i)
+        {
+            return SHA1.fromBytes(ids, i * 20);
+        }
+
+        int indexOf(SHA1 sha1)
+        {
+            byte[] key = sha1.toBytes();
+
+            int low = 0;
+            int high = count - 1;
+            while (low <= high)
+            {
+                int mid = (low + high) >>> 1;
+                int cmp = Arrays.compareUnsigned(ids, mid * 20, mid * 20 + 20, key, 0, 20);
+                if (cmp < 0)
+                {
+                    low = mid + 1;
+                }
+                else if (cmp > 0)
+                {
+                    high = mid - 1;
+                }
+                else
+                {
+                    return mid;
+                }
+            }
+
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package sunday.git.remote;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Manages the push manifests in the remote repository. For each pushed commit, a manifest lists the objects reachable
+ * from it that have not been on the remote repository before, and the commits of the remote repository where its
+ * history continues (the bases):
+ *
+ * <pre>
+ * manifests/{commit hash}
+ * </pre>
+ *
+ * All objects reachable from the commit are either listed in its manifest, or reachable from one of the bases. So a
+ * fetch can find all objects it needs by following the manifests of the bases, instead of parsing the commits and trees
+ * one level after the other. Bases without a manifest, for example from before manifests were introduced, must be
+ * walked as usual. Commits that are pushed together are listed one after the other, so that a later one may have an
+ * earlier one as a base, and each object is listed only once. The binary format of a manifest looks like:
+ *
+ * <pre>
+ * "RXMF" version(int) baseCount(int) baseIds(20 bytes each) objectCount(int) objectIds(20 bytes each)
+ * </pre>
+ *
+ * @author Peter H&auml;nsgen
+ */
+public class RemoteManifests
+{
+    static final Path MANIFEST_DIR = Path.of("manifests");
+
+    private static final int MAGIC = 0x52584D46;
+    private static final int VERSION = 1;
+
+    private Storage storage;
+    private GitLogger logger;
+
+    /**
+     * The commits that have a manifest, loaded on first use.
+     */
+    private Set<SHA1> commits;
+
+    /**
+     * The constructor.
+     */
+    public RemoteManifests(Storage storage, GitLogger logger)
+    {
+        this.storage = storage;
+        this.logger = logger;
+    }
+
+    /**
+     * Uploads the manifest of a pushed commit. It must be written before the ref, so that it is complete when readers
+     * see the commit.
+     */
+    public void write(SHA1 commit, Collection<SHA1> bases, Collection<SHA1> objects)
+    {
+        ByteArrayOutputStream data = new ByteArrayOutputStream((bases.size() + objects.size()) * 20 + 16);
+        try (DataOutputStream out = new DataOutputStream(data))
+        {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+
+            out.writeInt(bases.size());
+            for (SHA1 base : bases)
+            {
+                out.write(base.toBytes());
+            }
+
+            out.writeInt(objects.size());
+            for (SHA1 sha1 : objects)
+            {
+                out.write(sha1.toBytes());
+            }
+        }
+        catch (IOException io)
+        {
+            throw new GitRemoteException(io);
+        }
+
+        logger.debug("Uploading manifest: " + commit + " (" + objects.size() + " objects)");
+        storage.uploadFile(MANIFEST_DIR.resolve(commit.toString()), data.toByteArray());
+    }
+
+    /**
+     * Returns the manifest of the given commit, or null if there is none. Manifests can be read concurrently.
+     */
+    public Manifest read(SHA1 commit)
+    {
+        if (!getCommits().contains(commit))
+        {
+            return null;
+        }
+
+        return new Manifest(storage.downloadFile(MANIFEST_DIR.resolve(commit.toString())));
+    }
+
+    private synchronized Set<SHA1> getCommits()
+    {
+        if (commits == null)
+        {
+            commits = new ObjectIdSet();
+            for (Path path : storage.listFiles(MANIFEST_DIR))
+            {
+                commits.add(new SHA1(path.getFileName().toString()));
+            }
+
+            logger.debug(commits.size() + " remote manifests found.");
+        }
+
+        return commits;
+    }
+
+    /**
+     * A parsed manifest.
+     *
+     * @author Peter H&auml;nsgen
+     */
+    public static class Manifest
+    {
+        private List<SHA1> bases;
+        private List<SHA1> objects;
+
+        /**
+         * The constructor.
+         */
+        public Manifest(List<SHA1> bases, List<SHA1> objects)
+        {
+            this.bases = bases;
+            this.objects = objects;
+        }
+
+        /**
+         * The constructor, parses the content of a manifest file.
+         */
+        Manifest(byte[] content)
+        {
+            try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(content)))
+            {
+                if ((in.readInt() != MAGIC) || (in.readInt() != VERSION))
+                {
+                    throw new GitRemoteException("Unsupported manifest version.");
+                }
+
+                bases = readIds(in);
+                objects = readIds(in);
+            }
+            catch (IOException io)
+            {
+                throw new GitRemoteException(io);
+            }
+        }
+
+        private static List<SHA1> readIds(DataInputStream in) throws IOException
+        {
+            int count = in.readInt();
+            List<SHA1> ids = new ArrayList<>(count);
+
+            byte[] id = new byte[20];
+            for (int i = 0; i < count; i++)
+            {
+                in.readFully(id);
+                ids.add(SHA1.fromBytes(id, 0));
+            }
+
+            return ids;
+        }
+
+        /**
+         * Returns the commits of the remote repository where the history of the commit continues.
+         */
+        public List<SHA1> getBases()
+        {
+            return bases;
+        }
+
+        /**
+         * Returns the objects reachable from the commit that have not been on the remote repository before.
+         */
+        public List<SHA1> getObjects()
+        {
+            return objects;
+        }
+    }
+}
@@ -0,0 +1,241 @@
+package sunday.git.remote;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Set;
+
+/**
+ * A cache of the object ids that are known to exist in a remote repository, kept in the local git directory across
+ * helper processes. If a push is interrupted, the next attempt does not need to ask the storage again for the objects
+ * that have been uploaded already. There is one cache per remote url:
+ *
+ * <pre>
+ * $GIT_DIR/remotex/{hash of url}/objects
+ * </pre>
+ *
+ * The file is append-only. Each record is appended with a single unbuffered write, so that the records of several
+ * processes pushing to the same remote do not get mixed up. A record that has been cut off by an interrupted write is
+ * dropped when the file is loaded. The binary format looks like:
+ *
+ * <pre>
+ * "RXOC" version(int) generation(20 bytes) objectIds(20 bytes each)
+ * </pre>
+ *
+ * The generation is the one of the {@link ObjectInventory} at the time the objects have been recorded. If the remote
+ * repository has been created again or compacted since then, the objects may be gone, so the cache is dropped.
+ *
+ * @author Peter H&auml;nsgen
+ */
+public class RemoteObjectCache
+{
+    private static final byte[] MAGIC = "RXOC".getBytes(StandardCharsets.US_ASCII);
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 28;
+
+    private File file;
+    private GitLogger logger;
+
+    private byte[] generation;
+    private Set<SHA1> objects;
+    private FileOutputStream out;
+
+    /**
+     * The constructor.
+     */
+    public RemoteObjectCache(File gitDir, String url, GitLogger logger)
+    {
+        this.logger = logger;
+
+        String key = SHA1.digest(url.getBytes(StandardCharsets.UTF_8)).toString();
+        file = new File(new File(new File(gitDir, "remotex"), key), "objects");
+    }
+
+    /**
+     * Reads the cache file, unless this has been done already. The cache is dropped if it has been written for another
+     * generation of the remote repository, which is null if the inventory has no full segment.
+     */
+    public synchronized void load(SHA1 inventoryGeneration)
+    {
+        if (objects != null)
+        {
+            return;
+        }
+
+        generation = (inventoryGeneration != null) ? inventoryGeneration.toBytes() : new byte[20];
+        objects = new ObjectIdSet();
+        if (!file.exists())
+        {
+            return;
+        }
+
+        try
+        {
+            byte[] content = Files.readAllBytes(file.toPath());
+            if (!isValid(content))
+            {
+                logger.debug("Ignoring invalid or outdated object cache: " + file);
+                file.delete();
+                return;
+            }
+
+            int count = (content.length - HEADER_SIZE) / 20;
+            for (int i = 0; i < count; i++)
+            {
+                objects.add(SHA1.fromBytes(content, HEADER_SIZE + i * 20));
+            }
+
+            // drop an incomplete last record, so that new records are appended at the right position
+            if (content.length != HEADER_SIZE + count * 20L)
+            {
+                truncate();
+            }
+        }
+        catch (IOException io)
+        {
+            throw new GitRemoteException(io);
+        }
+
+        logger.debug("Object cache contains " + objects.size() + " objects.");
+    }
+
+    private boolean isValid(byte[] content)
+    {
+        if (content.length < HEADER_SIZE)
+        {
+            return false;
+        }
+
+        byte[] header = new byte[HEADER_SIZE];
+        writeHeader(ByteBuffer.wrap(header));
+
+        return Arrays.equals(content, 0, HEADER_SIZE, header, 0, HEADER_SIZE);
+    }
+
+    private void writeHeader(ByteBuffer buffer)
+    {
+        buffer.put(MAGIC);
+        buffer.putInt(VERSION);
+        buffer.put(generation);
+    }
+
+    /**
+     * Cuts off an incomplete record at the end. Other processes may have appended records in the meantime, so the
+     * length is taken under the lock.
+     */
+    private void truncate() throws IOException
+    {
+        try (FileChannel writer = FileChannel.open(file.toPath(), StandardOpenOption.WRITE))
+        {
+            FileLock lock = writer.lock();
+            try
+            {
+                long size = writer.size();
+                long length = HEADER_SIZE + (size - HEADER_SIZE) / 20 * 20;
+                if (size != length)
+                {
+                    writer.truncate(length);
+                }
+            }
+            finally
+            {
+                lock.release();
+            }
+        }
+    }
+
+    /**
+     * Checks whether the object is known to exist in the remote repository.
+     */
+    public synchronized boolean contains(SHA1 sha1)
+    {
+        return objects.contains(sha1);
+    }
+
+    /**
+     * Records that the object exists in the remote repository.
+     */
+    public synchronized void add(SHA1 sha1)
+    {
+        if (!objects.add(sha1))
+        {
+            return;
+        }
+
+        try
+        {
+            if (out == null)
+            {
+                out = open();
+            }
+
+            // a single unbuffered write in append mode is never mixed up with the writes of other processes
+            out.write(sha1.toBytes());
+        }
+        catch (IOException io)
+        {
+            throw new GitRemoteException(io);
+        }
+    }
+
+    private FileOutputStream open() throws IOException
+    {
+        file.getParentFile().mkdirs();
+
+        FileOutputStream appender = new FileOutputStream(file, true);
+        try
+        {
+            FileLock lock = appender.getChannel().lock();
+            try
+            {
+                // only the first process writes the header
+                if (appender.getChannel().size() == 0)
+                {
+                    byte[] header = new byte[HEADER_SIZE];
+                    writeHeader(ByteBuffer.wrap(header));
+                    appender.write(header);
+                }
+            }
+            finally
+            {
+                lock.release();
+            }
+        }
+        catch (IOException io)
+        {
+            appender.close();
+            throw io;
+        }
+
+        return appender;
+    }
+
+    /**
+     * Closes the cache file.
+     */
+    public synchronized void close()
+    {
+        if (out != null)
+        {
+            try
+            {
+                out.close();
+            }
+            catch (IOException io)
+            {
+                throw new GitRemoteException(io);
+            }
+            finally
+            {
+                out = null;
+            }
+        }
+    }
+}
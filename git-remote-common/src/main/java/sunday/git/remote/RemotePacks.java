@@ -0,0 +1,490 @@
+package sunday.git.remote;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+
+/**
+ * Manages the pack files in the remote repository. Instead of storing each object as a single file, a push may store
+ * all of its objects as one pack file which is created by "git pack-objects", along with the pack index:
+ *
+ * <pre>
+ * objects/pack/pack-{name}.pack
+ * objects/pack/pack-{name}.idx
+ * </pre>
+ *
+ * The index file is uploaded after the pack, so a pack is only visible to readers when it is complete. For a fetch,
+ * the pack that contains a missing object is downloaded as a whole and stored in the local repository with
+ * "git index-pack".
+ *
+ * In order to find that pack, readers download the multi-pack index, which covers all packs that existed when the
+ * remote repository has been compacted, plus the indexes of the packs that have been pushed since then. Compaction
+ * merges small packs and single object files into a new pack and writes a new multi-pack index. The name of the
+ * current multi-pack index is stored in a pointer file, so that the index can be swapped with a single upload:
+ *
+ * <pre>
+ * objects/pack/multi-pack-index
+ * objects/pack/multi-pack-index-{hash}
+ * </pre>
+ *
+ * @author Peter H&auml;nsgen
+ */
+public class RemotePacks
+{
+    static final Path PACK_DIR = Path.of("objects", "pack");
+
+    private static final String MULTI_PACK_INDEX = "multi-pack-index";
+
+    /**
+     * Packs with fewer objects are merged by compaction.
+     */
+    private static final int SMALL_PACK_SIZE = 100000;
+
+    private Git git;
+    private GitLogger logger;
+    private Storage storage;
+
+    /**
+     * The current multi-pack index of the remote repository, loaded on first use. Empty if there is none.
+     */
+    private MultiPackIndex multiPackIndex;
+
+    /**
+     * The indexes of the remote packs that are not covered by the multi-pack index by pack name, loaded on first use.
+     */
+    private Map<String, PackIndex> indexes;
+
+    /**
+     * The packs that have been fetched into the local repository, or are being fetched, by name. Fetches of objects
+     * from a pack that is still being downloaded wait for the same download.
+     */
+    private Map<String, CompletableFuture<Void>> fetchedPacks;
+
+    /**
+     * Protects the indexes and the fetched packs. It is held for looking them up, but not while downloading packs.
+     * This is a lock instead of a monitor, so that waiting virtual threads do not block their carrier threads.
+     */
+    private ReentrantLock fetchLock;
+
+    /**
+     * The constructor.
+     */
+    public RemotePacks(Git git, GitLogger logger, Storage storage)
+    {
+        this.git = git;
+        this.logger = logger;
+        this.storage = storage;
+
+        fetchedPacks = new HashMap<>();
+        fetchLock = new ReentrantLock();
+    }
+
+    /**
+     * Packs the given objects from the local repository and uploads the pack to the remote repository.
+     */
+    public void uploadPack(Collection<SHA1> objects)
+    {
+        Path tempDir = createTempDir();
+
+        try
+        {
+            String name = git.packObjects(objects, tempDir.toFile());
+            logger.debug("Uploading pack: " + name + " (" + objects.size() + " objects)");
+
+            File packFile = tempDir.resolve("pack-" + name + ".pack").toFile();
+            File indexFile = tempDir.resolve("pack-" + name + ".idx").toFile();
+
+            // the index makes the pack visible, so it must come last
+            storage.uploadFile(packPath(name), packFile);
+            storage.uploadFile(indexPath(name), indexFile);
+        }
+        finally
+        {
+            deleteTempDir(tempDir);
+        }
+    }
+
+    /**
+     * Fetches the remote pack that contains the given object into the local repository, unless this has been done
+     * already. Returns false if the object is not contained in any pack. Concurrent fetches of objects from the same
+     * pack wait for the first one, fetches from other packs go on.
+     */
+    public boolean fetchPackContaining(SHA1 sha1)
+    {
+        String name;
+        CompletableFuture<Void> fetch;
+        boolean download = false;
+
+        fetchLock.lock();
+        try
+        {
+            name = findPack(sha1);
+            if (name == null)
+            {
+                return false;
+            }
+
+            fetch = fetchedPacks.get(name);
+            if (fetch == null)
+            {
+                fetch = new CompletableFuture<>();
+                fetchedPacks.put(name, fetch);
+                download = true;
+            }
+        }
+        finally
+        {
+            fetchLock.unlock();
+        }
+
+        if (download)
+        {
+            try
+            {
+                fetchPack(name);
+                fetch.complete(null);
+            }
+            catch (RuntimeException ex)
+            {
+                // the next fetch tries again
+                fetchLock.lock();
+                try
+                {
+                    fetchedPacks.remove(name, fetch);
+                }
+                finally
+                {
+                    fetchLock.unlock();
+                }
+
+                fetch.completeExceptionally(ex);
+                throw ex;
+            }
+        }
+
+        try
+        {
+            fetch.join();
+        }
+        catch (CompletionException ex)
+        {
+            if (ex.getCause() instanceof GitRemoteException)
+            {
+                throw (GitRemoteException) ex.getCause();
+            }
+            throw new GitRemoteException(ex.getCause());
+        }
+
+        return true;
+    }
+
+    /**
+     * Checks whether the given object is contained in any remote pack, without fetching the pack.
+     */
+    public boolean contains(SHA1 sha1)
+    {
+        fetchLock.lock();
+        try
+        {
+            return findPack(sha1) != null;
+        }
+        finally
+        {
+            fetchLock.unlock();
+        }
+    }
+
+    private String findPack(SHA1 sha1)
+    {
+        loadIndexes();
+
+        String name = multiPackIndex.findPack(sha1);
+        if (name != null)
+        {
+            return name;
+        }
+
+        for (Entry<String, PackIndex> entry : indexes.entrySet())
+        {
+            if (entry.getValue().contains(sha1))
+            {
+                return entry.getKey();
+            }
+        }
+
+        return null;
+    }
+
+    private void fetchPack(String name)
+    {
+        logger.debug("Downloading pack: " + name);
+
+        try (InputStream in = storage.downloadStream(packPath(name)))
+        {
+            git.indexPack(in);
+        }
+        catch (IOException io)
+        {
+            throw new GitRemoteException(io);
+        }
+    }
+
+    /**
+     * Loads the multi-pack index and the indexes of all complete packs that are not covered by it.
+     */
+    private void loadIndexes()
+    {
+        if (indexes != null)
+        {
+            return;
+        }
+
+        Collection<Path> files = storage.listFiles(PACK_DIR);
+
+        multiPackIndex = readMultiPackIndex(files);
+        Set<String> covered = new HashSet<>(multiPackIndex.getPackNames());
+
+        Map<Path, String> indexPaths = new LinkedHashMap<>();
+        for (String name : getPackNames(files))
+        {
+            if (!covered.contains(name))
+            {
+                indexPaths.put(indexPath(name), name);
+            }
+        }
+
+        indexes = new LinkedHashMap<>();
+        for (Entry<Path, byte[]> index : storage.downloadFiles(indexPaths.keySet()).entrySet())
+        {
+            indexes.put(indexPaths.get(index.getKey()), new PackIndex(index.getValue()));
+        }
+
+        logger.debug(covered.size() + " indexed and " + indexes.size() + " unindexed remote packs found.");
+    }
+
+    /**
+     * Returns the current multi-pack index, or an empty one if there is none.
+     */
+    private MultiPackIndex readMultiPackIndex(Collection<Path> files)
+    {
+        Path pointer = PACK_DIR.resolve(MULTI_PACK_INDEX);
+        if (!files.contains(pointer))
+        {
+            return new MultiPackIndex(Collections.emptyMap());
+        }
+
+        String name = new String(storage.downloadFile(pointer), StandardCharsets.UTF_8).trim();
+        return new MultiPackIndex(storage.downloadFile(PACK_DIR.resolve(name)));
+    }
+
+    /**
+     * Returns the names of the complete packs, e.g. those that have an index file.
+     */
+    private List<String> getPackNames(Collection<Path> files)
+    {
+        List<String> names = new ArrayList<>();
+        for (Path path : files)
+        {
+            String fileName = path.getFileName().toString();
+            if (fileName.startsWith("pack-") && fileName.endsWith(".idx"))
+            {
+                names.add(fileName.substring("pack-".length(), fileName.length() - ".idx".length()));
+            }
+        }
+
+        return names;
+    }
+
+    /**
+     * Merges the small packs of the remote repository and the given objects into a new pack, which is uploaded along
+     * with a new multi-pack index that covers all remaining packs. The objects must have been written to the given
+     * temporary git repository already, the small packs will be fetched into it. Afterwards, the merged packs are
+     * deleted from the remote repository. Returns the multi-pack index that is current afterwards.
+     *
+     * Note that readers which have loaded the previous multi-pack index before may fail to find the merged packs, so
+     * that they must be restarted.
+     */
+    public MultiPackIndex compact(Git tempGit, Path tempDir, Collection<SHA1> objects)
+    {
+        indexes = null;
+        loadIndexes();
+
+        Map<String, PackIndex> allPacks = new LinkedHashMap<>();
+        for (String name : multiPackIndex.getPackNames())
+        {
+            allPacks.put(name, null);
+        }
+        allPacks.putAll(indexes);
+
+        // keep the large packs, merge the small ones
+        Map<String, PackIndex> keptPacks = new LinkedHashMap<>();
+        Map<String, PackIndex> smallPacks = new LinkedHashMap<>();
+        for (String name : allPacks.keySet())
+        {
+            PackIndex index = allPacks.get(name);
+            if (index == null)
+            {
+                index = new PackIndex(storage.downloadFile(indexPath(name)));
+            }
+
+            if (index.size() < SMALL_PACK_SIZE)
+            {
+                smallPacks.put(name, index);
+            }
+            else
+            {
+                keptPacks.put(name, index);
+            }
+        }
+
+        logger.info("Compacting " + smallPacks.size() + " small packs and " + objects.size() + " objects, keeping "
+                + keptPacks.size() + " large packs.");
+
+        if (objects.isEmpty() && (smallPacks.size() < 2) && indexes.isEmpty())
+        {
+            logger.info("Nothing to compact.");
+            return multiPackIndex;
+        }
+
+        Set<SHA1> merged = new LinkedHashSet<>(objects);
+        for (Entry<String, PackIndex> entry : smallPacks.entrySet())
+        {
+            logger.debug("Downloading pack: " + entry.getKey());
+            try (InputStream in = storage.downloadStream(packPath(entry.getKey())))
+            {
+                tempGit.indexPack(in);
+            }
+            catch (IOException io)
+            {
+                throw new GitRemoteException(io);
+            }
+
+            PackIndex index = entry.getValue();
+            for (int i = 0; i < index.size(); i++)
+            {
+                merged.add(index.getSha1(i));
+            }
+        }
+
+        String newPack = null;
+        if (!merged.isEmpty())
+        {
+            Path packDir = tempDir.resolve("compact");
+            packDir.toFile().mkdirs();
+
+            newPack = tempGit.packObjects(merged, packDir.toFile());
+            logger.debug("Uploading pack: " + newPack + " (" + merged.size() + " objects)");
+
+            storage.uploadFile(packPath(newPack), packDir.resolve("pack-" + newPack + ".pack").toFile());
+            byte[] indexContent = readFile(packDir.resolve("pack-" + newPack + ".idx"));
+            storage.uploadFile(indexPath(newPack), indexContent);
+
+            keptPacks.put(newPack, new PackIndex(indexContent));
+        }
+
+        // swap the multi-pack index with a single upload of the pointer
+        String oldName = readMultiPackIndexName();
+        MultiPackIndex newIndex = new MultiPackIndex(keptPacks);
+        byte[] content = newIndex.toBytes();
+        String newName = MULTI_PACK_INDEX + "-" + SHA1.digest(content);
+
+        storage.uploadFile(PACK_DIR.resolve(newName), content);
+        storage.uploadFile(PACK_DIR.resolve(MULTI_PACK_INDEX), newName.getBytes(StandardCharsets.UTF_8));
+
+        // now the merged packs are no longer needed, the index goes first so that nobody sees incomplete packs
+        for (String name : smallPacks.keySet())
+        {
+            if (!name.equals(newPack))
+            {
+                storage.deleteFile(indexPath(name));
+                storage.deleteFile(packPath(name));
+            }
+        }
+
+        if ((oldName != null) && !oldName.equals(newName))
+        {
+            storage.deleteFile(PACK_DIR.resolve(oldName));
+        }
+
+        indexes = null;
+        logger.info("Compacted into " + keptPacks.size() + " packs.");
+
+        return newIndex;
+    }
+
+    private String readMultiPackIndexName()
+    {
+        Path pointer = PACK_DIR.resolve(MULTI_PACK_INDEX);
+        if (!storage.fileExists(pointer))
+        {
+            return null;
+        }
+
+        return new String(storage.downloadFile(pointer), StandardCharsets.UTF_8).trim();
+    }
+
+    private byte[] readFile(Path path)
+    {
+        try
+        {
+            return Files.readAllBytes(path);
+        }
+        catch (IOException io)
+        {
+            throw new GitRemoteException(io);
+        }
+    }
+
+    static Path packPath(String name)
+    {
+        return PACK_DIR.resolve("pack-" + name + ".pack");
+    }
+
+    static Path indexPath(String name)
+    {
+        return PACK_DIR.resolve("pack-" + name + ".idx");
+    }
+
+    static Path createTempDir()
+    {
+        try
+        {
+            return Files.createTempDirectory("gitremotex");
+        }
+        catch (IOException io)
+        {
+            throw new GitRemoteException(io);
+        }
+    }
+
+    static void deleteTempDir(Path dir)
+    {
+        try (Stream<Path> files = Files.walk(dir))
+        {
+            files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+        catch (IOException io)
+        {
+            // ignore, it's only a temporary directory
+        }
+    }
+}
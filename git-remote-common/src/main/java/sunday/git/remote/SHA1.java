@@ -1,20 +1,27 @@
 package sunday.git.remote;
 
-import java.util.Objects;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 
 /**
- * Represents a SHA1 hash code value, as used by Git for object hashes.
- * 
+ * Represents a SHA1 hash code value, as used by Git for object hashes. The 20 bytes are kept in binary form as two
+ * longs and an int, which takes much less memory than the hex string, and makes comparing fast.
+ *
  * @author Peter H&auml;nsgen
  */
-public class SHA1
+public class SHA1 implements Comparable<SHA1>
 {
     public static final SHA1 EMPTY_TREE_HASH = new SHA1("4b825dc642cb6eb9a060e54bf8d69288fbee4904");
 
-    private String sha1;
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    // bytes 0-7, 8-15 and 16-19 in big-endian order
+    final long w0;
+    final long w1;
+    final int w2;
 
     /**
-     * The constructor.
+     * The constructor, parses the 40 hex digits.
      */
     public SHA1(String sha1)
     {
@@ -23,7 +30,109 @@ public class SHA1
             throw new IllegalArgumentException("SHA1 must have a length of 40 characters.");
         }
 
-        this.sha1 = sha1;
+        w0 = parseHex(sha1, 0, 16);
+        w1 = parseHex(sha1, 16, 16);
+        w2 = (int) parseHex(sha1, 32, 8);
+    }
+
+    SHA1(long w0, long w1, int w2)
+    {
+        this.w0 = w0;
+        this.w1 = w1;
+        this.w2 = w2;
+    }
+
+    private static long parseHex(String s, int offset, int digits)
+    {
+        long value = 0;
+        for (int i = offset; i < offset + digits; i++)
+        {
+            int digit = Character.digit(s.charAt(i), 16);
+            if (digit < 0)
+            {
+                throw new IllegalArgumentException("SHA1 must consist of hex digits: " + s);
+            }
+            value = (value << 4) | digit;
+        }
+
+        return value;
+    }
+
+    /**
+     * Returns the SHA1 for the 20 bytes at the given offset in binary form, as used in pack index files.
+     */
+    public static SHA1 fromBytes(byte[] bytes, int offset)
+    {
+        return new SHA1(readLong(bytes, offset), readLong(bytes, offset + 8), (int) readBits(bytes, offset + 16, 4));
+    }
+
+    private static long readLong(byte[] bytes, int offset)
+    {
+        return readBits(bytes, offset, 8);
+    }
+
+    private static long readBits(byte[] bytes, int offset, int count)
+    {
+        long value = 0;
+        for (int i = offset; i < offset + count; i++)
+        {
+            value = (value << 8) | (bytes[i] & 0xff);
+        }
+
+        return value;
+    }
+
+    /**
+     * Returns the SHA1 hash of the given content.
+     */
+    public static SHA1 digest(byte[] content)
+    {
+        try
+        {
+            return fromBytes(MessageDigest.getInstance("SHA-1").digest(content), 0);
+        }
+        catch (NoSuchAlgorithmException ex)
+        {
+            throw new GitRemoteException(ex);
+        }
+    }
+
+    /**
+     * Returns the 20 bytes of the binary form.
+     */
+    public byte[] toBytes()
+    {
+        byte[] bytes = new byte[20];
+        for (int i = 0; i < 8; i++)
+        {
+            bytes[i] = (byte) (w0 >>> (56 - 8 * i));
+            bytes[8 + i] = (byte) (w1 >>> (56 - 8 * i));
+        }
+        for (int i = 0; i < 4; i++)
+        {
+            bytes[16 + i] = (byte) (w2 >>> (24 - 8 * i));
+        }
+
+        return bytes;
+    }
+
+    /**
+     * Compares the binary forms as unsigned numbers, which is the same order as the order of the hex strings.
+     */
+    @Override
+    public int compareTo(SHA1 that)
+    {
+        int cmp = Long.compareUnsigned(w0, that.w0);
+        if (cmp == 0)
+        {
+            cmp = Long.compareUnsigned(w1, that.w1);
+        }
+        if (cmp == 0)
+        {
+            cmp = Integer.compareUnsigned(w2, that.w2);
+        }
+
+        return cmp;
     }
 
     @Override
@@ -40,18 +149,33 @@ public class SHA1
         }
 
         SHA1 that = (SHA1) object;
-        return Objects.equals(sha1, that.sha1);
+        return (w0 == that.w0) && (w1 == that.w1) && (w2 == that.w2);
     }
 
     @Override
     public int hashCode()
     {
-        return sha1.hashCode();
+        // the bits of a hash are evenly distributed already
+        return (int) (w0 >>> 32);
     }
 
     @Override
     public String toString()
     {
-        return sha1;
+        char[] s = new char[40];
+        formatHex(s, 0, w0, 16);
+        formatHex(s, 16, w1, 16);
+        formatHex(s, 32, w2, 8);
+
+        return new String(s);
+    }
+
+    private static void formatHex(char[] s, int offset, long value, int digits)
+    {
+        for (int i = offset + digits - 1; i >= offset; i--)
+        {
+            s[i] = HEX_DIGITS[(int) (value & 0xf)];
+            value >>>= 4;
+        }
     }
 }
@@ -1,9 +1,18 @@
 package sunday.git.remote;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.file.Path;
 import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
 
 /**
  * Common interface for all storage implementations.
@@ -30,6 +39,36 @@ public interface Storage
      */
     void uploadFile(Path path, byte[] contents);
 
+    /**
+     * Uploads the content that the writer produces, which may be too large for memory. Storages that can upload
+     * while the content is written override this, by default the content is collected in a temporary file first.
+     */
+    default void uploadStream(Path path, ContentWriter writer)
+    {
+        File temp = null;
+        try
+        {
+            temp = File.createTempFile("gitremotex", ".upload");
+            try (OutputStream out = new BufferedOutputStream(new FileOutputStream(temp)))
+            {
+                writer.writeTo(out);
+            }
+
+            uploadFile(path, temp);
+        }
+        catch (IOException io)
+        {
+            throw new GitRemoteException(io);
+        }
+        finally
+        {
+            if (temp != null)
+            {
+                temp.delete();
+            }
+        }
+    }
+
     /**
      * Downloads an existing file from the storage. If it was not found, an
      * exception is thrown.
@@ -51,4 +90,67 @@ public interface Storage
      * List all files that are located within the given path and its subdirectories.
      */
     Collection<Path> listFiles(Path dir);
+
+    /**
+     * Checks which of the given files exist in the repository, and returns them. Storages may answer this with fewer
+     * requests than one per file.
+     */
+    default Set<Path> filesExist(Collection<Path> paths)
+    {
+        Set<Path> existing = new LinkedHashSet<>();
+        for (Path path : paths)
+        {
+            if (fileExists(path))
+            {
+                existing.add(path);
+            }
+        }
+
+        return existing;
+    }
+
+    /**
+     * Downloads the given existing files from the storage, the result maps each path to its content. Storages may
+     * download them concurrently.
+     */
+    default Map<Path, byte[]> downloadFiles(Collection<Path> paths)
+    {
+        Map<Path, byte[]> contents = new LinkedHashMap<>();
+        for (Path path : paths)
+        {
+            contents.put(path, downloadFile(path));
+        }
+
+        return contents;
+    }
+
+    /**
+     * Deletes the files with the given paths from the storage. Storages may delete them with fewer requests than one
+     * per file.
+     */
+    default void deleteFiles(Collection<Path> paths)
+    {
+        for (Path path : paths)
+        {
+            deleteFile(path);
+        }
+    }
+
+    /**
+     * Checks whether the exception means that the storage has rejected an operation because of too many requests, e.g.
+     * the operation may succeed when it is repeated later with less concurrency.
+     */
+    default boolean isThrottled(RuntimeException ex)
+    {
+        return false;
+    }
+
+    /**
+     * Returns the asynchronous variant of this storage. Storages that only support blocking operations run them on
+     * the threads of the given executor.
+     */
+    default AsyncStorage getAsyncStorage(Executor executor)
+    {
+        return new AsyncStorageAdapter(this, executor);
+    }
 }
@@ -0,0 +1,123 @@
+package sunday.git.remote;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Unit test for the adaptive concurrency limiter.
+ *
+ * @author Peter H&auml;nsgen
+ */
+public class ConcurrencyLimiterTest
+{
+    private static final long FAST = 1000000;
+
+    @Test
+    public void testIncreaseWhileSaturated() throws InterruptedException
+    {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(1, 4, 2);
+        assertEquals(2, limiter.getLimit());
+
+        // fast operations that use up the limit raise it up to the ceiling
+        for (int i = 0; i < 100; i++)
+        {
+            int limit = limiter.getLimit();
+            for (int j = 0; j < limit; j++)
+            {
+                limiter.acquire();
+            }
+            for (int j = 0; j < limit; j++)
+            {
+                limiter.release(FAST, false);
+            }
+        }
+
+        assertEquals(4, limiter.getLimit());
+    }
+
+    @Test
+    public void testNoIncreaseWhileIdle() throws InterruptedException
+    {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(1, 4, 2);
+
+        // a single operation at a time does not need more
+        for (int i = 0; i < 100; i++)
+        {
+            limiter.acquire();
+            limiter.release(FAST, false);
+        }
+
+        assertEquals(2, limiter.getLimit());
+    }
+
+    @Test
+    public void testDecreaseOnThrottling() throws InterruptedException
+    {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(2, 64, 32);
+
+        limiter.acquire();
+        limiter.release(FAST, true);
+        assertEquals(16, limiter.getLimit());
+
+        // never below the floor
+        for (int i = 0; i < 10; i++)
+        {
+            Thread.sleep(5);
+            limiter.acquire();
+            limiter.release(0, true);
+        }
+        assertEquals(2, limiter.getLimit());
+    }
+
+    @Test
+    public void testDecreaseOnSlowOperations() throws InterruptedException
+    {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(1, 64, 32);
+
+        for (int i = 0; i < 10; i++)
+        {
+            limiter.acquire();
+            limiter.release(FAST, false);
+        }
+
+        for (int i = 0; i < 20; i++)
+        {
+            limiter.acquire();
+            limiter.release(100 * FAST, false);
+        }
+
+        assertTrue(limiter.getLimit() < 32);
+    }
+
+    @Test
+    public void testAsynchronousAcquire() throws InterruptedException
+    {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(2, 2, 2);
+        List<Integer> started = new ArrayList<>();
+
+        // the first two start right away, the others wait for a release
+        for (int i = 0; i < 4; i++)
+        {
+            int operation = i;
+            limiter.acquire(() -> started.add(operation));
+        }
+        assertEquals(List.of(0, 1), started);
+
+        limiter.release(FAST, false);
+        assertEquals(List.of(0, 1, 2), started);
+
+        limiter.release(FAST, false);
+        limiter.release(FAST, false);
+        assertEquals(List.of(0, 1, 2, 3), started);
+
+        // all permits are back, so blocking operations do not wait
+        limiter.release(FAST, false);
+        limiter.acquire();
+        limiter.acquire();
+    }
+}
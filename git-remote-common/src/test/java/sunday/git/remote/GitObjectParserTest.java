@@ -0,0 +1,85 @@
+package sunday.git.remote;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+/**
+ * Unit test for parsing the references of raw git objects.
+ *
+ * @author Peter H&auml;nsgen
+ */
+public class GitObjectParserTest
+{
+    private static final SHA1 A = new SHA1("0d4c51adb1af62cf63e2a7ef80dbad1bdf8c502e");
+    private static final SHA1 B = new SHA1("6bdbbdcda0bbbdc57fd83bf144954c3a9f218744");
+    private static final SHA1 C = new SHA1("9837ab8f6e90a3144a1bf98855be6a291bab7fec");
+
+    @Test
+    public void testCommit()
+    {
+        String commit = "tree " + A + "\n" //
+                + "parent " + B + "\n" //
+                + "parent " + C + "\n" //
+                + "author Peter <peter@example.com> 1600000000 +0200\n" //
+                + "committer Peter <peter@example.com> 1600000000 +0200\n" //
+                + "\n" //
+                + "parent " + SHA1.EMPTY_TREE_HASH + " is only the message\n";
+
+        Map<SHA1, GitObjectType> refs = GitObjectParser.getReferences(GitObjectType.COMMIT, bytes(commit));
+        assertEquals(List.of(A, B, C), new ArrayList<>(refs.keySet()));
+        assertEquals(GitObjectType.TREE, refs.get(A));
+        assertEquals(GitObjectType.COMMIT, refs.get(B));
+    }
+
+    @Test
+    public void testTag()
+    {
+        String tag = "object " + A + "\n" //
+                + "type commit\n" //
+                + "tag v1\n" //
+                + "tagger Peter <peter@example.com> 1600000000 +0200\n" //
+                + "\n" //
+                + "release\n";
+
+        Map<SHA1, GitObjectType> refs = GitObjectParser.getReferences(GitObjectType.TAG, bytes(tag));
+        assertEquals(Map.of(A, GitObjectType.COMMIT), refs);
+    }
+
+    @Test
+    public void testTree()
+    {
+        ByteArrayOutputStream tree = new ByteArrayOutputStream();
+        entry(tree, "100644 README.md", A);
+        entry(tree, "40000 src", B);
+        entry(tree, "160000 submodule", C);
+        entry(tree, "120000 link ä", SHA1.EMPTY_TREE_HASH);
+
+        Map<SHA1, GitObjectType> refs = GitObjectParser.getReferences(GitObjectType.TREE, tree.toByteArray());
+        assertEquals(List.of(A, B, SHA1.EMPTY_TREE_HASH), new ArrayList<>(refs.keySet()));
+        assertEquals(GitObjectType.BLOB, refs.get(A));
+        assertEquals(GitObjectType.TREE, refs.get(B));
+
+        assertTrue(GitObjectParser.getReferences(GitObjectType.TREE, new byte[0]).isEmpty());
+        assertTrue(GitObjectParser.getReferences(GitObjectType.BLOB, bytes("tree " + A)).isEmpty());
+    }
+
+    private static void entry(ByteArrayOutputStream tree, String modeAndName, SHA1 sha1)
+    {
+        tree.writeBytes(bytes(modeAndName));
+        tree.write(0);
+        tree.writeBytes(sha1.toBytes());
+    }
+
+    private static byte[] bytes(String s)
+    {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+}
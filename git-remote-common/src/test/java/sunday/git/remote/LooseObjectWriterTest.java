@@ -0,0 +1,129 @@
+package sunday.git.remote;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.DeflaterOutputStream;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Unit test for writing loose objects directly into the object directory.
+ *
+ * @author Peter H&auml;nsgen
+ */
+public class LooseObjectWriterTest
+{
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    private Git git;
+    private MemoryBudget memoryBudget;
+
+    @Before
+    public void before()
+    {
+        git = new Git(temp.getRoot(), temp.getRoot());
+        assertEquals(0, git.executeGitCommand("init", "--bare").getExitValue());
+        memoryBudget = new MemoryBudget(1024 * 1024);
+    }
+
+    @Test
+    public void testWriteBlob() throws IOException
+    {
+        byte[] raw = "blob 5\0hello".getBytes(StandardCharsets.UTF_8);
+        byte[] encoded = deflate(raw);
+        SHA1 sha1 = SHA1.digest(raw);
+        assertEquals("b6fc4c620b67d95f953a5c1c1230aaab5db5a1b0", sha1.toString());
+
+        new LooseObjectWriter(git, sha1, memoryBudget).write(new ByteArrayInputStream(encoded), null);
+
+        // the compressed bytes are stored as they are
+        File file = git.getLooseObjectFile(sha1);
+        assertArrayEquals(encoded, Files.readAllBytes(file.toPath()));
+        assertEquals(1, file.getParentFile().list().length);
+    }
+
+    @Test
+    public void testReferences() throws IOException
+    {
+        SHA1 tree = new SHA1("4b825dc642cb6eb9a060e54bf8d69288fbee4904");
+        byte[] body = ("tree " + tree + "\nauthor a <a> 0 +0000\ncommitter a <a> 0 +0000\n\nmessage\n")
+                .getBytes(StandardCharsets.UTF_8);
+
+        ByteArrayOutputStream raw = new ByteArrayOutputStream();
+        raw.write(("commit " + body.length + "\0").getBytes(StandardCharsets.UTF_8));
+        raw.write(body);
+
+        SHA1 sha1 = SHA1.digest(raw.toByteArray());
+        Map<SHA1, GitObjectType> references = new HashMap<>();
+        new LooseObjectWriter(git, sha1, memoryBudget).write(new ByteArrayInputStream(deflate(raw.toByteArray())),
+                references);
+
+        assertEquals(GitObjectType.TREE, references.get(tree));
+        assertEquals(0, memoryBudget.getUsed());
+    }
+
+    @Test
+    public void testWrongHash() throws IOException
+    {
+        byte[] raw = "blob 5\0hello".getBytes(StandardCharsets.UTF_8);
+        SHA1 other = SHA1.digest("blob 5\0world".getBytes(StandardCharsets.UTF_8));
+
+        assertFails(other, deflate(raw));
+    }
+
+    @Test
+    public void testTruncated() throws IOException
+    {
+        byte[] raw = "blob 5\0hello".getBytes(StandardCharsets.UTF_8);
+        byte[] encoded = deflate(raw);
+
+        assertFails(SHA1.digest(raw), Arrays.copyOf(encoded, encoded.length - 3));
+    }
+
+    /**
+     * Checks that writing fails, and that neither the object nor a temporary file are left.
+     */
+    private void assertFails(SHA1 sha1, byte[] encoded)
+    {
+        try
+        {
+            new LooseObjectWriter(git, sha1, memoryBudget).write(new ByteArrayInputStream(encoded), null);
+            fail("Invalid object has been written.");
+        }
+        catch (GitRemoteException ex)
+        {
+            // expected
+        }
+
+        File file = git.getLooseObjectFile(sha1);
+        assertFalse(file.exists());
+        assertEquals(0, file.getParentFile().list().length);
+    }
+
+    private byte[] deflate(byte[] raw) throws IOException
+    {
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+        try (DeflaterOutputStream out = new DeflaterOutputStream(encoded))
+        {
+            out.write(raw);
+        }
+
+        return encoded.toByteArray();
+    }
+}
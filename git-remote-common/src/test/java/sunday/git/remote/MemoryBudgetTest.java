@@ -0,0 +1,80 @@
+package sunday.git.remote;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * Unit test for the memory budget.
+ *
+ * @author Peter H&auml;nsgen
+ */
+public class MemoryBudgetTest
+{
+    @Test
+    public void testAcquireAndRelease() throws InterruptedException
+    {
+        MemoryBudget budget = new MemoryBudget(100);
+
+        long first = budget.acquire(60);
+        long second = budget.acquire(40);
+        assertEquals(60, first);
+        assertEquals(40, second);
+        assertEquals(100, budget.getUsed());
+
+        // empty objects need no memory
+        assertEquals(0, budget.acquire(0));
+
+        budget.release(first);
+        budget.release(second);
+        assertEquals(0, budget.getUsed());
+    }
+
+    @Test
+    public void testWaitForMemory() throws InterruptedException
+    {
+        MemoryBudget budget = new MemoryBudget(100);
+        long reserved = budget.acquire(80);
+
+        CountDownLatch acquired = new CountDownLatch(1);
+        Thread thread = new Thread(() -> {
+            try
+            {
+                budget.acquire(50);
+                acquired.countDown();
+            }
+            catch (InterruptedException ex)
+            {
+                // test fails below
+            }
+        });
+        thread.start();
+
+        // the second object does not fit until the first one is released
+        assertEquals(1, acquired.getCount());
+        Thread.sleep(50);
+        assertEquals(1, acquired.getCount());
+
+        budget.release(reserved);
+        assertTrue(acquired.await(5, TimeUnit.SECONDS));
+        assertEquals(50, budget.getUsed());
+    }
+
+    @Test
+    public void testLargeObject() throws InterruptedException
+    {
+        MemoryBudget budget = new MemoryBudget(100);
+
+        // an object larger than the budget takes all of it
+        long reserved = budget.acquire(500);
+        assertEquals(100, reserved);
+        assertEquals(100, budget.getUsed());
+
+        budget.release(reserved);
+        assertEquals(0, budget.getUsed());
+    }
+}
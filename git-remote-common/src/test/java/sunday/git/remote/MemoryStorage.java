@@ -0,0 +1,81 @@
+package sunday.git.remote;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A simple storage for unit tests that keeps the files in memory.
+ *
+ * @author Peter H&auml;nsgen
+ */
+class MemoryStorage implements Storage
+{
+    Map<Path, byte[]> files = new HashMap<>();
+
+    @Override
+    public boolean fileExists(Path path)
+    {
+        return files.containsKey(path);
+    }
+
+    @Override
+    public void uploadFile(Path path, File file)
+    {
+        try
+        {
+            files.put(path, Files.readAllBytes(file.toPath()));
+        }
+        catch (IOException io)
+        {
+            throw new GitRemoteException(io);
+        }
+    }
+
+    @Override
+    public void uploadFile(Path path, byte[] contents)
+    {
+        files.put(path, contents);
+    }
+
+    @Override
+    public byte[] downloadFile(Path path)
+    {
+        return files.get(path);
+    }
+
+    @Override
+    public InputStream downloadStream(Path path)
+    {
+        return new ByteArrayInputStream(files.get(path));
+    }
+
+    @Override
+    public void deleteFile(Path path)
+    {
+        files.remove(path);
+    }
+
+    @Override
+    public Collection<Path> listFiles(Path dir)
+    {
+        List<Path> result = new ArrayList<>();
+        for (Path path : files.keySet())
+        {
+            if (path.startsWith(dir))
+            {
+                result.add(path);
+            }
+        }
+
+        return result;
+    }
+}
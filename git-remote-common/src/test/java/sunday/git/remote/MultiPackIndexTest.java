@@ -0,0 +1,109 @@
+package sunday.git.remote;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+/**
+ * Unit test for the multi-pack index.
+ * 
+ * @author Peter H&auml;nsgen
+ */
+public class MultiPackIndexTest
+{
+    private static final SHA1 A = new SHA1("0d4c51adb1af62cf63e2a7ef80dbad1bdf8c502e");
+    private static final SHA1 B = new SHA1("6bdbbdcda0bbbdc57fd83bf144954c3a9f218744");
+    private static final SHA1 C = new SHA1("9837ab8f6e90a3144a1bf98855be6a291bab7fec");
+    private static final SHA1 D = new SHA1("f0e8bdb87c964420e857bd35b5d6ed310bd44f01");
+
+    @Test
+    public void testMultiPackIndex()
+    {
+        Map<String, PackIndex> packs = new LinkedHashMap<>();
+        packs.put("pack1", createPackIndex(new SHA1[] { A, C }, new long[] { 12, 3000000000L }));
+        packs.put("pack2", createPackIndex(new SHA1[] { B, C, D }, new long[] { 12, 34, 56 }));
+
+        MultiPackIndex index = new MultiPackIndex(packs);
+        assertEquals(4, index.size());
+        assertEquals(Arrays.asList("pack1", "pack2"), index.getPackNames());
+
+        // write and read again
+        MultiPackIndex index2 = new MultiPackIndex(index.toBytes());
+        assertEquals(4, index2.size());
+
+        assertEquals("pack1", index2.findPack(A));
+        assertEquals("pack2", index2.findPack(B));
+        assertEquals(12, index2.findOffset(B));
+
+        // duplicates are taken from the first pack
+        assertEquals("pack1", index2.findPack(C));
+        assertEquals(3000000000L, index2.findOffset(C));
+
+        assertEquals("pack2", index2.findPack(D));
+        assertNull(index2.findPack(SHA1.EMPTY_TREE_HASH));
+        assertEquals(-1, index2.findOffset(SHA1.EMPTY_TREE_HASH));
+    }
+
+    /**
+     * Creates a pack index file in version 2 format for the given sorted object ids.
+     */
+    private PackIndex createPackIndex(SHA1[] objects, long[] offsets)
+    {
+        ByteBuffer buffer = ByteBuffer.allocate(8 + 256 * 4 + objects.length * (20 + 4 + 4 + 8) + 40);
+        buffer.putInt(0xff744f63);
+        buffer.putInt(2);
+
+        for (int i = 0; i < 256; i++)
+        {
+            int count = 0;
+            for (SHA1 sha1 : objects)
+            {
+                if ((sha1.toBytes()[0] & 0xff) <= i)
+                {
+                    count++;
+                }
+            }
+            buffer.putInt(count);
+        }
+
+        for (SHA1 sha1 : objects)
+        {
+            buffer.put(sha1.toBytes());
+        }
+
+        // CRC32 values
+        for (int i = 0; i < objects.length; i++)
+        {
+            buffer.putInt(0);
+        }
+
+        int largeOffsets = 0;
+        for (long offset : offsets)
+        {
+            if (offset > Integer.MAX_VALUE)
+            {
+                buffer.putInt(0x80000000 | largeOffsets++);
+            }
+            else
+            {
+                buffer.putInt((int) offset);
+            }
+        }
+
+        for (long offset : offsets)
+        {
+            if (offset > Integer.MAX_VALUE)
+            {
+                buffer.putLong(offset);
+            }
+        }
+
+        return new PackIndex(buffer.array());
+    }
+}
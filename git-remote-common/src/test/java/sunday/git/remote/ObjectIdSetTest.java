@@ -0,0 +1,96 @@
+package sunday.git.remote;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Test;
+
+/**
+ * Unit test for the binary object ids and the object id set.
+ *
+ * @author Peter H&auml;nsgen
+ */
+public class ObjectIdSetTest
+{
+    private static final SHA1 ZERO = new SHA1("0000000000000000000000000000000000000000");
+
+    @Test
+    public void testSHA1()
+    {
+        String hex = "ffdbbdcda0bbbdc57fd83bf144954c3a9f218744";
+        SHA1 sha1 = new SHA1(hex);
+        assertEquals(hex, sha1.toString());
+        assertEquals(sha1, SHA1.fromBytes(sha1.toBytes(), 0));
+        assertEquals(sha1, new SHA1(hex.toUpperCase()));
+
+        // unsigned order, like the hex strings
+        SHA1 low = new SHA1("0d4c51adb1af62cf63e2a7ef80dbad1bdf8c502e");
+        assertTrue(low.compareTo(sha1) < 0);
+        assertTrue(sha1.compareTo(low) > 0);
+        assertEquals(0, sha1.compareTo(new SHA1(hex)));
+        assertTrue(new SHA1("ffdbbdcda0bbbdc57fd83bf144954c3a9f218745").compareTo(sha1) > 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidSHA1()
+    {
+        new SHA1("0d4c51adb1af62cf63e2a7ef80dbad1bdf8c502x");
+    }
+
+    @Test
+    public void testObjectIdSet()
+    {
+        ObjectIdSet set = new ObjectIdSet();
+        Set<SHA1> expected = new HashSet<>();
+
+        // ids that share the first word end up in the same probe sequence
+        for (int i = 0; i < 1000; i++)
+        {
+            SHA1 sha1 = new SHA1(i % 3 == 0 ? 42 : i * 0x9e3779b97f4a7c15L, i, -i);
+            assertTrue(set.add(sha1));
+            expected.add(sha1);
+        }
+        assertTrue(set.add(ZERO));
+        expected.add(ZERO);
+        assertFalse(set.add(ZERO));
+        assertFalse(set.add(new SHA1(42, 3, -3)));
+
+        assertEquals(expected.size(), set.size());
+        assertEquals(expected, new HashSet<>(set));
+        assertTrue(set.containsAll(expected));
+        assertFalse(set.contains(new SHA1(42, 1, -1)));
+
+        List<SHA1> removed = new ArrayList<>();
+        for (SHA1 sha1 : expected)
+        {
+            if ((sha1.w1 % 2) == 0)
+            {
+                removed.add(sha1);
+            }
+        }
+        assertTrue(set.removeAll(removed));
+        expected.removeAll(removed);
+        assertFalse(set.remove(ZERO));
+
+        assertEquals(expected.size(), set.size());
+        assertEquals(expected, new HashSet<>(set));
+        for (SHA1 sha1 : expected)
+        {
+            assertTrue(set.contains(sha1));
+        }
+        for (SHA1 sha1 : removed)
+        {
+            assertFalse(set.contains(sha1));
+        }
+
+        set.clear();
+        assertTrue(set.isEmpty());
+        assertFalse(set.iterator().hasNext());
+    }
+}
@@ -0,0 +1,93 @@
+package sunday.git.remote;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+/**
+ * Unit test for the object inventory.
+ *
+ * @author Peter H&auml;nsgen
+ */
+public class ObjectInventoryTest
+{
+    @Test
+    public void testMergeSmallSegments()
+    {
+        MemoryStorage storage = new MemoryStorage();
+
+        // every push adds a segment, but they are merged so that their number stays bounded
+        List<SHA1> pushed = new ArrayList<>();
+        for (int i = 0; i < 50; i++)
+        {
+            ObjectInventory inventory = new ObjectInventory(storage, new GitLogger());
+            inventory.load();
+
+            SHA1 sha1 = SHA1.digest(("object " + i).getBytes(StandardCharsets.UTF_8));
+            inventory.add(sha1);
+            inventory.flush();
+            pushed.add(sha1);
+
+            assertTrue(storage.listFiles(ObjectInventory.INVENTORY_DIR).size() <= ObjectInventory.MAX_SMALL_SEGMENTS);
+        }
+
+        ObjectInventory inventory = new ObjectInventory(storage, new GitLogger());
+        inventory.load();
+        for (SHA1 sha1 : pushed)
+        {
+            assertTrue(inventory.contains(sha1));
+        }
+    }
+
+    @Test
+    public void testSegmentMergedMeanwhile()
+    {
+        SHA1 sha1 = SHA1.digest("object".getBytes(StandardCharsets.UTF_8));
+        Path gone = ObjectInventory.INVENTORY_DIR.resolve(SHA1.EMPTY_TREE_HASH.toString());
+
+        // the next listing still contains a segment that is deleted before it is downloaded
+        AtomicBoolean stale = new AtomicBoolean();
+        MemoryStorage storage = new MemoryStorage()
+        {
+            @Override
+            public Collection<Path> listFiles(Path dir)
+            {
+                Collection<Path> files = super.listFiles(dir);
+                if (stale.getAndSet(false))
+                {
+                    files.add(gone);
+                }
+                return files;
+            }
+
+            @Override
+            public byte[] downloadFile(Path path)
+            {
+                if (!files.containsKey(path))
+                {
+                    throw new GitRemoteException("File not found: " + path);
+                }
+                return super.downloadFile(path);
+            }
+        };
+
+        ObjectInventory writer = new ObjectInventory(storage, new GitLogger());
+        writer.load();
+        writer.add(sha1);
+        writer.flush();
+
+        stale.set(true);
+        ObjectInventory reader = new ObjectInventory(storage, new GitLogger());
+        reader.load();
+        assertTrue(reader.contains(sha1));
+        assertEquals(1, storage.listFiles(ObjectInventory.INVENTORY_DIR).size());
+    }
+}
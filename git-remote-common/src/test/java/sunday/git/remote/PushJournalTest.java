@@ -0,0 +1,95 @@
+package sunday.git.remote;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Unit test for the journal of interrupted pushes.
+ *
+ * @author Peter H&auml;nsgen
+ */
+public class PushJournalTest
+{
+    private static final String URL = "local:///tmp/repo.git";
+    private static final List<String> REFS = List.of("refs/heads/master", "refs/heads/feature");
+
+    private static final SHA1 BATCH = PushJournal.getBatchId(
+            Map.of("refs/heads/master", new SHA1("1b2e1d63ff9b0bdc3b1e5f1b4b1c8e7a0a6f1f52")));
+    private static final SHA1 A = new SHA1("0d4c51adb1af62cf63e2a7ef80dbad1bdf8c502e");
+    private static final SHA1 B = new SHA1("6bdbbdcda0bbbdc57fd83bf144954c3a9f218744");
+    private static final SHA1 C = new SHA1("9837ab8f6e90a3144a1bf98855be6a291bab7fec");
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    @Test
+    public void testPushJournal()
+    {
+        File gitDir = temp.getRoot();
+
+        // a plan that has not been completed cannot be resumed
+        PushJournal journal = new PushJournal(gitDir, URL, REFS);
+        journal.start(BATCH);
+        journal.planned(A);
+        journal.close();
+        assertFalse(new PushJournal(gitDir, URL, REFS).canResume(BATCH));
+
+        journal = new PushJournal(gitDir, URL, REFS);
+        journal.start(BATCH);
+        journal.planned(A);
+        journal.planned(B);
+        journal.planned(C);
+        journal.planComplete();
+        journal.done(B);
+
+        // records that are still buffered count, too
+        List<SHA1> remaining = new ArrayList<>();
+        journal.forEachRemaining(remaining::add);
+        assertEquals(List.of(A, C), remaining);
+        journal.close();
+
+        // only the objects that have not been uploaded remain, the order of the refs does not matter
+        journal = new PushJournal(gitDir, URL, List.of("refs/heads/feature", "refs/heads/master"));
+        assertTrue(journal.canResume(BATCH));
+        assertFalse(journal.canResume(A));
+        assertFalse(new PushJournal(gitDir, URL, List.of("refs/heads/master")).canResume(BATCH));
+
+        remaining.clear();
+        journal.forEachRemaining(remaining::add);
+        assertEquals(List.of(A, C), remaining);
+
+        journal.delete();
+        assertFalse(new PushJournal(gitDir, URL, REFS).canResume(BATCH));
+    }
+
+    @Test
+    public void testFlush()
+    {
+        File gitDir = temp.getRoot();
+
+        PushJournal journal = new PushJournal(gitDir, URL, REFS);
+        journal.start(BATCH);
+        journal.planned(A);
+        journal.planned(B);
+        journal.planComplete();
+        journal.done(A);
+        journal.flush();
+
+        // a killed process does not close the journal, but the flushed records are there
+        List<SHA1> remaining = new ArrayList<>();
+        new PushJournal(gitDir, URL, REFS).forEachRemaining(remaining::add);
+        assertEquals(List.of(B), remaining);
+
+        journal.close();
+    }
+}
@@ -0,0 +1,109 @@
+package sunday.git.remote;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+/**
+ * Unit test for the remote bundles.
+ *
+ * @author Peter H&auml;nsgen
+ */
+public class RemoteBundlesTest
+{
+    private static final SHA1 A = new SHA1("0d4c51adb1af62cf63e2a7ef80dbad1bdf8c502e");
+    private static final SHA1 B = new SHA1("6bdbbdcda0bbbdc57fd83bf144954c3a9f218744");
+    private static final SHA1 C = new SHA1("9837ab8f6e90a3144a1bf98855be6a291bab7fec");
+
+    @Test
+    public void testRemoteBundles()
+    {
+        MemoryStorage storage = new MemoryStorage();
+
+        // objects are added in any order
+        RemoteBundles bundles = new RemoteBundles(storage, new GitLogger());
+        assertNull(bundles.add(C, new byte[] { 3, 3, 3 }));
+        assertNull(bundles.add(A, new byte[] { 1 }));
+        assertNull(bundles.add(B, new byte[] { 2, 2 }));
+        bundles.upload(bundles.takeCurrent());
+        assertNull(bundles.takeCurrent());
+
+        assertEquals(1, bundles.getBundleNames().size());
+
+        // read them with a new instance like a fetch does
+        RemoteBundles reader = new RemoteBundles(storage, new GitLogger());
+        assertArrayEquals(new byte[] { 1 }, reader.readObject(A));
+        assertArrayEquals(new byte[] { 2, 2 }, reader.readObject(B));
+        assertArrayEquals(new byte[] { 3, 3, 3 }, reader.readObject(C));
+        assertNull(reader.readObject(SHA1.EMPTY_TREE_HASH));
+
+        List<SHA1> objects = new ArrayList<>();
+        reader.forEachObject(reader.getBundleNames().get(0), (sha1, encoded) -> objects.add(sha1));
+        assertEquals(List.of(A, B, C), objects);
+
+        reader.delete(reader.getBundleNames().get(0));
+        assertEquals(0, storage.files.size());
+    }
+
+    @Test
+    public void testConcurrentReads() throws Exception
+    {
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger downloads = new AtomicInteger();
+
+        // the first container hangs until it is released
+        MemoryStorage storage = new MemoryStorage()
+        {
+            @Override
+            public byte[] downloadFile(Path path)
+            {
+                if (path.toString().endsWith(".data") && (downloads.incrementAndGet() == 1))
+                {
+                    try
+                    {
+                        release.await();
+                    }
+                    catch (InterruptedException ex)
+                    {
+                        throw new GitRemoteException(ex);
+                    }
+                }
+                return super.downloadFile(path);
+            }
+        };
+
+        RemoteBundles bundles = new RemoteBundles(storage, new GitLogger());
+        bundles.add(A, new byte[] { 1 });
+        bundles.upload(bundles.takeCurrent());
+        bundles.add(B, new byte[] { 2, 2 });
+        bundles.upload(bundles.takeCurrent());
+
+        RemoteBundles reader = new RemoteBundles(storage, new GitLogger());
+        CompletableFuture<byte[]> first = CompletableFuture.supplyAsync(() -> reader.readObject(A));
+        while (downloads.get() == 0)
+        {
+            Thread.sleep(10);
+        }
+
+        // a reader of the same bundle waits for the running download, a reader of another bundle does not
+        CompletableFuture<byte[]> second = CompletableFuture.supplyAsync(() -> reader.readObject(A));
+        assertArrayEquals(new byte[] { 2, 2 }, reader.readObject(B));
+        assertTrue(!first.isDone() && !second.isDone());
+
+        release.countDown();
+        assertArrayEquals(new byte[] { 1 }, first.get(5, TimeUnit.SECONDS));
+        assertArrayEquals(new byte[] { 1 }, second.get(5, TimeUnit.SECONDS));
+        assertEquals(2, downloads.get());
+    }
+}
@@ -0,0 +1,38 @@
+package sunday.git.remote;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Unit test for the remote manifests.
+ *
+ * @author Peter H&auml;nsgen
+ */
+public class RemoteManifestsTest
+{
+    private static final SHA1 COMMIT = new SHA1("1b2e1d63ff9b0bdc3b1e5f1b4b1c8e7a0a6f1f52");
+    private static final SHA1 BASE = new SHA1("0d4c51adb1af62cf63e2a7ef80dbad1bdf8c502e");
+    private static final SHA1 A = new SHA1("6bdbbdcda0bbbdc57fd83bf144954c3a9f218744");
+    private static final SHA1 B = new SHA1("9837ab8f6e90a3144a1bf98855be6a291bab7fec");
+
+    @Test
+    public void testRemoteManifests()
+    {
+        MemoryStorage storage = new MemoryStorage();
+
+        RemoteManifests manifests = new RemoteManifests(storage, new GitLogger());
+        manifests.write(COMMIT, List.of(BASE), List.of(COMMIT, A, B));
+
+        // read it with a new instance like a fetch does
+        RemoteManifests reader = new RemoteManifests(storage, new GitLogger());
+        RemoteManifests.Manifest manifest = reader.read(COMMIT);
+        assertEquals(List.of(BASE), manifest.getBases());
+        assertEquals(List.of(COMMIT, A, B), manifest.getObjects());
+
+        assertNull(reader.read(BASE));
+    }
+}
@@ -0,0 +1,113 @@
+package sunday.git.remote;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Unit test for the local cache of remote objects.
+ *
+ * @author Peter H&auml;nsgen
+ */
+public class RemoteObjectCacheTest
+{
+    private static final String URL = "local:///tmp/repo.git";
+
+    private static final SHA1 A = new SHA1("0d4c51adb1af62cf63e2a7ef80dbad1bdf8c502e");
+    private static final SHA1 B = new SHA1("6bdbbdcda0bbbdc57fd83bf144954c3a9f218744");
+    private static final SHA1 C = new SHA1("9837ab8f6e90a3144a1bf98855be6a291bab7fec");
+
+    private static final SHA1 GENERATION = new SHA1("4b825dc642cb6eb9a060e54bf8d69288fbee4904");
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    @Test
+    public void testRemoteObjectCache() throws IOException
+    {
+        File gitDir = temp.getRoot();
+
+        RemoteObjectCache cache = new RemoteObjectCache(gitDir, URL, new GitLogger());
+        cache.load(GENERATION);
+        cache.add(A);
+        cache.add(B);
+        cache.close();
+
+        // simulate an interrupted write of a third record
+        File file = new File(new File(gitDir, "remotex"), SHA1.digest(URL.getBytes()).toString());
+        try (FileOutputStream out = new FileOutputStream(new File(file, "objects"), true))
+        {
+            out.write(new byte[7]);
+        }
+
+        cache = new RemoteObjectCache(gitDir, URL, new GitLogger());
+        cache.load(GENERATION);
+        assertTrue(cache.contains(A));
+        assertTrue(cache.contains(B));
+        assertFalse(cache.contains(C));
+
+        // appends after the cut-off record must be readable again
+        cache.add(C);
+        cache.close();
+
+        cache = new RemoteObjectCache(gitDir, URL, new GitLogger());
+        cache.load(GENERATION);
+        assertTrue(cache.contains(A));
+        assertTrue(cache.contains(C));
+
+        // other remotes have their own cache
+        RemoteObjectCache other = new RemoteObjectCache(gitDir, "local:///tmp/other.git", new GitLogger());
+        other.load(GENERATION);
+        assertFalse(other.contains(A));
+    }
+
+    @Test
+    public void testGeneration()
+    {
+        File gitDir = temp.getRoot();
+        MemoryStorage storage = new MemoryStorage();
+
+        ObjectInventory inventory = new ObjectInventory(storage, new GitLogger());
+        inventory.load();
+        inventory.markComplete();
+
+        RemoteObjectCache cache = new RemoteObjectCache(gitDir, URL, new GitLogger());
+        cache.load(inventory.getGeneration());
+        cache.add(A);
+        cache.close();
+
+        // the same remote repository keeps its generation
+        inventory = new ObjectInventory(storage, new GitLogger());
+        inventory.load();
+        cache = new RemoteObjectCache(gitDir, URL, new GitLogger());
+        cache.load(inventory.getGeneration());
+        assertTrue(cache.contains(A));
+        cache.close();
+
+        // a recreated remote repository starts with the same empty inventory, but the objects are gone
+        MemoryStorage recreated = new MemoryStorage();
+        inventory = new ObjectInventory(recreated, new GitLogger());
+        inventory.load();
+        inventory.markComplete();
+
+        cache = new RemoteObjectCache(gitDir, URL, new GitLogger());
+        cache.load(inventory.getGeneration());
+        assertFalse(cache.contains(A));
+        cache.add(B);
+        cache.close();
+
+        // compaction replaces the full segment
+        inventory.replace(Collections.singletonList(B));
+        cache = new RemoteObjectCache(gitDir, URL, new GitLogger());
+        cache.load(inventory.getGeneration());
+        assertFalse(cache.contains(B));
+    }
+}
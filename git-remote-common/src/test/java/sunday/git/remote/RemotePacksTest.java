@@ -0,0 +1,105 @@
+package sunday.git.remote;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Unit test for the remote packs.
+ *
+ * @author Peter H&auml;nsgen
+ */
+public class RemotePacksTest
+{
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    @Test
+    public void testConcurrentFetches() throws Exception
+    {
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger downloads = new AtomicInteger();
+
+        // the first pack hangs until it is released
+        MemoryStorage storage = new MemoryStorage()
+        {
+            @Override
+            public InputStream downloadStream(Path path)
+            {
+                if (downloads.incrementAndGet() == 1)
+                {
+                    try
+                    {
+                        release.await();
+                    }
+                    catch (InterruptedException ex)
+                    {
+                        throw new GitRemoteException(ex);
+                    }
+                }
+                return super.downloadStream(path);
+            }
+        };
+
+        Git source = createRepository("source");
+        SHA1 a = source.writeObject(GitObjectType.BLOB, "a".getBytes(StandardCharsets.UTF_8));
+        SHA1 b = source.writeObject(GitObjectType.BLOB, "b".getBytes(StandardCharsets.UTF_8));
+
+        RemotePacks packs = new RemotePacks(source, new GitLogger(), storage);
+        packs.uploadPack(List.of(a));
+        packs.uploadPack(List.of(b));
+
+        Git target = createRepository("target");
+        try
+        {
+            RemotePacks reader = new RemotePacks(target, new GitLogger(), storage);
+            CompletableFuture<Boolean> first = CompletableFuture.supplyAsync(() -> reader.fetchPackContaining(a));
+            while (downloads.get() == 0)
+            {
+                Thread.sleep(10);
+            }
+
+            // a fetch from the same pack waits for the running download, lookups and other packs do not
+            CompletableFuture<Boolean> second = CompletableFuture.supplyAsync(() -> reader.fetchPackContaining(a));
+            assertTrue(reader.contains(a));
+            assertTrue(reader.fetchPackContaining(b));
+            assertTrue(target.objectExists(b));
+            assertFalse(first.isDone() || second.isDone());
+
+            release.countDown();
+            assertTrue(first.get(5, TimeUnit.SECONDS));
+            assertTrue(second.get(5, TimeUnit.SECONDS));
+            assertTrue(target.objectExists(a));
+            assertEquals(2, downloads.get());
+
+            assertFalse(reader.fetchPackContaining(SHA1.EMPTY_TREE_HASH));
+        }
+        finally
+        {
+            source.close();
+            target.close();
+        }
+    }
+
+    private Git createRepository(String name) throws Exception
+    {
+        File dir = temp.newFolder(name);
+        Git git = new Git(dir, dir);
+        assertEquals(0, git.executeGitCommand("init", "--bare").getExitValue());
+        return git;
+    }
+}
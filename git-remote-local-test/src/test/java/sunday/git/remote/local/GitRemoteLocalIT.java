@@ -160,6 +160,70 @@ public class GitRemoteLocalIT
         assertFileContains("File3", testFile23);
     }
 
+    /**
+     * Linked worktrees have their own git directory, but share the objects of the main repository.
+     */
+    @Test
+    public void testWorktree() throws IOException
+    {
+        File test1Dir = temp.newFolder("test1");
+        File test1GitDir = new File(test1Dir, ".git");
+        test1GitDir.mkdir();
+
+        Git git1 = new Git(test1Dir, test1GitDir);
+        assertEquals(0, git1.executeGitCommand("init").getExitValue());
+        assertEquals(0, git1.executeGitCommand("config", "user.email", "test@example.com").getExitValue());
+        assertEquals(0, git1.executeGitCommand("config", "user.name", "Test User").getExitValue());
+
+        File testFile11 = new File(test1Dir, "file1.txt");
+        Files.writeString(testFile11.toPath(), "File1");
+        assertEquals(0, git1.executeGitCommand("add", testFile11.getName()).getExitValue());
+        assertEquals(0, git1.executeGitCommand("commit", "-m", "'Initial commit'").getExitValue());
+
+        File storageDir = temp.newFolder("storage");
+        String url = "local://" + storageDir.getAbsolutePath() + "/test.git";
+        assertEquals(0, git1.executeGitCommand("remote", "add", "origin", url).getExitValue());
+        assertEquals(0, git1.executeGitCommand("push", "-v", "--set-upstream", "origin", "master").getExitValue());
+
+        // clone, and add a worktree to the clone
+        File test2Dir = temp.newFolder("test2");
+        Git gitClone = new Git(test2Dir.getParentFile(), test2Dir.getParentFile());
+        assertEquals(0, gitClone.executeGitCommand("clone", "-v", url, "test2").getExitValue());
+
+        Git git2 = new Git(test2Dir, new File(test2Dir, ".git"));
+        assertEquals(0, git2.executeGitCommand("config", "user.email", "test@example.com").getExitValue());
+        assertEquals(0, git2.executeGitCommand("config", "user.name", "Test User").getExitValue());
+
+        File worktreeDir = new File(temp.getRoot(), "worktree");
+        assertEquals(0, git2.executeGitCommand("worktree", "add", "-b", "work", worktreeDir.getAbsolutePath(),
+                "origin/master").getExitValue());
+
+        // the git directory of the worktree has no objects
+        Git worktree = new Git(worktreeDir, new File(test2Dir, ".git/worktrees/worktree"));
+        assertEquals(new File(test2Dir, ".git/objects").getCanonicalFile(),
+                worktree.getObjectDir().getCanonicalFile());
+
+        // fetch into the worktree
+        Files.writeString(testFile11.toPath(), "File1 Change1");
+        assertEquals(0, git1.executeGitCommand("commit", "-a", "-m", "'Second commit'").getExitValue());
+        assertEquals(0, git1.executeGitCommand("push", "-v").getExitValue());
+
+        assertEquals(0, worktree.executeGitCommand("pull", "-v", "origin", "master").getExitValue());
+        assertFileContains("File1 Change1", new File(worktreeDir, "file1.txt"));
+
+        // push from the worktree
+        File testFile22 = new File(worktreeDir, "file2.txt");
+        Files.writeString(testFile22.toPath(), "File2");
+        assertEquals(0, worktree.executeGitCommand("add", testFile22.getName()).getExitValue());
+        assertEquals(0, worktree.executeGitCommand("commit", "-m", "'Third commit'").getExitValue());
+        assertEquals(0, worktree.executeGitCommand("push", "-v", "origin", "work:master").getExitValue());
+        assertEquals(0, worktree.executeGitCommand("fsck").getExitValue());
+
+        assertEquals(0, git1.executeGitCommand("pull", "-v").getExitValue());
+        assertFileContains("File2", new File(test1Dir, "file2.txt"));
+        assertEquals(0, git1.executeGitCommand("fsck").getExitValue());
+    }
+
     private void assertFileContains(String expectedContent, File file) throws IOException
     {
         assertEquals(expectedContent, Files.readString(file.toPath()));
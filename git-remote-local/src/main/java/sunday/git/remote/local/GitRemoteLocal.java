@@ -30,9 +30,14 @@ public class GitRemoteLocal
         {
             System.err.println("Invalid arguments: " + Arrays.toString(args));
             System.err.println("Usage: git-remote-local <remote> <url>");
+            System.err.println("Usage: git-remote-local -compact <url>");
             System.exit(1);
         }
 
+        // maintenance method to merge small packs and single objects into larger packs
+        // git-remote-local -compact <url>
+        boolean compact = "-compact".equals(args[1]);
+
         String url = args[2];
         if (!url.startsWith("local://"))
         {
@@ -41,11 +46,24 @@ public class GitRemoteLocal
 
         // this is passed implicitly by git
         String gitDir = System.getenv("GIT_DIR");
+        if (gitDir == null)
+        {
+            gitDir = ".git";
+        }
 
         Path basePath = Path.of(url.substring("local://".length()));
         LocalStorage storage = new LocalStorage(basePath);
 
         Git git = new Git(new File("."), new File(gitDir));
-        new GitRemote(git, storage).repl();
+        GitRemote remote = new GitRemote(git, storage, url);
+        if (compact)
+        {
+            remote.compact();
+            System.exit(0);
+        }
+        else
+        {
+            remote.repl();
+        }
     }
 }
@@ -1,20 +1,33 @@
 package sunday.git.remote.local;
 
 import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Stream;
 
+import sunday.git.remote.ContentWriter;
 import sunday.git.remote.GitRemoteException;
 import sunday.git.remote.Storage;
 
@@ -25,6 +38,13 @@ import sunday.git.remote.Storage;
  */
 public class LocalStorage implements Storage
 {
+    private static final String TEMP_PREFIX = ".upload";
+
+    /**
+     * The number of files in the same directory from which on the directory is listed instead of checking each file.
+     */
+    private static final int LIST_THRESHOLD = 16;
+
     private Path baseDir;
 
     /**
@@ -42,6 +62,76 @@ public class LocalStorage implements Storage
         return Files.exists(filePath);
     }
 
+    /**
+     * Checks the existence of the given files, many files in the same directory are checked by reading the directory
+     * only once.
+     */
+    @Override
+    public Set<Path> filesExist(Collection<Path> paths)
+    {
+        Map<Path, List<Path>> dirs = new LinkedHashMap<>();
+        for (Path path : paths)
+        {
+            dirs.computeIfAbsent(path.getParent(), dir -> new ArrayList<>()).add(path);
+        }
+
+        Set<Path> existing = new LinkedHashSet<>();
+        for (Map.Entry<Path, List<Path>> dir : dirs.entrySet())
+        {
+            List<Path> files = dir.getValue();
+            if ((files.size() < LIST_THRESHOLD) || (dir.getKey() == null))
+            {
+                for (Path path : files)
+                {
+                    if (fileExists(path))
+                    {
+                        existing.add(path);
+                    }
+                }
+            }
+            else
+            {
+                Set<String> names = listNames(baseDir.resolve(dir.getKey()));
+                for (Path path : files)
+                {
+                    if (names.contains(path.getFileName().toString()))
+                    {
+                        existing.add(path);
+                    }
+                }
+            }
+        }
+
+        return existing;
+    }
+
+    /**
+     * Returns the names of the entries of the given directory, or an empty set if it does not exist.
+     */
+    private Set<String> listNames(Path dirPath)
+    {
+        Set<String> names = new HashSet<>();
+        if (!Files.isDirectory(dirPath))
+        {
+            return names;
+        }
+
+        try (Stream<Path> entries = Files.list(dirPath))
+        {
+            entries.forEach(entry -> names.add(entry.getFileName().toString()));
+        }
+        catch (IOException io)
+        {
+            throw new GitRemoteException(io);
+        }
+
+        return names;
+    }
+
+    /**
+     * Copies the file by a channel transfer, so that the operating system can copy it without passing the content
+     * through the heap.
+     */
     @Override
     public void uploadFile(Path path, File file)
     {
@@ -50,7 +140,24 @@ public class LocalStorage implements Storage
         try
         {
             Files.createDirectories(filePath.getParent());
-            Files.copy(file.toPath(), filePath);
+
+            Path tempPath = createTempFile(filePath);
+            try (FileChannel source = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+                    FileChannel target = FileChannel.open(tempPath, StandardOpenOption.WRITE))
+            {
+                long size = source.size();
+                long position = 0;
+                while (position < size)
+                {
+                    position += source.transferTo(position, size - position, target);
+                }
+            }
+            catch (IOException ex)
+            {
+                Files.deleteIfExists(tempPath);
+                throw ex;
+            }
+            replace(tempPath, filePath);
         }
         catch (IOException io)
         {
@@ -66,7 +173,42 @@ public class LocalStorage implements Storage
         try
         {
             Files.createDirectories(filePath.getParent());
-            Files.write(filePath, content);
+
+            Path tempPath = createTempFile(filePath);
+            Files.write(tempPath, content);
+            replace(tempPath, filePath);
+        }
+        catch (IOException io)
+        {
+            throw new GitRemoteException(io);
+        }
+    }
+
+    /**
+     * Writes the content through a file channel into a temporary file next to the target, which is moved there when
+     * the content is complete.
+     */
+    @Override
+    public void uploadStream(Path path, ContentWriter writer)
+    {
+        Path filePath = baseDir.resolve(path);
+
+        try
+        {
+            Files.createDirectories(filePath.getParent());
+
+            Path tempPath = createTempFile(filePath);
+            try (FileChannel channel = FileChannel.open(tempPath, StandardOpenOption.WRITE);
+                    OutputStream out = new BufferedOutputStream(Channels.newOutputStream(channel), 65536))
+            {
+                writer.writeTo(out);
+            }
+            catch (IOException | RuntimeException ex)
+            {
+                Files.deleteIfExists(tempPath);
+                throw ex;
+            }
+            replace(tempPath, filePath);
         }
         catch (IOException io)
         {
@@ -74,6 +216,31 @@ public class LocalStorage implements Storage
         }
     }
 
+    /**
+     * Creates a temporary file next to the given file, so that it can be moved there atomically.
+     */
+    private Path createTempFile(Path filePath) throws IOException
+    {
+        return Files.createTempFile(filePath.getParent(), TEMP_PREFIX, ".tmp");
+    }
+
+    /**
+     * Moves the temporary file to its final location in a single step, so that readers either see the complete old
+     * or the complete new content, but never a partially written file.
+     */
+    private void replace(Path tempPath, Path filePath) throws IOException
+    {
+        try
+        {
+            Files.move(tempPath, filePath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        }
+        catch (IOException io)
+        {
+            Files.deleteIfExists(tempPath);
+            throw io;
+        }
+    }
+
     @Override
     public byte[] downloadFile(Path path)
     {
@@ -136,7 +303,12 @@ public class LocalStorage implements Storage
                 @Override
                 public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException
                 {
-                    files.add(baseDir.relativize(file));
+                    // skip uploads that are in progress
+                    if (!file.getFileName().toString().startsWith(TEMP_PREFIX))
+                    {
+                        files.add(baseDir.relativize(file));
+                    }
+
                     return FileVisitResult.CONTINUE;
                 }
             });
@@ -1,10 +1,15 @@
 package sunday.git.remote.local;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import org.junit.Rule;
 import org.junit.Test;
@@ -49,4 +54,63 @@ public class LocalStorageTest
         Collection<Path> refs2 = storage.listFiles(Path.of("refs"));
         assertEquals(0, refs2.size());
     }
+
+    @Test
+    public void testBatches()
+    {
+        LocalStorage storage = new LocalStorage(temp.getRoot().toPath());
+
+        // enough files in one directory for listing it, and a few in another one
+        List<Path> existing = new ArrayList<>();
+        List<Path> missing = new ArrayList<>();
+        for (int i = 0; i < 40; i++)
+        {
+            Path path = Path.of("objects", (i < 30) ? "aa" : "bb", "file" + i);
+            if (i % 2 == 0)
+            {
+                storage.uploadFile(path, ("content" + i).getBytes(StandardCharsets.UTF_8));
+                existing.add(path);
+            }
+            else
+            {
+                missing.add(path);
+            }
+        }
+
+        List<Path> all = new ArrayList<>(existing);
+        all.addAll(missing);
+        all.add(Path.of("objects", "cc", "file"));
+
+        Set<Path> found = storage.filesExist(all);
+        assertEquals(existing.size(), found.size());
+        assertTrue(found.containsAll(existing));
+
+        Map<Path, byte[]> contents = storage.downloadFiles(existing);
+        assertEquals(existing.size(), contents.size());
+        assertEquals("content0", new String(contents.get(existing.get(0)), StandardCharsets.UTF_8));
+
+        storage.deleteFiles(existing);
+        assertTrue(storage.filesExist(all).isEmpty());
+    }
+
+    @Test
+    public void testUploadStream()
+    {
+        LocalStorage storage = new LocalStorage(temp.getRoot().toPath());
+
+        Path path = Path.of("objects", "aa", "large");
+        storage.uploadStream(path, out -> {
+            for (int i = 0; i < 1000; i++)
+            {
+                out.write(("line " + i + "\n").getBytes(StandardCharsets.UTF_8));
+            }
+        });
+
+        String content = new String(storage.downloadFile(path), StandardCharsets.UTF_8);
+        assertTrue(content.startsWith("line 0\n"));
+        assertTrue(content.endsWith("line 999\n"));
+
+        // no temporary files are left over
+        assertEquals(1, storage.listFiles(Path.of("objects")).size());
+    }
 }
@@ -27,9 +27,14 @@ public class GitRemoteS3
         {
             System.err.println("Invalid arguments: " + Arrays.toString(args));
             System.err.println("Usage: git-remote-s3 <remote> <url>");
+            System.err.println("Usage: git-remote-s3 -compact <url>");
             System.exit(1);
         }
 
+        // maintenance method to merge small packs and single objects into larger packs
+        // git-remote-s3 -compact <url>
+        boolean compact = "-compact".equals(args[1]);
+
         String url = args[2];
         if (!url.startsWith("s3://"))
         {
@@ -38,6 +43,10 @@ public class GitRemoteS3
 
         // this is passed implicitly by git
         String gitDir = System.getenv("GIT_DIR");
+        if (gitDir == null)
+        {
+            gitDir = ".git";
+        }
 
         S3Configuration configuration = new S3Configuration();
 
@@ -64,8 +73,43 @@ public class GitRemoteS3
         configuration.setSecretKey(secretKey);
         configuration.setRegion(region);
 
+        // large files are transferred in parts of a few MB each, several at the same time
+        String partSize = git.getConfig("s3.partsize");
+        if ((partSize != null) && !partSize.isBlank())
+        {
+            configuration.setPartSize(Long.parseLong(partSize.trim()) * 1024 * 1024);
+        }
+
+        String partConcurrency = git.getConfig("s3.partconcurrency");
+        if ((partConcurrency != null) && !partConcurrency.isBlank())
+        {
+            configuration.setPartConcurrency(Integer.parseInt(partConcurrency.trim()));
+        }
+
+        // a stalled connection fails instead of hanging, in seconds
+        String connectTimeout = git.getConfig("s3.connecttimeout");
+        if ((connectTimeout != null) && !connectTimeout.isBlank())
+        {
+            configuration.setConnectTimeout(Integer.parseInt(connectTimeout.trim()));
+        }
+
+        String requestTimeout = git.getConfig("s3.requesttimeout");
+        if ((requestTimeout != null) && !requestTimeout.isBlank())
+        {
+            configuration.setRequestTimeout(Integer.parseInt(requestTimeout.trim()));
+        }
+
         S3Storage storage = new S3Storage(configuration);
 
-        new GitRemote(git, storage).repl();
+        GitRemote remote = new GitRemote(git, storage, url);
+        if (compact)
+        {
+            remote.compact();
+            System.exit(0);
+        }
+        else
+        {
+            remote.repl();
+        }
     }
 }
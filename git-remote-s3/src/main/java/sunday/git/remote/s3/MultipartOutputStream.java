@@ -0,0 +1,261 @@
+package sunday.git.remote.s3;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+
+import sunday.git.remote.GitRemoteException;
+
+/**
+ * Output stream that uploads its content to S3 while it is written. Each full part is uploaded as part of a
+ * multipart upload, while the next part is written. Content that fits into a single part is uploaded with a single
+ * request when the stream is completed.
+ *
+ * Each part buffer needs a permit of the given semaphore, which is returned when the part has been uploaded, so that
+ * all streams together only keep a limited number of parts in memory.
+ *
+ * @author Peter H&auml;nsgen
+ */
+public class MultipartOutputStream extends OutputStream
+{
+    private static final int INITIAL_BUFFER_SIZE = 1024 * 1024;
+
+    private AmazonS3 s3;
+    private String bucketName;
+    private String key;
+    private int partSize;
+    private ExecutorService partUploader;
+    private Semaphore partBuffers;
+
+    private byte[] buffer;
+    private int count;
+
+    private String uploadId;
+    private List<Future<PartETag>> parts;
+
+    /**
+     * The constructor.
+     */
+    public MultipartOutputStream(AmazonS3 s3, String bucketName, String key, int partSize,
+            ExecutorService partUploader, Semaphore partBuffers)
+    {
+        this.s3 = s3;
+        this.bucketName = bucketName;
+        this.key = key;
+        this.partSize = partSize;
+        this.partUploader = partUploader;
+        this.partBuffers = partBuffers;
+
+        parts = new ArrayList<>();
+    }
+
+    @Override
+    public void write(int b) throws IOException
+    {
+        ensureBuffer(1);
+        buffer[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException
+    {
+        while (len > 0)
+        {
+            ensureBuffer(len);
+
+            int n = Math.min(len, buffer.length - count);
+            System.arraycopy(b, off, buffer, count, n);
+            count += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    /**
+     * Makes sure that the buffer has space for at least one more byte. A full part is uploaded first, and the buffer
+     * only grows up to the part size, so that small files do not occupy a whole part.
+     */
+    private void ensureBuffer(int len) throws IOException
+    {
+        if (count == partSize)
+        {
+            uploadPart();
+        }
+
+        if (buffer == null)
+        {
+            try
+            {
+                partBuffers.acquire();
+            }
+            catch (InterruptedException ex)
+            {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for a part buffer.");
+            }
+
+            buffer = new byte[Math.min(partSize, Math.max(INITIAL_BUFFER_SIZE, len))];
+            count = 0;
+        }
+        else if (count == buffer.length)
+        {
+            buffer = Arrays.copyOf(buffer, (int) Math.min(partSize, 2L * buffer.length));
+        }
+    }
+
+    /**
+     * Hands the current buffer over as the next part.
+     */
+    private void uploadPart()
+    {
+        if (uploadId == null)
+        {
+            uploadId = s3.initiateMultipartUpload(new InitiateMultipartUploadRequest(bucketName, key)).getUploadId();
+        }
+
+        UploadPartRequest request = new UploadPartRequest() //
+                .withBucketName(bucketName) //
+                .withKey(key) //
+                .withUploadId(uploadId) //
+                .withPartNumber(parts.size() + 1) //
+                .withInputStream(new ByteArrayInputStream(buffer, 0, count)) //
+                .withPartSize(count);
+
+        buffer = null;
+        count = 0;
+
+        parts.add(partUploader.submit(() -> {
+            try
+            {
+                return s3.uploadPart(request).getPartETag();
+            }
+            finally
+            {
+                partBuffers.release();
+            }
+        }));
+    }
+
+    /**
+     * Uploads the remaining content and finishes the upload, after the whole content has been written.
+     */
+    public void complete()
+    {
+        if (uploadId == null)
+        {
+            byte[] content = (buffer != null) ? buffer : new byte[0];
+
+            ObjectMetadata metaData = new ObjectMetadata();
+            metaData.setContentLength(count);
+
+            try
+            {
+                s3.putObject(bucketName, key, new ByteArrayInputStream(content, 0, count), metaData);
+            }
+            finally
+            {
+                releaseBuffer();
+            }
+            return;
+        }
+
+        if (count > 0)
+        {
+            uploadPart();
+        }
+        releaseBuffer();
+
+        List<PartETag> eTags = new ArrayList<>(parts.size());
+        for (Future<PartETag> part : parts)
+        {
+            eTags.add(waitFor(part));
+        }
+
+        s3.completeMultipartUpload(new CompleteMultipartUploadRequest(bucketName, key, uploadId, eTags));
+    }
+
+    /**
+     * Aborts the upload after an error, so that S3 does not keep the parts that have been uploaded already.
+     */
+    public void abort()
+    {
+        releaseBuffer();
+
+        if (uploadId == null)
+        {
+            return;
+        }
+
+        // the parts are not cancelled, so that they return their buffers in any case
+        for (Future<PartETag> part : parts)
+        {
+            try
+            {
+                waitFor(part);
+            }
+            catch (RuntimeException ex)
+            {
+                // the upload fails anyway
+            }
+        }
+
+        s3.abortMultipartUpload(new AbortMultipartUploadRequest(bucketName, key, uploadId));
+    }
+
+    /**
+     * Does nothing, the upload is finished by {@link #complete()} or {@link #abort()}, so that a stream that is
+     * wrapped by another one can be closed before.
+     */
+    @Override
+    public void close()
+    {
+    }
+
+    private void releaseBuffer()
+    {
+        if (buffer != null)
+        {
+            buffer = null;
+            count = 0;
+            partBuffers.release();
+        }
+    }
+
+    private PartETag waitFor(Future<PartETag> part)
+    {
+        try
+        {
+            return part.get();
+        }
+        catch (InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+            throw new GitRemoteException(ex);
+        }
+        catch (ExecutionException ex)
+        {
+            if (ex.getCause() instanceof RuntimeException)
+            {
+                throw (RuntimeException) ex.getCause();
+            }
+
+            throw new GitRemoteException(ex.getCause());
+        }
+    }
+}
@@ -0,0 +1,238 @@
+package sunday.git.remote.s3;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Semaphore;
+import java.util.function.BiFunction;
+
+/**
+ * Input stream for a large file that is downloaded in parts. The first part is streamed from the response that has
+ * revealed the length of the file. The following parts are requested while the current one is read, so that several
+ * parts are on their way at the same time, but only a limited number of parts is kept in memory.
+ *
+ * Each downloaded part takes a permit of the given semaphore until it has been read, which is shared by all streams.
+ * A stream requests parts ahead only while permits are available, and waits for one only when it has no part at all.
+ *
+ * @author Peter H&auml;nsgen
+ */
+public class RangedInputStream extends InputStream
+{
+    private BiFunction<Long, Integer, CompletableFuture<byte[]>> downloadRange;
+    private long length;
+    private int partSize;
+    private int partConcurrency;
+    private Semaphore partBuffers;
+
+    /**
+     * The number of permits that this stream holds, for the requested parts and the downloaded part that is read.
+     */
+    private int permits;
+
+    /**
+     * Whether the part that is read at the moment holds a permit, which is not the case for the first part.
+     */
+    private boolean buffered;
+
+    /**
+     * The parts that have been requested, in the order of the file.
+     */
+    private Deque<CompletableFuture<byte[]>> parts;
+
+    /**
+     * The offset of the next part to request.
+     */
+    private long next;
+
+    /**
+     * The part that is read at the moment, and the number of bytes that are still expected from it.
+     */
+    private InputStream part;
+    private long remaining;
+
+    /**
+     * The constructor.
+     *
+     * @param first the first part of partSize bytes, which is still being downloaded
+     * @param length the length of the whole file
+     * @param partBuffers limits the number of downloaded parts in memory, shared by all streams
+     * @param downloadRange downloads the given number of bytes starting at the given offset
+     */
+    public RangedInputStream(InputStream first, long length, int partSize, int partConcurrency,
+            Semaphore partBuffers, BiFunction<Long, Integer, CompletableFuture<byte[]>> downloadRange)
+    {
+        this.downloadRange = downloadRange;
+        this.length = length;
+        this.partSize = partSize;
+        this.partConcurrency = partConcurrency;
+        this.partBuffers = partBuffers;
+
+        parts = new ArrayDeque<>();
+        part = first;
+        remaining = Math.min(partSize, length);
+        next = remaining;
+
+        requestParts();
+    }
+
+    /**
+     * Requests the following parts, until enough of them are on their way or no more buffers are available.
+     */
+    private void requestParts()
+    {
+        while ((parts.size() < partConcurrency) && (next < length) && partBuffers.tryAcquire())
+        {
+            permits++;
+            requestPart();
+        }
+    }
+
+    private void requestPart()
+    {
+        int size = (int) Math.min(partSize, length - next);
+        long offset = next;
+
+        parts.add(downloadRange.apply(offset, size).thenApply(data -> {
+            if (data.length != size)
+            {
+                throw new CompletionException(new IOException("Incomplete part at offset " + offset));
+            }
+            return data;
+        }));
+        next += size;
+    }
+
+    /**
+     * Makes sure that the current part has bytes left, and returns false at the end of the file.
+     */
+    private boolean nextPart() throws IOException
+    {
+        while (remaining == 0)
+        {
+            // the part has been read, so its buffer can be used for the next one
+            if (buffered)
+            {
+                partBuffers.release();
+                permits--;
+                buffered = false;
+                requestParts();
+            }
+
+            if (parts.isEmpty())
+            {
+                if (next >= length)
+                {
+                    return false;
+                }
+
+                // other streams hold all buffers, so wait until one of them has been read
+                try
+                {
+                    partBuffers.acquire();
+                }
+                catch (InterruptedException ex)
+                {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+                permits++;
+                requestPart();
+            }
+
+            CompletableFuture<byte[]> nextPart = parts.poll();
+
+            byte[] data;
+            try
+            {
+                data = nextPart.join();
+            }
+            catch (CompletionException | CancellationException ex)
+            {
+                Throwable cause = (ex.getCause() != null) ? ex.getCause() : ex;
+                throw (cause instanceof IOException) ? (IOException) cause : new IOException(cause);
+            }
+
+            part.close();
+            part = new ByteArrayInputStream(data);
+            remaining = data.length;
+            buffered = true;
+
+            requestParts();
+        }
+
+        return true;
+    }
+
+    @Override
+    public int read() throws IOException
+    {
+        if (!nextPart())
+        {
+            return -1;
+        }
+
+        int b = part.read();
+        if (b < 0)
+        {
+            throw new IOException("Incomplete first part.");
+        }
+        remaining--;
+
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException
+    {
+        if (len == 0)
+        {
+            return 0;
+        }
+
+        if (!nextPart())
+        {
+            return -1;
+        }
+
+        int n = part.read(b, off, (int) Math.min(len, remaining));
+        if (n < 0)
+        {
+            // the following parts are checked when they arrive
+            throw new IOException("Incomplete first part.");
+        }
+        remaining -= n;
+
+        return n;
+    }
+
+    @Override
+    public int available() throws IOException
+    {
+        return (int) Math.min(part.available(), remaining);
+    }
+
+    /**
+     * Closes the part that is read at the moment, and cancels the parts that are still on their way.
+     */
+    @Override
+    public void close() throws IOException
+    {
+        for (CompletableFuture<byte[]> p : parts)
+        {
+            p.cancel(true);
+        }
+        parts.clear();
+
+        partBuffers.release(permits);
+        permits = 0;
+
+        remaining = 0;
+        part.close();
+    }
+}
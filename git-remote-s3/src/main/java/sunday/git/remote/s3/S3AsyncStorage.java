@@ -0,0 +1,435 @@
+package sunday.git.remote.s3;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpRequest.BodyPublisher;
+import java.net.http.HttpRequest.BodyPublishers;
+import java.net.http.HttpResponse;
+import java.net.http.HttpResponse.BodyHandlers;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Semaphore;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.apache.http.HttpStatus;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+import org.xml.sax.SAXException;
+
+import sunday.git.remote.AsyncStorage;
+import sunday.git.remote.GitRemoteException;
+
+/**
+ * Asynchronous storage implementation for an AWS S3 bucket. The requests are signed here and sent with the
+ * non-blocking HTTP client of the JDK, so that waiting for S3 does not need a thread per request. It is used for the
+ * downloads of fetches and for the requests of batch operations, while uploads still go through the blocking client
+ * of the {@link S3Storage}.
+ *
+ * @author Peter H&auml;nsgen
+ */
+public class S3AsyncStorage implements AsyncStorage
+{
+    private static final DateTimeFormatter AMZ_DATE = DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmss'Z'")
+            .withZone(ZoneOffset.UTC);
+
+    private static final String EMPTY_HASH = S3Signer.sha256Hex(new byte[0]);
+
+    private static final Pattern ERROR_CODE = Pattern.compile("<Code>([^<]*)</Code>");
+
+    private static final Pattern CONTENT_RANGE = Pattern.compile("bytes \\d+-\\d+/(\\d+)");
+
+    private S3Configuration configuration;
+    private S3Signer signer;
+    private HttpClient client;
+
+    /**
+     * Limits the number of downloaded parts of large files that are kept in memory at the same time.
+     */
+    private Semaphore partBuffers;
+
+    private String host;
+
+    /**
+     * The path prefix for path-style requests, or empty for virtual-hosted requests.
+     */
+    private String bucketPath;
+
+    /**
+     * The constructor.
+     */
+    public S3AsyncStorage(S3Configuration configuration)
+    {
+        this.configuration = configuration;
+
+        signer = new S3Signer(configuration.getAccessKeyId(), configuration.getSecretKey(), configuration.getRegion());
+        client = HttpClient.newBuilder() //
+                .version(HttpClient.Version.HTTP_1_1) //
+                .connectTimeout(Duration.ofSeconds(configuration.getConnectTimeout())) //
+                .build();
+
+        // while the parts of one file are read, the next ones can be downloaded
+        partBuffers = new Semaphore(2 * configuration.getPartConcurrency());
+
+        // bucket names with dots do not match the certificate of the virtual host
+        String bucketName = configuration.getBucketName();
+        String endpoint = "s3." + configuration.getRegion() + ".amazonaws.com";
+        if (bucketName.contains("."))
+        {
+            host = endpoint;
+            bucketPath = "/" + S3Signer.encode(bucketName, true);
+        }
+        else
+        {
+            host = bucketName + "." + endpoint;
+            bucketPath = "";
+        }
+    }
+
+    @Override
+    public CompletableFuture<Boolean> fileExists(Path path)
+    {
+        String key = getKey(path);
+
+        HttpRequest request = request("HEAD", key, Collections.emptySortedMap(), EMPTY_HASH, BodyPublishers.noBody());
+        return client.sendAsync(request, BodyHandlers.ofByteArray()).thenApply(response -> {
+            if (response.statusCode() == HttpStatus.SC_NOT_FOUND)
+            {
+                return false;
+            }
+
+            check(response, key);
+            return true;
+        });
+    }
+
+    @Override
+    public CompletableFuture<Void> uploadFile(Path path, File file)
+    {
+        String key = getKey(path);
+
+        BodyPublisher body;
+        try
+        {
+            body = BodyPublishers.ofFile(file.toPath());
+        }
+        catch (FileNotFoundException ex)
+        {
+            return CompletableFuture.failedFuture(new GitRemoteException(ex));
+        }
+
+        // large files are not read twice for hashing, the connection is secured by TLS anyway
+        HttpRequest request = request("PUT", key, Collections.emptySortedMap(), S3Signer.UNSIGNED_PAYLOAD, body);
+        return client.sendAsync(request, BodyHandlers.ofByteArray()).thenAccept(response -> check(response, key));
+    }
+
+    @Override
+    public CompletableFuture<Void> uploadFile(Path path, byte[] contents)
+    {
+        String key = getKey(path);
+
+        HttpRequest request = request("PUT", key, Collections.emptySortedMap(), S3Signer.sha256Hex(contents),
+                BodyPublishers.ofByteArray(contents));
+        return client.sendAsync(request, BodyHandlers.ofByteArray()).thenAccept(response -> check(response, key));
+    }
+
+    @Override
+    public CompletableFuture<byte[]> downloadFile(Path path)
+    {
+        String key = getKey(path);
+
+        HttpRequest request = request("GET", key, Collections.emptySortedMap(), EMPTY_HASH, BodyPublishers.noBody());
+        return client.sendAsync(request, BodyHandlers.ofByteArray()).thenApply(response -> {
+            check(response, key);
+            return response.body();
+        });
+    }
+
+    /**
+     * Downloads the file in parts. The first part tells the length of the file, if there are more parts then they are
+     * downloaded at the same time while the stream is read.
+     */
+    @Override
+    public CompletableFuture<InputStream> downloadStream(Path path)
+    {
+        String key = getKey(path);
+        int partSize = configuration.getPartSize();
+
+        SortedMap<String, String> headers = new TreeMap<>();
+        headers.put("range", range(0, partSize));
+
+        HttpRequest request = request("GET", key, Collections.emptySortedMap(), headers, EMPTY_HASH,
+                BodyPublishers.noBody());
+        // the body is streamed, so the first part is not buffered here
+        return client.sendAsync(request, BodyHandlers.ofInputStream()).thenCompose(response -> {
+            int status = response.statusCode();
+            if (status == HttpStatus.SC_REQUESTED_RANGE_NOT_SATISFIABLE)
+            {
+                // an empty file has no range at all
+                readBody(response.body());
+                return downloadFile(path).thenApply(ByteArrayInputStream::new);
+            }
+
+            if (status == HttpStatus.SC_OK)
+            {
+                // a storage without range support answers with the whole file
+                return CompletableFuture.completedFuture(response.body());
+            }
+
+            if (status != HttpStatus.SC_PARTIAL_CONTENT)
+            {
+                throw error(status, readBody(response.body()), key);
+            }
+
+            Matcher matcher = CONTENT_RANGE.matcher(response.headers().firstValue("Content-Range").orElse(""));
+            if (!matcher.matches())
+            {
+                readBody(response.body());
+                throw new GitRemoteException("Invalid S3 response: " + key);
+            }
+
+            long length = Long.parseLong(matcher.group(1));
+            if (length <= partSize)
+            {
+                return CompletableFuture.completedFuture(response.body());
+            }
+
+            // the following parts must belong to the same version of the file
+            String eTag = response.headers().firstValue("ETag").orElse(null);
+            return CompletableFuture.completedFuture(new RangedInputStream(response.body(), length, partSize,
+                    configuration.getPartConcurrency(), partBuffers,
+                    (offset, size) -> downloadRange(key, eTag, offset, size)));
+        });
+    }
+
+    /**
+     * Downloads the given number of bytes of the file starting at the given offset.
+     */
+    private CompletableFuture<byte[]> downloadRange(String key, String eTag, long offset, int size)
+    {
+        SortedMap<String, String> headers = new TreeMap<>();
+        headers.put("range", range(offset, size));
+        if (eTag != null)
+        {
+            headers.put("if-match", eTag);
+        }
+
+        HttpRequest request = request("GET", key, Collections.emptySortedMap(), headers, EMPTY_HASH,
+                BodyPublishers.noBody());
+        return client.sendAsync(request, BodyHandlers.ofByteArray()).thenApply(response -> {
+            if (response.statusCode() != HttpStatus.SC_PARTIAL_CONTENT)
+            {
+                throw error(response.statusCode(), response.body(), key);
+            }
+
+            return response.body();
+        });
+    }
+
+    private static String range(long offset, int size)
+    {
+        return "bytes=" + offset + "-" + (offset + size - 1);
+    }
+
+    @Override
+    public CompletableFuture<Void> deleteFile(Path path)
+    {
+        String key = getKey(path);
+
+        HttpRequest request = request("DELETE", key, Collections.emptySortedMap(), EMPTY_HASH,
+                BodyPublishers.noBody());
+        return client.sendAsync(request, BodyHandlers.ofByteArray()).thenAccept(response -> check(response, key));
+    }
+
+    @Override
+    public CompletableFuture<Collection<Path>> listFiles(Path dir)
+    {
+        return listFiles(getKey(dir), null, new ArrayList<>());
+    }
+
+    /**
+     * Lists the next page of at most 1000 files, and the following pages after that.
+     */
+    private CompletableFuture<Collection<Path>> listFiles(String prefix, String continuationToken, List<Path> files)
+    {
+        SortedMap<String, String> parameters = new TreeMap<>();
+        parameters.put("list-type", "2");
+        parameters.put("prefix", prefix);
+        if (continuationToken != null)
+        {
+            parameters.put("continuation-token", continuationToken);
+        }
+
+        HttpRequest request = request("GET", "", parameters, EMPTY_HASH, BodyPublishers.noBody());
+        return client.sendAsync(request, BodyHandlers.ofByteArray()).thenCompose(response -> {
+            check(response, prefix);
+
+            Element result = parseXml(response.body());
+            NodeList contents = result.getElementsByTagName("Contents");
+            for (int i = 0; i < contents.getLength(); i++)
+            {
+                String objectKey = getText((Element) contents.item(i), "Key");
+                files.add(configuration.getBaseDir().relativize(Paths.get(objectKey)));
+            }
+
+            if ("true".equals(getText(result, "IsTruncated")))
+            {
+                return listFiles(prefix, getText(result, "NextContinuationToken"), files);
+            }
+
+            return CompletableFuture.completedFuture(files);
+        });
+    }
+
+    @Override
+    public boolean isThrottled(Throwable ex)
+    {
+        if (ex instanceof CompletionException)
+        {
+            ex = ex.getCause();
+        }
+
+        // S3 answers with "503 Slow Down" if the request rate is too high
+        if (ex instanceof S3Exception)
+        {
+            S3Exception s3ex = (S3Exception) ex;
+            return (s3ex.getStatusCode() == HttpStatus.SC_SERVICE_UNAVAILABLE) || (s3ex.getStatusCode() == 429)
+                    || "SlowDown".equals(s3ex.getErrorCode());
+        }
+
+        return false;
+    }
+
+    /**
+     * Creates a signed request for the object with the given key, or for the bucket if the key is empty.
+     */
+    private HttpRequest request(String method, String key, SortedMap<String, String> parameters, String payloadHash,
+            BodyPublisher body)
+    {
+        return request(method, key, parameters, Collections.emptySortedMap(), payloadHash, body);
+    }
+
+    /**
+     * Creates a signed request with additional headers, which are signed as well. Their names must be lower case.
+     */
+    private HttpRequest request(String method, String key, SortedMap<String, String> parameters,
+            SortedMap<String, String> extraHeaders, String payloadHash, BodyPublisher body)
+    {
+        String path = bucketPath + "/" + S3Signer.encode(key, false);
+        String query = S3Signer.query(parameters);
+        String amzDate = AMZ_DATE.format(Instant.now());
+
+        SortedMap<String, String> headers = new TreeMap<>(extraHeaders);
+        headers.put("host", host);
+        headers.put("x-amz-content-sha256", payloadHash);
+        headers.put("x-amz-date", amzDate);
+
+        URI uri = URI.create("https://" + host + path + (query.isEmpty() ? "" : "?" + query));
+        HttpRequest.Builder builder = HttpRequest.newBuilder(uri) //
+                .timeout(Duration.ofSeconds(configuration.getRequestTimeout())) //
+                .method(method, body) //
+                .header("x-amz-content-sha256", payloadHash) //
+                .header("x-amz-date", amzDate) //
+                .header("Authorization", signer.sign(method, path, query, headers, payloadHash, amzDate));
+        extraHeaders.forEach(builder::header);
+
+        return builder.build();
+    }
+
+    private void check(HttpResponse<byte[]> response, String key)
+    {
+        int status = response.statusCode();
+        if ((status != HttpStatus.SC_OK) && (status != HttpStatus.SC_NO_CONTENT))
+        {
+            throw error(status, response.body(), key);
+        }
+    }
+
+    /**
+     * Reads the body of a streamed response that is not used, which also releases the connection.
+     */
+    private static byte[] readBody(InputStream in)
+    {
+        try (InputStream body = in)
+        {
+            return body.readAllBytes();
+        }
+        catch (IOException io)
+        {
+            return null;
+        }
+    }
+
+    private S3Exception error(int status, byte[] body, String key)
+    {
+        String errorCode = null;
+        if (body != null)
+        {
+            Matcher matcher = ERROR_CODE.matcher(new String(body, StandardCharsets.UTF_8));
+            if (matcher.find())
+            {
+                errorCode = matcher.group(1);
+            }
+        }
+
+        if (status == HttpStatus.SC_NOT_FOUND)
+        {
+            return new S3Exception("File not found: " + key, status, errorCode);
+        }
+
+        return new S3Exception("S3 request failed: " + key, status, errorCode);
+    }
+
+    private Element parseXml(byte[] xml)
+    {
+        try
+        {
+            DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+            factory.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
+            factory.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
+
+            Document document = factory.newDocumentBuilder().parse(new ByteArrayInputStream(xml));
+            return document.getDocumentElement();
+        }
+        catch (ParserConfigurationException | SAXException | IOException ex)
+        {
+            throw new GitRemoteException("Invalid S3 response.", ex);
+        }
+    }
+
+    private String getText(Element element, String name)
+    {
+        NodeList nodes = element.getElementsByTagName(name);
+        return (nodes.getLength() > 0) ? nodes.item(0).getTextContent() : null;
+    }
+
+    private String getKey(Path path)
+    {
+        // normalize backslashes in case this runs on Windows
+        return configuration.getBaseDir().resolve(path).toString().replace('\\', '/');
+    }
+}
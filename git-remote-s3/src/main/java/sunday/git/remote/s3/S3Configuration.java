@@ -9,11 +9,25 @@ import java.nio.file.Path;
  */
 public class S3Configuration
 {
+    /**
+     * The smallest part size that S3 accepts for multipart uploads.
+     */
+    public static final int MIN_PART_SIZE = 5 * 1024 * 1024;
+
+    /**
+     * The largest part size, so that a part still fits into a byte array.
+     */
+    public static final int MAX_PART_SIZE = 1024 * 1024 * 1024;
+
     private String accessKeyId;
     private String secretKey;
     private String region;
     private String bucketName;
     private Path baseDir;
+    private int partSize = 16 * 1024 * 1024;
+    private int partConcurrency = 8;
+    private int connectTimeout = 10;
+    private int requestTimeout = 60;
 
     public void setAccessKeyId(String accessKeyId)
     {
@@ -89,4 +103,77 @@ public class S3Configuration
     {
         return baseDir;
     }
+
+    /**
+     * Sets the size of the parts in bytes, in which large files are uploaded and downloaded.
+     */
+    public void setPartSize(long partSize)
+    {
+        if ((partSize < MIN_PART_SIZE) || (partSize > MAX_PART_SIZE))
+        {
+            throw new IllegalArgumentException("Invalid part size: " + partSize);
+        }
+
+        this.partSize = (int) partSize;
+    }
+
+    public int getPartSize()
+    {
+        return partSize;
+    }
+
+    /**
+     * Sets the number of parts of large files that are transferred at the same time.
+     */
+    public void setPartConcurrency(int partConcurrency)
+    {
+        if (partConcurrency < 1)
+        {
+            throw new IllegalArgumentException("Invalid part concurrency: " + partConcurrency);
+        }
+
+        this.partConcurrency = partConcurrency;
+    }
+
+    public int getPartConcurrency()
+    {
+        return partConcurrency;
+    }
+
+    /**
+     * Sets the number of seconds after which connecting to S3 fails.
+     */
+    public void setConnectTimeout(int connectTimeout)
+    {
+        if (connectTimeout < 1)
+        {
+            throw new IllegalArgumentException("Invalid connect timeout: " + connectTimeout);
+        }
+
+        this.connectTimeout = connectTimeout;
+    }
+
+    public int getConnectTimeout()
+    {
+        return connectTimeout;
+    }
+
+    /**
+     * Sets the number of seconds after which a request fails if S3 does not answer. For downloads, this is the time
+     * until the content starts to arrive.
+     */
+    public void setRequestTimeout(int requestTimeout)
+    {
+        if (requestTimeout < 1)
+        {
+            throw new IllegalArgumentException("Invalid request timeout: " + requestTimeout);
+        }
+
+        this.requestTimeout = requestTimeout;
+    }
+
+    public int getRequestTimeout()
+    {
+        return requestTimeout;
+    }
 }
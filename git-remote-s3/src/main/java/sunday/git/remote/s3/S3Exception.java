@@ -0,0 +1,37 @@
+package sunday.git.remote.s3;
+
+import sunday.git.remote.GitRemoteException;
+
+/**
+ * An error response from S3, with the HTTP status code and the S3 error code if there is one.
+ *
+ * @author Peter H&auml;nsgen
+ */
+public class S3Exception extends GitRemoteException
+{
+    private static final long serialVersionUID = 1L;
+
+    private int statusCode;
+    private String errorCode;
+
+    /**
+     * The constructor.
+     */
+    public S3Exception(String message, int statusCode, String errorCode)
+    {
+        super(message + " (" + statusCode + ((errorCode != null) ? " " + errorCode : "") + ")");
+
+        this.statusCode = statusCode;
+        this.errorCode = errorCode;
+    }
+
+    public int getStatusCode()
+    {
+        return statusCode;
+    }
+
+    public String getErrorCode()
+    {
+        return errorCode;
+    }
+}
@@ -0,0 +1,168 @@
+package sunday.git.remote.s3;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.SortedMap;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import sunday.git.remote.GitRemoteException;
+
+/**
+ * Signs S3 requests with AWS Signature Version 4, so that they can be sent with any HTTP client. The signature covers
+ * the method, the path, the query and the given headers, which must include host, x-amz-date and
+ * x-amz-content-sha256.
+ *
+ * @author Peter H&auml;nsgen
+ */
+public class S3Signer
+{
+    /**
+     * The payload hash for requests whose body is not signed, which S3 accepts over HTTPS.
+     */
+    public static final String UNSIGNED_PAYLOAD = "UNSIGNED-PAYLOAD";
+
+    private static final String ALGORITHM = "AWS4-HMAC-SHA256";
+    private static final String SERVICE = "s3";
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private String accessKeyId;
+    private String secretKey;
+    private String region;
+
+    /**
+     * The constructor.
+     */
+    public S3Signer(String accessKeyId, String secretKey, String region)
+    {
+        this.accessKeyId = accessKeyId;
+        this.secretKey = secretKey;
+        this.region = region;
+    }
+
+    /**
+     * Returns the value of the Authorization header. The path and the query must be encoded already, the header names
+     * must be in lower case. The date is like "20130524T000000Z".
+     */
+    public String sign(String method, String path, String query, SortedMap<String, String> headers,
+            String payloadHash, String amzDate)
+    {
+        StringBuilder canonicalHeaders = new StringBuilder();
+        StringBuilder signedHeaders = new StringBuilder();
+        for (Entry<String, String> header : headers.entrySet())
+        {
+            canonicalHeaders.append(header.getKey()).append(':').append(header.getValue().trim()).append('\n');
+
+            if (signedHeaders.length() > 0)
+            {
+                signedHeaders.append(';');
+            }
+            signedHeaders.append(header.getKey());
+        }
+
+        String canonicalRequest = method + "\n" + path + "\n" + query + "\n" + canonicalHeaders + "\n" + signedHeaders
+                + "\n" + payloadHash;
+
+        String date = amzDate.substring(0, 8);
+        String scope = date + "/" + region + "/" + SERVICE + "/aws4_request";
+        String stringToSign = ALGORITHM + "\n" + amzDate + "\n" + scope + "\n"
+                + sha256Hex(canonicalRequest.getBytes(StandardCharsets.UTF_8));
+
+        byte[] key = hmac(("AWS4" + secretKey).getBytes(StandardCharsets.UTF_8), date);
+        key = hmac(key, region);
+        key = hmac(key, SERVICE);
+        key = hmac(key, "aws4_request");
+        String signature = hex(hmac(key, stringToSign));
+
+        return ALGORITHM + " Credential=" + accessKeyId + "/" + scope + ", SignedHeaders=" + signedHeaders
+                + ", Signature=" + signature;
+    }
+
+    /**
+     * Returns the canonical query string for the given parameters, which must be sorted by name.
+     */
+    public static String query(SortedMap<String, String> parameters)
+    {
+        StringBuilder query = new StringBuilder();
+        for (Map.Entry<String, String> parameter : parameters.entrySet())
+        {
+            if (query.length() > 0)
+            {
+                query.append('&');
+            }
+            query.append(encode(parameter.getKey(), true)).append('=').append(encode(parameter.getValue(), true));
+        }
+
+        return query.toString();
+    }
+
+    /**
+     * URI-encodes the given value as required for signing, slashes are kept for paths.
+     */
+    public static String encode(String value, boolean encodeSlash)
+    {
+        StringBuilder encoded = new StringBuilder();
+        for (byte b : value.getBytes(StandardCharsets.UTF_8))
+        {
+            char ch = (char) (b & 0xff);
+            if (((ch >= 'A') && (ch <= 'Z')) || ((ch >= 'a') && (ch <= 'z')) || ((ch >= '0') && (ch <= '9'))
+                    || (ch == '-') || (ch == '_') || (ch == '.') || (ch == '~') || ((ch == '/') && !encodeSlash))
+            {
+                encoded.append(ch);
+            }
+            else
+            {
+                encoded.append('%').append(Character.toUpperCase(HEX_DIGITS[ch >> 4]))
+                        .append(Character.toUpperCase(HEX_DIGITS[ch & 0xf]));
+            }
+        }
+
+        return encoded.toString();
+    }
+
+    /**
+     * Returns the SHA-256 hash of the given content as hex string, as used for the payload hash.
+     */
+    public static String sha256Hex(byte[] content)
+    {
+        try
+        {
+            return hex(MessageDigest.getInstance("SHA-256").digest(content));
+        }
+        catch (GeneralSecurityException ex)
+        {
+            throw new GitRemoteException(ex);
+        }
+    }
+
+    private static byte[] hmac(byte[] key, String data)
+    {
+        try
+        {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(key, "HmacSHA256"));
+            return mac.doFinal(data.getBytes(StandardCharsets.UTF_8));
+        }
+        catch (GeneralSecurityException ex)
+        {
+            throw new GitRemoteException(ex);
+        }
+    }
+
+    private static String hex(byte[] bytes)
+    {
+        char[] hex = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++)
+        {
+            hex[2 * i] = HEX_DIGITS[(bytes[i] >> 4) & 0xf];
+            hex[2 * i + 1] = HEX_DIGITS[bytes[i] & 0xf];
+        }
+
+        return new String(hex);
+    }
+}
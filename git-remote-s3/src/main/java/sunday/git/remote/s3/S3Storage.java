@@ -8,20 +8,43 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
 
 import org.apache.http.HttpStatus;
 
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.ClientConfiguration;
 import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.AmazonS3ClientBuilder;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
 import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest.KeyVersion;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
 import com.amazonaws.services.s3.model.ListObjectsV2Request;
 import com.amazonaws.services.s3.model.ListObjectsV2Result;
 import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
 import com.amazonaws.services.s3.model.S3Object;
 import com.amazonaws.services.s3.model.S3ObjectInputStream;
 import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.amazonaws.services.s3.model.UploadPartRequest;
 
+import sunday.git.remote.AsyncStorage;
+import sunday.git.remote.ContentWriter;
 import sunday.git.remote.GitRemoteException;
 import sunday.git.remote.Storage;
 
@@ -32,10 +55,40 @@ import sunday.git.remote.Storage;
  */
 public class S3Storage implements Storage
 {
+    /**
+     * The maximum number of keys that S3 accepts in a single delete request.
+     */
+    private static final int DELETE_BATCH_SIZE = 1000;
+
+    /**
+     * The number of requests that a batch sends at the same time.
+     */
+    private static final int REQUEST_BATCH_SIZE = 64;
+
+    /**
+     * The number of files with the same prefix from which on the prefix is listed instead of checking each file.
+     */
+    private static final int LIST_THRESHOLD = 16;
+
     private S3Configuration configuration;
 
     private AmazonS3 s3;
 
+    /**
+     * Sends the concurrent requests of batches.
+     */
+    private S3AsyncStorage asyncStorage;
+
+    /**
+     * Uploads the parts of large files, shared by all uploads so that the number of parts in progress is limited.
+     */
+    private ExecutorService partUploader;
+
+    /**
+     * Limits the number of part buffers of streaming uploads that are kept in memory at the same time.
+     */
+    private Semaphore partBuffers;
+
     /**
      * The constructor.
      */
@@ -44,6 +97,16 @@ public class S3Storage implements Storage
         this.configuration = configuration;
 
         s3 = createClient(configuration);
+        asyncStorage = new S3AsyncStorage(configuration);
+
+        partUploader = Executors.newFixedThreadPool(configuration.getPartConcurrency(), runnable -> {
+            Thread thread = new Thread(runnable, "s3-part-upload");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        // while all parts are being uploaded, the next ones can be written
+        partBuffers = new Semaphore(2 * configuration.getPartConcurrency());
     }
 
     @Override
@@ -55,13 +118,112 @@ public class S3Storage implements Storage
         return s3.doesObjectExist(bucketName, key);
     }
 
+    /**
+     * Uploads the given file, large files are uploaded in parts at the same time.
+     */
     @Override
     public void uploadFile(Path path, File file)
     {
         String bucketName = configuration.getBucketName();
         String key = getKey(path);
 
-        s3.putObject(bucketName, key, file);
+        if (file.length() > configuration.getPartSize())
+        {
+            uploadParts(bucketName, key, file);
+        }
+        else
+        {
+            s3.putObject(bucketName, key, file);
+        }
+    }
+
+    /**
+     * Uploads the content while it is written, in parts if it is large, so that it is never kept in memory or in a
+     * temporary file as a whole.
+     */
+    @Override
+    public void uploadStream(Path path, ContentWriter writer)
+    {
+        String bucketName = configuration.getBucketName();
+        String key = getKey(path);
+
+        MultipartOutputStream out = new MultipartOutputStream(s3, bucketName, key, configuration.getPartSize(),
+                partUploader, partBuffers);
+        try
+        {
+            writer.writeTo(out);
+            out.complete();
+        }
+        catch (IOException | RuntimeException ex)
+        {
+            out.abort();
+
+            if (ex instanceof IOException)
+            {
+                throw new GitRemoteException(ex);
+            }
+            throw (RuntimeException) ex;
+        }
+    }
+
+    /**
+     * Uploads the given file as a multipart upload. If a part fails, the upload is aborted, so that S3 does not keep
+     * the parts that have been uploaded already.
+     */
+    private void uploadParts(String bucketName, String key, File file)
+    {
+        String uploadId = s3.initiateMultipartUpload(new InitiateMultipartUploadRequest(bucketName, key))
+                .getUploadId();
+
+        List<Future<PartETag>> parts = new ArrayList<>();
+        try
+        {
+            long length = file.length();
+            long partSize = configuration.getPartSize();
+
+            for (long offset = 0; offset < length; offset += partSize)
+            {
+                UploadPartRequest request = new UploadPartRequest() //
+                        .withBucketName(bucketName) //
+                        .withKey(key) //
+                        .withUploadId(uploadId) //
+                        .withPartNumber(parts.size() + 1) //
+                        .withFile(file) //
+                        .withFileOffset(offset) //
+                        .withPartSize(Math.min(partSize, length - offset));
+
+                parts.add(partUploader.submit(() -> s3.uploadPart(request).getPartETag()));
+            }
+
+            List<PartETag> eTags = new ArrayList<>(parts.size());
+            for (Future<PartETag> part : parts)
+            {
+                eTags.add(part.get());
+            }
+
+            s3.completeMultipartUpload(new CompleteMultipartUploadRequest(bucketName, key, uploadId, eTags));
+        }
+        catch (InterruptedException | ExecutionException | RuntimeException ex)
+        {
+            for (Future<PartETag> part : parts)
+            {
+                part.cancel(true);
+            }
+            s3.abortMultipartUpload(new AbortMultipartUploadRequest(bucketName, key, uploadId));
+
+            if (ex instanceof InterruptedException)
+            {
+                Thread.currentThread().interrupt();
+            }
+
+            Throwable cause = (ex instanceof ExecutionException) ? ex.getCause() : ex;
+            if (cause instanceof RuntimeException)
+            {
+                throw (RuntimeException) cause;
+            }
+
+            throw new GitRemoteException(cause);
+        }
     }
 
     @Override
@@ -103,27 +265,13 @@ public class S3Storage implements Storage
         }
     }
 
+    /**
+     * Opens a stream for the given file, large files are downloaded in parts at the same time.
+     */
     @Override
     public InputStream downloadStream(Path path)
     {
-        String bucketName = configuration.getBucketName();
-        String key = getKey(path);
-
-        S3Object o = s3.getObject(bucketName, key);
-
-        try
-        {
-            return o.getObjectContent();
-        }
-        catch (AmazonS3Exception ex)
-        {
-            if (ex.getStatusCode() == HttpStatus.SC_NOT_FOUND)
-            {
-                throw new GitRemoteException("File not found: " + key);
-            }
-
-            throw new GitRemoteException(ex);
-        }
+        return join(asyncStorage.downloadStream(path));
     }
 
     @Override
@@ -167,13 +315,177 @@ public class S3Storage implements Storage
         return files;
     }
 
+    /**
+     * Checks the existence of the given files. Many files with the same prefix are checked by a single list request,
+     * the others by concurrent requests.
+     */
+    @Override
+    public Set<Path> filesExist(Collection<Path> paths)
+    {
+        Map<Path, List<Path>> dirs = new LinkedHashMap<>();
+        for (Path path : paths)
+        {
+            dirs.computeIfAbsent(path.getParent(), dir -> new ArrayList<>()).add(path);
+        }
+
+        Set<Path> existing = new LinkedHashSet<>();
+        List<Path> single = new ArrayList<>();
+        for (Map.Entry<Path, List<Path>> dir : dirs.entrySet())
+        {
+            List<Path> files = dir.getValue();
+            if ((files.size() < LIST_THRESHOLD) || (dir.getKey() == null))
+            {
+                single.addAll(files);
+            }
+            else
+            {
+                Set<Path> listed = new LinkedHashSet<>(listFiles(dir.getKey()));
+                for (Path path : files)
+                {
+                    if (listed.contains(path))
+                    {
+                        existing.add(path);
+                    }
+                }
+            }
+        }
+
+        for (int i = 0; i < single.size(); i += REQUEST_BATCH_SIZE)
+        {
+            List<Path> chunk = single.subList(i, Math.min(i + REQUEST_BATCH_SIZE, single.size()));
+
+            List<CompletableFuture<Boolean>> results = new ArrayList<>(chunk.size());
+            for (Path path : chunk)
+            {
+                results.add(asyncStorage.fileExists(path));
+            }
+
+            for (int j = 0; j < chunk.size(); j++)
+            {
+                if (join(results.get(j)))
+                {
+                    existing.add(chunk.get(j));
+                }
+            }
+        }
+
+        return existing;
+    }
+
+    /**
+     * Downloads the given files with concurrent requests.
+     */
+    @Override
+    public Map<Path, byte[]> downloadFiles(Collection<Path> paths)
+    {
+        List<Path> files = new ArrayList<>(paths);
+        Map<Path, byte[]> contents = new LinkedHashMap<>();
+
+        for (int i = 0; i < files.size(); i += REQUEST_BATCH_SIZE)
+        {
+            List<Path> chunk = files.subList(i, Math.min(i + REQUEST_BATCH_SIZE, files.size()));
+
+            List<CompletableFuture<byte[]>> results = new ArrayList<>(chunk.size());
+            for (Path path : chunk)
+            {
+                results.add(asyncStorage.downloadFile(path));
+            }
+
+            for (int j = 0; j < chunk.size(); j++)
+            {
+                contents.put(chunk.get(j), join(results.get(j)));
+            }
+        }
+
+        return contents;
+    }
+
+    /**
+     * Deletes the given files with one request per 1000 files.
+     */
+    @Override
+    public void deleteFiles(Collection<Path> paths)
+    {
+        String bucketName = configuration.getBucketName();
+
+        List<KeyVersion> keys = new ArrayList<>(paths.size());
+        for (Path path : paths)
+        {
+            keys.add(new KeyVersion(getKey(path)));
+        }
+
+        for (int i = 0; i < keys.size(); i += DELETE_BATCH_SIZE)
+        {
+            DeleteObjectsRequest request = new DeleteObjectsRequest(bucketName);
+            request.setKeys(keys.subList(i, Math.min(i + DELETE_BATCH_SIZE, keys.size())));
+            request.setQuiet(true);
+
+            s3.deleteObjects(request);
+        }
+    }
+
+    /**
+     * Waits for the result of an asynchronous request, and passes its exception on.
+     */
+    private <T> T join(CompletableFuture<T> result)
+    {
+        try
+        {
+            return result.join();
+        }
+        catch (CompletionException ex)
+        {
+            if (ex.getCause() instanceof RuntimeException)
+            {
+                throw (RuntimeException) ex.getCause();
+            }
+
+            throw new GitRemoteException(ex.getCause());
+        }
+    }
+
+    @Override
+    public boolean isThrottled(RuntimeException ex)
+    {
+        // the requests of batches are sent by the asynchronous storage
+        if (asyncStorage.isThrottled(ex))
+        {
+            return true;
+        }
+
+        // S3 answers with "503 Slow Down" if the request rate is too high
+        if (ex instanceof AmazonServiceException)
+        {
+            AmazonServiceException ase = (AmazonServiceException) ex;
+            return (ase.getStatusCode() == HttpStatus.SC_SERVICE_UNAVAILABLE) || (ase.getStatusCode() == 429)
+                    || "SlowDown".equals(ase.getErrorCode());
+        }
+
+        return false;
+    }
+
+    /**
+     * Returns the asynchronous variant of this storage, which sends its requests with a non-blocking HTTP client
+     * instead of the executor.
+     */
+    @Override
+    public AsyncStorage getAsyncStorage(Executor executor)
+    {
+        return asyncStorage;
+    }
+
     private AmazonS3 createClient(S3Configuration configuration)
     {
         String region = configuration.getRegion();
 
+        ClientConfiguration clientConfiguration = new ClientConfiguration() //
+                .withConnectionTimeout(configuration.getConnectTimeout() * 1000) //
+                .withSocketTimeout(configuration.getRequestTimeout() * 1000);
+
         return AmazonS3ClientBuilder.standard() //
                 .withCredentials(new S3CredentialsProvider(configuration)) //
                 .withRegion(region) //
+                .withClientConfiguration(clientConfiguration) //
                 .build();
     }
 
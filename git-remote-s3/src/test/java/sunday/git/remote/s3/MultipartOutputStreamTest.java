@@ -0,0 +1,202 @@
+package sunday.git.remote.s3;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.services.s3.AbstractAmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadResult;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadResult;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.PutObjectResult;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import com.amazonaws.services.s3.model.UploadPartResult;
+
+import sunday.git.remote.GitRemoteException;
+
+/**
+ * Unit test for streaming uploads, with an S3 client that keeps the uploaded parts in memory.
+ *
+ * @author Peter H&auml;nsgen
+ */
+public class MultipartOutputStreamTest
+{
+    private static final int PART_SIZE = 1000;
+
+    private MemoryS3 s3;
+    private ExecutorService partUploader;
+    private Semaphore partBuffers;
+
+    @Before
+    public void before()
+    {
+        s3 = new MemoryS3();
+        partUploader = Executors.newFixedThreadPool(2);
+        partBuffers = new Semaphore(4);
+    }
+
+    @After
+    public void after()
+    {
+        partUploader.shutdown();
+    }
+
+    @Test
+    public void testSmallUpload() throws IOException
+    {
+        MultipartOutputStream out = new MultipartOutputStream(s3, "bucket", "key", PART_SIZE, partUploader,
+                partBuffers);
+        out.write(new byte[] { 1, 2, 3 });
+        out.complete();
+
+        assertArrayEquals(new byte[] { 1, 2, 3 }, s3.object);
+        assertTrue(s3.parts.isEmpty());
+        assertEquals(4, partBuffers.availablePermits());
+    }
+
+    @Test
+    public void testMultipartUpload() throws IOException
+    {
+        byte[] content = new byte[5500];
+        new Random(42).nextBytes(content);
+
+        MultipartOutputStream out = new MultipartOutputStream(s3, "bucket", "key", PART_SIZE, partUploader,
+                partBuffers);
+        out.write(content, 0, 100);
+        out.write(content[100]);
+        out.write(content, 101, content.length - 101);
+        out.complete();
+
+        assertNull(s3.object);
+        assertEquals(6, s3.parts.size());
+        assertEquals(6, s3.completedParts);
+
+        ByteArrayOutputStream uploaded = new ByteArrayOutputStream();
+        for (byte[] part : s3.parts.values())
+        {
+            uploaded.write(part);
+        }
+        assertArrayEquals(content, uploaded.toByteArray());
+        assertEquals(4, partBuffers.availablePermits());
+    }
+
+    @Test
+    public void testAbort() throws IOException
+    {
+        s3.failPart = 2;
+
+        MultipartOutputStream out = new MultipartOutputStream(s3, "bucket", "key", PART_SIZE, partUploader,
+                partBuffers);
+        try
+        {
+            out.write(new byte[3500]);
+            out.complete();
+        }
+        catch (GitRemoteException ex)
+        {
+            out.abort();
+        }
+
+        assertTrue(s3.aborted);
+        assertEquals(0, s3.completedParts);
+        assertEquals(4, partBuffers.availablePermits());
+    }
+
+    /**
+     * Keeps uploads in memory.
+     */
+    private static class MemoryS3 extends AbstractAmazonS3
+    {
+        private byte[] object;
+        private Map<Integer, byte[]> parts = new TreeMap<>();
+        private int completedParts;
+        private boolean aborted;
+        private int failPart;
+
+        @Override
+        public PutObjectResult putObject(String bucketName, String key, InputStream input, ObjectMetadata metadata)
+        {
+            object = readAll(input);
+            return new PutObjectResult();
+        }
+
+        @Override
+        public InitiateMultipartUploadResult initiateMultipartUpload(InitiateMultipartUploadRequest request)
+        {
+            InitiateMultipartUploadResult result = new InitiateMultipartUploadResult();
+            result.setUploadId("upload");
+            return result;
+        }
+
+        @Override
+        public UploadPartResult uploadPart(UploadPartRequest request)
+        {
+            if (request.getPartNumber() == failPart)
+            {
+                throw new GitRemoteException("Part failed.");
+            }
+
+            byte[] part = readAll(request.getInputStream());
+            assertEquals(request.getPartSize(), part.length);
+            synchronized (this)
+            {
+                parts.put(request.getPartNumber(), part);
+            }
+
+            UploadPartResult result = new UploadPartResult();
+            result.setPartNumber(request.getPartNumber());
+            result.setETag("etag" + request.getPartNumber());
+            return result;
+        }
+
+        @Override
+        public CompleteMultipartUploadResult completeMultipartUpload(CompleteMultipartUploadRequest request)
+        {
+            int partNumber = 1;
+            for (PartETag eTag : request.getPartETags())
+            {
+                assertEquals(partNumber++, eTag.getPartNumber());
+            }
+            completedParts = request.getPartETags().size();
+
+            return new CompleteMultipartUploadResult();
+        }
+
+        @Override
+        public void abortMultipartUpload(AbortMultipartUploadRequest request)
+        {
+            aborted = true;
+        }
+
+        private byte[] readAll(InputStream in)
+        {
+            try
+            {
+                return in.readAllBytes();
+            }
+            catch (IOException io)
+            {
+                throw new GitRemoteException(io);
+            }
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package sunday.git.remote.s3;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+/**
+ * Unit test for reading a file that is downloaded in parts.
+ *
+ * @author Peter H&auml;nsgen
+ */
+public class RangedInputStreamTest
+{
+    @Test
+    public void testRangedInputStream() throws IOException
+    {
+        byte[] file = new byte[10000];
+        new Random(42).nextBytes(file);
+
+        int partSize = 1024;
+        AtomicInteger requests = new AtomicInteger();
+
+        InputStream first = new ByteArrayInputStream(Arrays.copyOf(file, partSize));
+        Semaphore partBuffers = new Semaphore(4);
+        try (InputStream in = new RangedInputStream(first, file.length, partSize, 3, partBuffers, (offset, size) -> {
+            requests.incrementAndGet();
+            int start = offset.intValue();
+            return CompletableFuture.supplyAsync(() -> Arrays.copyOfRange(file, start, start + size));
+        }))
+        {
+            assertArrayEquals(file, in.readAllBytes());
+        }
+
+        // all remaining parts, and none twice
+        assertEquals(9, requests.get());
+        assertEquals(4, partBuffers.availablePermits());
+    }
+
+    @Test
+    public void testSharedBuffers() throws IOException
+    {
+        byte[] file = new byte[10000];
+        new Random(42).nextBytes(file);
+
+        // another stream holds all buffers but one
+        Semaphore partBuffers = new Semaphore(1);
+        AtomicInteger maxBuffers = new AtomicInteger();
+
+        InputStream first = new ByteArrayInputStream(Arrays.copyOf(file, 1000));
+        try (InputStream in = new RangedInputStream(first, file.length, 1000, 3, partBuffers, (offset, size) -> {
+            maxBuffers.accumulateAndGet(1 - partBuffers.availablePermits(), Math::max);
+            int start = offset.intValue();
+            return CompletableFuture.supplyAsync(() -> Arrays.copyOfRange(file, start, start + size));
+        }))
+        {
+            assertArrayEquals(file, in.readAllBytes());
+        }
+
+        assertEquals(1, maxBuffers.get());
+        assertEquals(1, partBuffers.availablePermits());
+    }
+
+    @Test
+    public void testFailedPart()
+    {
+        byte[] file = new byte[3000];
+
+        InputStream first = new ByteArrayInputStream(Arrays.copyOf(file, 1000));
+        try (InputStream in = new RangedInputStream(first, file.length, 1000, 2, new Semaphore(2), (offset, size) -> {
+            // the last part is shorter than expected
+            int end = (int) Math.min(offset + size, 2500);
+            return CompletableFuture.completedFuture(Arrays.copyOfRange(file, offset.intValue(), end));
+        }))
+        {
+            in.readAllBytes();
+            fail("Incomplete file has been read.");
+        }
+        catch (IOException ex)
+        {
+            // expected
+        }
+    }
+
+    @Test
+    public void testIncompleteFirstPart()
+    {
+        byte[] file = new byte[3000];
+
+        // the response of the first part breaks off
+        InputStream first = new ByteArrayInputStream(Arrays.copyOf(file, 700));
+        try (InputStream in = new RangedInputStream(first, file.length, 1000, 2, new Semaphore(2), (offset, size) -> {
+            int start = offset.intValue();
+            return CompletableFuture.completedFuture(Arrays.copyOfRange(file, start, start + size));
+        }))
+        {
+            in.readAllBytes();
+            fail("Incomplete file has been read.");
+        }
+        catch (IOException ex)
+        {
+            // expected
+        }
+    }
+}
@@ -1,11 +1,13 @@
 package sunday.git.remote.s3enc;
 
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.security.spec.X509EncodedKeySpec;
 import java.util.Base64;
 
 import javax.crypto.Cipher;
 import javax.crypto.CipherInputStream;
+import javax.crypto.CipherOutputStream;
 import javax.crypto.KeyGenerator;
 import javax.crypto.SecretKey;
 import javax.crypto.spec.SecretKeySpec;
@@ -55,6 +57,25 @@ public class EncryptionUtils
         }
     }
 
+    /**
+     * Returns an output stream that encrypts the data using the given key before writing it to the given stream.
+     * Closing it writes the last block and closes the given stream.
+     */
+    public OutputStream encrypt(OutputStream out, SecretKey secretKey)
+    {
+        try
+        {
+            Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+            cipher.init(Cipher.ENCRYPT_MODE, secretKey);
+
+            return new CipherOutputStream(out, cipher);
+        }
+        catch (Exception ex)
+        {
+            throw new SecurityException(ex);
+        }
+    }
+
     /**
      * Decrypts a message using the given key.
      */
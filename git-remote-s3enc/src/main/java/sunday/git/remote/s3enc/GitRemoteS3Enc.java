@@ -29,6 +29,7 @@ public class GitRemoteS3Enc
     {
         String url = null;
         String sha1 = null;
+        boolean compact = false;
 
         // helper method to generate an encryption key
         // git-remote-s3enc -generateKey
@@ -49,6 +50,13 @@ public class GitRemoteS3Enc
             sha1 = args[2];
             url = args[3];
         }
+        // maintenance method to merge small packs and single objects into larger packs
+        // git-remote-s3enc -compact <url>
+        else if ((args.length == 3) && "-compact".equals(args[1]))
+        {
+            compact = true;
+            url = args[2];
+        }
         // regular git interface when using a remote repository
         // git-remote-s3enc <remote> <url>
         else if (args.length == 3)
@@ -61,6 +69,7 @@ public class GitRemoteS3Enc
             System.err.println("Usage: git-remote-s3enc <remote> <url>");
             System.err.println("Usage: git-remote-s3enc -generateKey");
             System.err.println("Usage: git-remote-s3enc -uploadObject <sha1> <url>");
+            System.err.println("Usage: git-remote-s3enc -compact <url>");
             System.exit(1);
         }
 
@@ -103,12 +112,51 @@ public class GitRemoteS3Enc
         configuration.setRegion(region);
         configuration.setEncryptionKey(encryptionKey);
 
+        // large files are transferred in parts of a few MB each, several at the same time
+        String partSize = git.getConfig("s3.partsize");
+        if ((partSize != null) && !partSize.isBlank())
+        {
+            configuration.setPartSize(Long.parseLong(partSize.trim()) * 1024 * 1024);
+        }
+
+        String partConcurrency = git.getConfig("s3.partconcurrency");
+        if ((partConcurrency != null) && !partConcurrency.isBlank())
+        {
+            configuration.setPartConcurrency(Integer.parseInt(partConcurrency.trim()));
+        }
+
+        // a stalled connection fails instead of hanging, in seconds
+        String connectTimeout = git.getConfig("s3.connecttimeout");
+        if ((connectTimeout != null) && !connectTimeout.isBlank())
+        {
+            configuration.setConnectTimeout(Integer.parseInt(connectTimeout.trim()));
+        }
+
+        String requestTimeout = git.getConfig("s3.requesttimeout");
+        if ((requestTimeout != null) && !requestTimeout.isBlank())
+        {
+            configuration.setRequestTimeout(Integer.parseInt(requestTimeout.trim()));
+        }
+
         S3EncStorage storage = new S3EncStorage(configuration);
 
-        GitRemote remote = new GitRemote(git, storage);
+        GitRemote remote = new GitRemote(git, storage, url);
         if (sha1 != null)
         {
-            remote.uploadObject(new SHA1(sha1));
+            try
+            {
+                remote.uploadObject(new SHA1(sha1));
+            }
+            finally
+            {
+                remote.close();
+            }
+            System.exit(0);
+        }
+        else if (compact)
+        {
+            remote.compact();
+            System.exit(0);
         }
         else
         {
@@ -0,0 +1,107 @@
+package sunday.git.remote.s3enc;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.concurrent.CompletableFuture;
+
+import javax.crypto.SecretKey;
+
+import sunday.git.remote.AsyncStorage;
+import sunday.git.remote.GitRemoteException;
+
+/**
+ * Asynchronous storage that encrypts file contents before upload and decrypts them after download, like the
+ * {@link S3EncStorage}. The actual requests are passed to another asynchronous storage.
+ *
+ * @author Peter H&auml;nsgen
+ */
+public class S3EncAsyncStorage implements AsyncStorage
+{
+    private AsyncStorage storage;
+    private EncryptionUtils encryptionUtils;
+    private SecretKey secretKey;
+
+    /**
+     * The constructor.
+     */
+    public S3EncAsyncStorage(AsyncStorage storage, EncryptionUtils encryptionUtils, SecretKey secretKey)
+    {
+        this.storage = storage;
+        this.encryptionUtils = encryptionUtils;
+        this.secretKey = secretKey;
+    }
+
+    @Override
+    public CompletableFuture<Boolean> fileExists(Path path)
+    {
+        return storage.fileExists(path);
+    }
+
+    /**
+     * Uploads the given file after encryption. The file is encrypted by the calling thread.
+     */
+    @Override
+    public CompletableFuture<Void> uploadFile(Path path, File file)
+    {
+        File encFile;
+        try
+        {
+            encFile = File.createTempFile("gitremotex", ".s3enc");
+
+            try (InputStream in = encryptionUtils.encrypt(new BufferedInputStream(new FileInputStream(file)),
+                    secretKey))
+            {
+                Files.copy(in, encFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        catch (IOException io)
+        {
+            return CompletableFuture.failedFuture(new GitRemoteException(io));
+        }
+
+        return storage.uploadFile(path, encFile).whenComplete((result, ex) -> encFile.delete());
+    }
+
+    @Override
+    public CompletableFuture<Void> uploadFile(Path path, byte[] contents)
+    {
+        return storage.uploadFile(path, encryptionUtils.encrypt(contents, secretKey));
+    }
+
+    @Override
+    public CompletableFuture<byte[]> downloadFile(Path path)
+    {
+        return storage.downloadFile(path).thenApply(encrypted -> encryptionUtils.decrypt(encrypted, secretKey));
+    }
+
+    @Override
+    public CompletableFuture<InputStream> downloadStream(Path path)
+    {
+        return storage.downloadStream(path).thenApply(in -> encryptionUtils.decrypt(in, secretKey));
+    }
+
+    @Override
+    public CompletableFuture<Void> deleteFile(Path path)
+    {
+        return storage.deleteFile(path);
+    }
+
+    @Override
+    public CompletableFuture<Collection<Path>> listFiles(Path dir)
+    {
+        return storage.listFiles(dir);
+    }
+
+    @Override
+    public boolean isThrottled(Throwable ex)
+    {
+        return storage.isThrottled(ex);
+    }
+}
@@ -1,17 +1,18 @@
 package sunday.git.remote.s3enc;
 
-import java.io.BufferedInputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.Executor;
 
 import javax.crypto.SecretKey;
 
-import sunday.git.remote.GitRemoteException;
+import sunday.git.remote.AsyncStorage;
+import sunday.git.remote.ContentWriter;
 import sunday.git.remote.s3.S3Storage;
 
 /**
@@ -39,29 +40,12 @@ public class S3EncStorage extends S3Storage
     }
 
     /**
-     * Uploads the given file after encryption.
+     * Uploads the given file after encryption. The file is encrypted while it is uploaded, without a temporary file.
      */
     @Override
     public void uploadFile(Path path, File file)
     {
-        try
-        {
-            File encFile = File.createTempFile("gitremotex", ".s3enc");
-
-            try (InputStream in = encryptionUtils.encrypt(new BufferedInputStream(new FileInputStream(file)),
-                    secretKey))
-            {
-                Files.copy(in, encFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
-            }
-
-            super.uploadFile(path, encFile);
-
-            encFile.delete();
-        }
-        catch (IOException io)
-        {
-            throw new GitRemoteException(io);
-        }
+        uploadStream(path, out -> Files.copy(file.toPath(), out));
     }
 
     @Override
@@ -71,6 +55,20 @@ public class S3EncStorage extends S3Storage
         super.uploadFile(path, encryptedContent);
     }
 
+    /**
+     * Uploads the content while it is written and encrypted.
+     */
+    @Override
+    public void uploadStream(Path path, ContentWriter writer)
+    {
+        super.uploadStream(path, out -> {
+            // closing writes the last block, the upload is finished by the storage
+            OutputStream encrypted = encryptionUtils.encrypt(out, secretKey);
+            writer.writeTo(encrypted);
+            encrypted.close();
+        });
+    }
+
     @Override
     public byte[] downloadFile(Path path)
     {
@@ -78,10 +76,27 @@ public class S3EncStorage extends S3Storage
         return encryptionUtils.decrypt(encryptedContent, secretKey);
     }
 
+    @Override
+    public Map<Path, byte[]> downloadFiles(Collection<Path> paths)
+    {
+        Map<Path, byte[]> contents = super.downloadFiles(paths);
+        contents.replaceAll((path, encryptedContent) -> encryptionUtils.decrypt(encryptedContent, secretKey));
+        return contents;
+    }
+
     @Override
     public InputStream downloadStream(Path path)
     {
         InputStream in = super.downloadStream(path);
         return encryptionUtils.decrypt(in, secretKey);
     }
+
+    /**
+     * Returns the asynchronous variant of this storage, which also encrypts and decrypts the contents.
+     */
+    @Override
+    public AsyncStorage getAsyncStorage(Executor executor)
+    {
+        return new S3EncAsyncStorage(super.getAsyncStorage(executor), encryptionUtils, secretKey);
+    }
 }